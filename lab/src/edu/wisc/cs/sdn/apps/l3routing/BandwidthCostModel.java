@@ -0,0 +1,50 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.ImmutablePort;
+import net.floodlightcontroller.routing.Link;
+
+/**
+ * Gives links a cost inversely proportional to the current speed of the
+ * port at their source, as reported by the switch, so faster links are
+ * preferred. Links whose speed is not known cost as much as the slowest
+ * links.
+ */
+public class BandwidthCostModel implements LinkCostModel
+{
+	// Default speed of a link that costs 1: 100 Gbps
+	public static final long DEFAULT_REFERENCE_BPS = 100000000000L;
+
+	// Interface to Floodlight core for looking up switch ports
+	private IFloodlightProviderService floodlightProv;
+
+	// Speed of a link that costs 1, in bits per second
+	private long referenceBps;
+
+	/**
+	 * Create a model.
+	 * @param floodlightProv Floodlight core service
+	 * @param referenceBps speed of a link that costs 1, in bits per second;
+	 *        slower links cost proportionally more
+	 */
+	public BandwidthCostModel(IFloodlightProviderService floodlightProv,
+			long referenceBps)
+	{
+		this.floodlightProv = floodlightProv;
+		this.referenceBps = referenceBps;
+	}
+
+	@Override
+	public int getCost(Link link)
+	{
+		IOFSwitch sw = this.floodlightProv.getSwitch(link.getSrc());
+		ImmutablePort port = (null == sw ? null
+				: sw.getPort(link.getSrcPort()));
+		long speed = (null == port || null == port.getCurrentPortSpeed()
+				? 0 : port.getCurrentPortSpeed().getSpeedBps());
+		if (speed <= 0)
+		{ return MAX_COST; }
+		return (int)Math.max(1, Math.min(MAX_COST, this.referenceBps / speed));
+	}
+}
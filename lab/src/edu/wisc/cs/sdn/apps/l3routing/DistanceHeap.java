@@ -0,0 +1,143 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+import java.util.Arrays;
+
+/**
+ * Binary min-heap of switch indices keyed by distance, with decrease-key.
+ * Each switch index appears in the heap at most once.
+ */
+public class DistanceHeap
+{
+	// Marks a switch index that is not in the heap
+	private static final int ABSENT = -1;
+
+	// Switch indices in heap order
+	private int[] heap;
+
+	// Position of each switch index in the heap, or ABSENT
+	private int[] position;
+
+	// Key of each switch index currently in the heap
+	private int[] key;
+
+	// Number of entries in the heap
+	private int size;
+
+	/**
+	 * Create an empty heap for switch indices below a capacity.
+	 * @param capacity one more than the largest switch index
+	 */
+	public DistanceHeap(int capacity)
+	{
+		this.heap = new int[capacity];
+		this.position = new int[capacity];
+		this.key = new int[capacity];
+		Arrays.fill(this.position, ABSENT);
+	}
+
+	/**
+	 * Grow the heap to hold switch indices below a new capacity.
+	 * @param capacity one more than the largest switch index
+	 */
+	public void ensureCapacity(int capacity)
+	{
+		if (capacity <= this.position.length)
+		{ return; }
+		int oldCapacity = this.position.length;
+		this.heap = Arrays.copyOf(this.heap, capacity);
+		this.position = Arrays.copyOf(this.position, capacity);
+		this.key = Arrays.copyOf(this.key, capacity);
+		Arrays.fill(this.position, oldCapacity, capacity, ABSENT);
+	}
+
+	/**
+	 * Check whether the heap is empty.
+	 */
+	public boolean isEmpty()
+	{ return 0 == this.size; }
+
+	/**
+	 * Insert a switch index, or lower its key if it is already present.
+	 * @param node the switch index
+	 * @param distance the key for the switch
+	 */
+	public void offer(int node, int distance)
+	{
+		int at = this.position[node];
+		if (ABSENT == at)
+		{
+			at = this.size++;
+			this.heap[at] = node;
+			this.position[node] = at;
+		}
+		else if (distance >= this.key[node])
+		{ return; }
+		this.key[node] = distance;
+		this.siftUp(at);
+	}
+
+	/**
+	 * Remove and return the switch index with the smallest key.
+	 */
+	public int poll()
+	{
+		int top = this.heap[0];
+		this.position[top] = ABSENT;
+		this.size--;
+		if (this.size > 0)
+		{
+			int last = this.heap[this.size];
+			this.heap[0] = last;
+			this.position[last] = 0;
+			this.siftDown(0);
+		}
+		return top;
+	}
+
+	/**
+	 * Remove all entries from the heap.
+	 */
+	public void clear()
+	{
+		for (int i = 0; i < this.size; i++)
+		{ this.position[this.heap[i]] = ABSENT; }
+		this.size = 0;
+	}
+
+	private void siftUp(int at)
+	{
+		int node = this.heap[at];
+		while (at > 0)
+		{
+			int parent = (at - 1) >>> 1;
+			if (this.key[this.heap[parent]] <= this.key[node])
+			{ break; }
+			this.heap[at] = this.heap[parent];
+			this.position[this.heap[at]] = at;
+			at = parent;
+		}
+		this.heap[at] = node;
+		this.position[node] = at;
+	}
+
+	private void siftDown(int at)
+	{
+		int node = this.heap[at];
+		while (true)
+		{
+			int child = 2 * at + 1;
+			if (child >= this.size)
+			{ break; }
+			if (child + 1 < this.size && this.key[this.heap[child + 1]]
+					< this.key[this.heap[child]])
+			{ child++; }
+			if (this.key[node] <= this.key[this.heap[child]])
+			{ break; }
+			this.heap[at] = this.heap[child];
+			this.position[this.heap[at]] = at;
+			at = child;
+		}
+		this.heap[at] = node;
+		this.position[node] = at;
+	}
+}
@@ -0,0 +1,14 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+import net.floodlightcontroller.routing.Link;
+
+/**
+ * Gives every link the same cost, so routes follow the paths with the fewest
+ * hops.
+ */
+public class HopCountCostModel implements LinkCostModel
+{
+	@Override
+	public int getCost(Link link)
+	{ return 1; }
+}
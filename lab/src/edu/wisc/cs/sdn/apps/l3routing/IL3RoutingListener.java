@@ -0,0 +1,16 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+import java.util.Set;
+
+/**
+ * Notified by {@link L3Routing} when the routes to hosts change.
+ */
+public interface IL3RoutingListener
+{
+	/**
+	 * Called once the rules for new routes to some hosts are live in the
+	 * switches.
+	 * @param ips the IPv4 addresses of the hosts whose routes changed
+	 */
+	public void routesChanged(Set<Integer> ips);
+}
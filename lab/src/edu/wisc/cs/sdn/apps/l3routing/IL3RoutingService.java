@@ -0,0 +1,38 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+import net.floodlightcontroller.core.module.IFloodlightService;
+
+/**
+ * Lets other modules look up the routes installed by {@link L3Routing}, e.g.
+ * to output packets that leave the pipeline before the routing table.
+ */
+public interface IL3RoutingService extends IFloodlightService
+{
+	/**
+	 * Get the port out which a switch sends traffic to an IP address.
+	 * @param switchId DPID for the switch
+	 * @param ip the IPv4 address of the host
+	 * @return the output port, or null if the switch has no route to the host
+	 */
+	public Integer getOutputPort(long switchId, int ip);
+
+	/**
+	 * Register a listener for route changes.
+	 * @param listener the listener
+	 */
+	public void addListener(IL3RoutingListener listener);
+
+	/**
+	 * Use a different link cost model; routes are recomputed in the
+	 * background.
+	 * @param costModel the new model
+	 */
+	public void setLinkCostModel(LinkCostModel costModel);
+
+	/**
+	 * Recompute routes with fresh costs from the current link cost model,
+	 * e.g. because the measurements it relies on changed; routes are
+	 * recomputed in the background.
+	 */
+	public void refreshLinkCosts();
+}
@@ -0,0 +1,96 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Shadow copy of the IPv4 destination rules installed in the routing table of
+ * every switch. Comparing it with the desired routes tells which FlowMods
+ * must actually be sent after a recomputation.
+ */
+public class InstalledRules
+{
+	// Output port of each installed rule, keyed by destination IP and then
+	// by switch DPID
+	private Map<Integer,Map<Long,Integer>> rules;
+
+	/**
+	 * Create an empty shadow table.
+	 */
+	public InstalledRules()
+	{ this.rules = new HashMap<Integer,Map<Long,Integer>>(); }
+
+	/**
+	 * Get the installed rules for a destination.
+	 * @param ip the destination IPv4 address
+	 * @return a copy of the map of switch DPID to output port
+	 */
+	public synchronized Map<Long,Integer> get(int ip)
+	{
+		Map<Long,Integer> installed = this.rules.get(ip);
+		if (null == installed)
+		{ return Collections.emptyMap(); }
+		return new HashMap<Long,Integer>(installed);
+	}
+
+	/**
+	 * Check whether a rule is installed.
+	 * @param ip the destination IPv4 address
+	 * @param switchId DPID for the switch
+	 */
+	public synchronized boolean contains(int ip, long switchId)
+	{
+		Map<Long,Integer> installed = this.rules.get(ip);
+		return (installed != null && installed.containsKey(switchId));
+	}
+
+	/**
+	 * Record that a rule was installed or modified.
+	 * @param ip the destination IPv4 address
+	 * @param switchId DPID for the switch holding the rule
+	 * @param port the output port of the rule
+	 */
+	public synchronized void put(int ip, long switchId, int port)
+	{
+		Map<Long,Integer> installed = this.rules.get(ip);
+		if (null == installed)
+		{
+			installed = new HashMap<Long,Integer>();
+			this.rules.put(ip, installed);
+		}
+		installed.put(switchId, port);
+	}
+
+	/**
+	 * Record that a rule was removed.
+	 * @param ip the destination IPv4 address
+	 * @param switchId DPID for the switch that held the rule
+	 */
+	public synchronized void remove(int ip, long switchId)
+	{
+		Map<Long,Integer> installed = this.rules.get(ip);
+		if (null == installed)
+		{ return; }
+		installed.remove(switchId);
+		if (installed.isEmpty())
+		{ this.rules.remove(ip); }
+	}
+
+	/**
+	 * Forget every rule in a switch, e.g. because it disconnected.
+	 * @param switchId DPID for the switch
+	 */
+	public synchronized void removeSwitch(long switchId)
+	{
+		Iterator<Map<Long,Integer>> iterator = this.rules.values().iterator();
+		while (iterator.hasNext())
+		{
+			Map<Long,Integer> installed = iterator.next();
+			installed.remove(switchId);
+			if (installed.isEmpty())
+			{ iterator.remove(); }
+		}
+	}
+}
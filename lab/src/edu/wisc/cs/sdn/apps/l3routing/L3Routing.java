@@ -7,19 +7,36 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import edu.wisc.cs.sdn.apps.util.BarrierTracker;
+import edu.wisc.cs.sdn.apps.util.EventLog;
+import edu.wisc.cs.sdn.apps.util.FlowModBatch;
 import edu.wisc.cs.sdn.apps.util.Host;
+import edu.wisc.cs.sdn.apps.util.HostCache;
+import edu.wisc.cs.sdn.apps.util.IStatsListener;
+import edu.wisc.cs.sdn.apps.util.PortRates;
+import edu.wisc.cs.sdn.apps.util.StatsCollector;
 import edu.wisc.cs.sdn.apps.util.SwitchCommands;
 
 import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFOXMFieldType;
 import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionGroup;
 import org.openflow.protocol.action.OFActionOutput;
 import org.openflow.protocol.instruction.OFInstruction;
 import org.openflow.protocol.instruction.OFInstructionApplyActions;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+
 import net.floodlightcontroller.core.IFloodlightProviderService;
 import net.floodlightcontroller.core.IOFSwitch;
 import net.floodlightcontroller.core.IOFSwitch.PortChangeType;
@@ -37,10 +54,18 @@ import net.floodlightcontroller.linkdiscovery.ILinkDiscoveryService;
 import net.floodlightcontroller.routing.Link;
 
 public class L3Routing implements IFloodlightModule, IOFSwitchListener, 
-		ILinkDiscoveryListener, IDeviceListener
+		ILinkDiscoveryListener, IDeviceListener, IL3RoutingService, 
+		IStatsListener
 {
 	public static final String MODULE_NAME = L3Routing.class.getSimpleName();
 	
+	// Default time topology events are collected before routes are updated
+	public static final long DEFAULT_COALESCE_WINDOW_MS = 100;
+	
+	// Steps in which link utilization is reported to the cost model, so 
+	// small fluctuations do not cause routes to be recomputed
+	private static final double UTILIZATION_STEP = 0.1;
+	
 	// Interface to the logging system
     private static Logger log = LoggerFactory.getLogger(MODULE_NAME);
     
@@ -58,8 +83,62 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
     
     // Map of hosts to devices
     private Map<IDevice,Host> knownHosts;
-
-	
+    
+    // Shortest-path trees towards every switch
+    private RouteEngine routeEngine;
+    
+    // Shadow copy of the rules installed in each switch
+    private InstalledRules installedRules;
+    
+    // Maximum number of FlowMods buffered per switch during a route update
+    private int batchSize;
+    
+    // Modules to tell when routes change
+    private List<IL3RoutingListener> listeners;
+    
+    // Whether traffic is spread over all equal-cost paths
+    private boolean ecmp;
+    
+    // Whether switches fail over to a backup path on their own when a link 
+    // goes down
+    private boolean fastFailover;
+    
+    // Select groups for sets of equal-cost output ports, and failover groups
+    // for output ports with a backup
+    private NextHopGroups nextHopGroups;
+    
+    // Prefix rules that replace the per-host rules in each switch, or null
+    // if every host gets its own rule
+    private PrefixAggregator prefixAggregator;
+    
+    // Time topology events are collected before routes are updated, in ms
+    private long coalesceWindow;
+    
+    // Switches added or removed since routes were last updated, mapped to
+    // whether they were last seen added; guards the other pending fields
+    private Map<Long,Boolean> pendingSwitches;
+    
+    // Switches removed since routes were last updated, even if added again
+    private Set<Long> pendingRemovals;
+    
+    // Whether links, or their costs, changed since routes were last updated
+    private boolean pendingLinks;
+    
+    // Link cost model to switch to when routes are next updated, or null
+    private LinkCostModel pendingCostModel;
+    
+    // Model that link utilization measured by the statistics collector is 
+    // reported to, or null if routes do not depend on utilization
+    private volatile UtilizationCostModel utilizationModel;
+    
+    // Time between polls of switch statistics, in ms, or 0 to not poll
+    private long statsInterval;
+    
+    // Whether the route worker is scheduled to apply the pending changes
+    private boolean updateScheduled;
+    
+    // Thread that applies topology and host changes to the routes
+    private ScheduledExecutorService routeWorker;
 
 	/**
      * Loads dependencies and initializes data structures.
@@ -71,6 +150,29 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 		log.info(String.format("Initializing %s...", MODULE_NAME));
 		Map<String,String> config = context.getConfigParams(this);
         table = Byte.parseByte(config.get("table"));
+        this.batchSize = FlowModBatch.DEFAULT_MAX_SIZE;
+        if (config.containsKey("batchSize"))
+        { this.batchSize = Integer.parseInt(config.get("batchSize")); }
+        
+        // The event log is shared by all applications, and off by default
+        if (config.containsKey("eventLogSize"))
+        {
+        	int sampleRate = 1;
+        	if (config.containsKey("eventLogSampleRate"))
+        	{ 
+        		sampleRate = Integer.parseInt(
+        				config.get("eventLogSampleRate")); 
+        	}
+        	EventLog.configure(Integer.parseInt(config.get("eventLogSize")),
+        			sampleRate);
+        }
+        
+        // Barriers are tracked once for all applications
+        if (config.containsKey("barrierTimeout"))
+        { 
+        	BarrierTracker.getInstance().setTimeout(
+        			Long.parseLong(config.get("barrierTimeout"))); 
+        }
         
 		this.floodlightProv = context.getServiceImpl(
 				IFloodlightProviderService.class);
@@ -78,203 +180,54 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
         this.deviceProv = context.getServiceImpl(IDeviceService.class);
         
         this.knownHosts = new ConcurrentHashMap<IDevice,Host>();
-	}
-	// reference: https://en.wikipedia.org/wiki/Bellman%E2%80%93Ford_algorithm
-	private Map<Long, Integer> generateRouterTable(IOFSwitch iSwitch) 
-	{
-	    Map<Long, Integer> distance = new ConcurrentHashMap<Long, Integer>();
-	    Map<Long, Integer> predecessor = new ConcurrentHashMap<Long,Integer>();
-	    
-		Queue<Long> tempQ = new LinkedList<Long>();
-	    Collection<Link> tempL;
-
-	    for (IOFSwitch sw : this.getSwitches().values()) 
-	    {
-			// for each vertex (IOFSwitch) sw in vertices do
-	    	distance.put(sw.getId(), Integer.MAX_VALUE);
-			// Initialize the distance to all vertices to infinity
-	    }
-
-	    distance.put(iSwitch.getId(), 0); // put into the map
-		// The distance from the source to itself is, of course, zero
-
-	    for (int i = 0; i < this.getSwitches().size(); i++) 
-	    {
-	    	// tempL = this.rmDupLink();
-			Collection<Link> tempLi = new ArrayList<Link>();
-			boolean tempCheck;
-			for (Link li : this.getLinks()) {
-				tempCheck = false;
-				for (Link li2 : tempLi) {
-					if(li.getSrc() == li2.getSrc() && li.getDst() == li2.getDst() || li.getSrc() == li2.getDst() && li.getDst() == li2.getSrc()){
-						tempCheck = true;
-						break;
-					}
-				}
-				if(!tempCheck){
-					tempLi.add(li);
-				}
-			}
-			tempL = tempLi;
-
-	    	tempQ.add(iSwitch.getId());
-
-	    	while (!tempQ.isEmpty()){
-	    		long curId = tempQ.remove();
-				Collection<Link> cLinks = new ArrayList<Link>();
-				Collection<Link> iLinks = new ArrayList<Link>();
-				//  find the connected links of the map
-				for(Link li : tempL){
-					if (li.getSrc() == curId || li.getDst() == curId){
-						iLinks.add(li);
-					}
-				}
-				cLinks = iLinks;
-
-				// reference to https://www.geeksforgeeks.org/bellman-ford-algorithm-dp-23/
-	    		for (Link l : cLinks){
-	    			int curDistance = distance.get(curId);
-					int nextDistance = Integer.MAX_VALUE;
-				    if (curId == l.getSrc()) {
-				    	nextDistance = distance.get(l.getDst());
-				    	if (nextDistance > (curDistance + 1)) {
-				    		distance.put(l.getDst(), (curDistance + 1));
-				    		predecessor.put(l.getDst(), l.getDstPort());
-				    	}
-				    	tempQ.add(l.getDst());
-				    } 
-				    else {
-				    	nextDistance = distance.get(l.getSrc());
-				    	if (nextDistance > (curDistance + 1)) {
-				    		distance.put(l.getSrc(), (curDistance + 1));
-				    		predecessor.put(l.getSrc(), l.getSrcPort());
-				    	}
-				    	tempQ.add(l.getSrc());
-				    }
-				    tempL.remove(l);
-	    		}
-	    	}
-	    }
-	    return predecessor;
-	}
-
-	// Bellman-Ford algorith
-	// reference to https://www.geeksforgeeks.org/bellman-ford-algorithm-dp-23/
-	private int[] bellman_ford(int a, int swNum, int linkNum, int srcNum, Link[] link, Host[] host, IOFSwitch[] iswitch){
-		int[] dist = new int[swNum];
-		for(int i = 0; i < swNum; i++){
-			dist[i] = Integer.MAX_VALUE;
-		}
-		dist[srcNum] = 0;
-
-		int[] temp = new int[swNum];
-		int[] tempPort = new int[swNum];
-		for(int i = 0; i < swNum; i++){
-			for (int j = 0; j < linkNum; j++) {
-				int u = 0;
-				int v = 0;
-				int weight = 1;
-				for (int k = 0; k < swNum; k++) {
-					if(link[j].getDst() == iswitch[k].getId()){
-						u = k;
-						break;
-					}
-				}
-				for (int k = 0; k < swNum; k++) {
-					if(link[j].getSrc() == iswitch[k].getId()){
-						v = k;
-						break;
-					}
-				}
-				if(dist[u] != Integer.MAX_VALUE && dist[u] + weight < dist[v]){
-					dist[v] = dist[u] + weight;
-					temp[v] = u;
-					tempPort[v] = link[j].getSrcPort();
-				}
-				if(dist[v] != Integer.MAX_VALUE && dist[v] + weight < dist[u]){
-					dist[u] = dist[v] + weight;
-					temp[u] = v;
-					tempPort[u] = link[j].getDstPort();
-				}
-			}
-		}
-		tempPort[srcNum] = host[a].getPort();
-		return tempPort;
-	}
-
-	private void generateTable(){
-		Link[] link = this.getLinks().toArray(new Link[0]);
-		Host[] host = this.getHosts().toArray(new Host[0]);
-		IOFSwitch[] iswitch = this.getSwitches().values().toArray(new IOFSwitch[0]);
-		// link.toArray(new Link[0]);
-		// host.toArray(new Host[0]);
-		// iswitch.values().toArray(new IOFSwitch[0]);
-
-		int swNum = this.getSwitches().size(), hostNum = this.getHosts().size(), linkNum = this.getLinks().size();
-
-		for (int i = 0; i < hostNum; i++) {
-			IOFSwitch switchSrc = host[i].getSwitch();
-			if(switchSrc == null) continue;
-			int srcNum = 0;
-			for (int j = 0; j < swNum; j++) {
-				if(switchSrc.getId() == iswitch[j].getId()){
-					srcNum = j;
-					break;
-				}
-			}
-			// int[] tempPort = bellman_ford(i, swNum, linkNum, srcNum, link, host, iswitch);
-			
-			/////
-			int[] dist = new int[swNum];
-			for(int j = 0; j < swNum; j++){
-				dist[j] = Integer.MAX_VALUE;
-			}
-			dist[srcNum] = 0;
-
-			int[] temp = new int[swNum];
-			int[] tempPort = new int[swNum];
-			for(int j = 0; j < swNum; j++){
-				for (int k = 0; k < linkNum; k++) {
-					int u = 0;
-					int v = 0;
-					int weight = 1;
-					for (int m = 0; m < swNum; m++) {
-						if(link[k].getDst() == iswitch[m].getId()){
-							u = m;
-							break;
-						}
-					}
-					for (int m = 0; m < swNum; m++) {
-						if(link[k].getSrc() == iswitch[m].getId()){
-							v = m;
-							break;
-						}
-					}
-					if(dist[u] != Integer.MAX_VALUE && dist[u] + weight < dist[v]){
-						dist[v] = dist[u] + weight;
-						temp[v] = u;
-						tempPort[v] = link[j].getSrcPort();
-					}
-					if(dist[v] != Integer.MAX_VALUE && dist[v] + weight < dist[u]){
-						dist[u] = dist[v] + weight;
-						temp[u] = v;
-						tempPort[u] = link[j].getDstPort();
-					}
-				}
-			}
-			tempPort[srcNum] = host[i].getPort();
-
-
-			for (int j = 0; j < swNum; j++) {
-				OFMatch ofmatch = new OFMatch();
-				ofmatch.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
-				ofmatch.setNetworkDestination(OFMatch.ETH_TYPE_IPV4, host[i].getIPv4Address());
-				OFAction ofaction = new OFActionOutput(tempPort[j]);
-				OFInstruction ofinstruction = new OFInstructionApplyActions(Arrays.asList(ofaction));
-				SwitchCommands.installRule(iswitch[j], table, SwitchCommands.DEFAULT_PRIORITY, ofmatch, Arrays.asList(ofinstruction));
-			}
-		}
-
+        this.routeEngine = new RouteEngine();
+        this.installedRules = new InstalledRules();
+        this.listeners = new CopyOnWriteArrayList<IL3RoutingListener>();
+        this.ecmp = Boolean.parseBoolean(config.get("ecmp"));
+        this.fastFailover = Boolean.parseBoolean(config.get("fastFailover"));
+        this.nextHopGroups = new NextHopGroups();
+        if (Boolean.parseBoolean(config.get("aggregatePrefixes")))
+        { this.prefixAggregator = new PrefixAggregator(); }
+        
+        // Steer around busy links if switches are polled for port statistics
+        LinkCostModel costModel = this.createCostModel(config);
+        if (config.containsKey("statsInterval"))
+        { 
+        	this.statsInterval = Long.parseLong(config.get("statsInterval")); 
+        }
+        if (this.statsInterval > 0)
+        {
+        	double penalty = UtilizationCostModel.DEFAULT_PENALTY;
+        	if (config.containsKey("utilizationPenalty"))
+        	{ 
+        		penalty = Double.parseDouble(
+        				config.get("utilizationPenalty")); 
+        	}
+        	costModel = new UtilizationCostModel(costModel, penalty);
+        }
+        this.setUtilizationModel(costModel);
+        this.routeEngine.setCostModel(costModel);
+        
+        this.coalesceWindow = DEFAULT_COALESCE_WINDOW_MS;
+        if (config.containsKey("coalesceWindow"))
+        { 
+        	this.coalesceWindow = Long.parseLong(
+        			config.get("coalesceWindow")); 
+        }
+        this.pendingSwitches = new LinkedHashMap<Long,Boolean>();
+        this.pendingRemovals = new HashSet<Long>();
+        this.routeWorker = Executors.newSingleThreadScheduledExecutor(
+        		new ThreadFactory()
+        		{
+        			@Override
+        			public Thread newThread(Runnable runnable)
+        			{
+        				Thread thread = new Thread(runnable, 
+        						MODULE_NAME + "-routes");
+        				thread.setDaemon(true);
+        				return thread;
+        			}
+        		});
 	}
 
 	/**
@@ -291,7 +244,13 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 		
 		/*********************************************************************/
 		/* TODO: Initialize variables or perform startup tasks, if necessary */
-		
+		BarrierTracker.register(this.floodlightProv);
+		if (this.statsInterval > 0)
+		{
+			StatsCollector.register(this.floodlightProv);
+			StatsCollector.getInstance().addListener(this);
+			StatsCollector.getInstance().start(this.statsInterval);
+		}
 		/*********************************************************************/
 	}
 	
@@ -313,6 +272,724 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
      */
     private Collection<Link> getLinks()
     { return linkDiscProv.getLinks().keySet(); }
+    
+    /**
+     * Update the rules in every switch to route traffic to a set of hosts.
+     * The hosts must all be attached to the same switch, so the routes 
+     * towards that switch are looked up only once.
+     * @param batch the batch to which FlowMods should be added
+     * @param switchId DPID for the switch to which the hosts are attached
+     * @param hosts the hosts to which traffic should be routed
+     * @param stale filled with the IPs whose rules changed, mapped to the 
+     *        switches whose rule should be removed once the batch is live
+     */
+    private void installHostRules(FlowModBatch batch, long switchId, 
+    		Collection<Host> hosts, Map<Integer,Set<Long>> stale)
+    {
+    	Map<Long,Integer> routes = this.getRouteTargets(switchId);
+    	for (Host host : hosts)
+    	{
+    		if (null == host.getIPv4Address())
+    		{ continue; }
+    		Map<Long,Integer> desired = new HashMap<Long,Integer>(routes);
+    		desired.put(switchId, host.getPort());
+    		this.syncHostRules(batch, host.getIPv4Address(), desired, stale);
+    	}
+    }
+    
+    /**
+     * Get the target of each switch's rules for traffic to hosts attached to
+     * a particular switch: the output port; with ECMP, a select group over
+     * the ports of all equal-cost next hops when there is more than one; and
+     * with fast failover, a failover group from a single output port to a 
+     * loop-free alternate when the switch has one.
+     * @param dst DPID for the destination switch
+     * @return map of switch DPID to rule target
+     */
+    private Map<Long,Integer> getRouteTargets(long dst)
+    {
+    	if (!this.ecmp && !this.fastFailover)
+    	{ return this.routeEngine.getRoutes(dst); }
+    	Map<Long,Integer> alternates = (this.fastFailover 
+    			? this.routeEngine.getAlternates(dst)
+    			: Collections.<Long,Integer>emptyMap());
+    	Map<Long,Integer> targets = new HashMap<Long,Integer>();
+    	if (this.ecmp)
+    	{
+    		for (Map.Entry<Long,List<Integer>> entry : 
+    				this.routeEngine.getNextHops(dst).entrySet())
+    		{
+    			targets.put(entry.getKey(), 
+    					this.nextHopGroups.getTarget(entry.getValue()));
+    		}
+    	}
+    	else
+    	{ targets.putAll(this.routeEngine.getRoutes(dst)); }
+    	
+    	for (Map.Entry<Long,Integer> entry : targets.entrySet())
+    	{
+    		Integer backup = alternates.get(entry.getKey());
+    		if (backup != null && !NextHopGroups.isGroup(entry.getValue()))
+    		{
+    			entry.setValue(this.nextHopGroups.getFailoverTarget(
+    					entry.getValue(), backup));
+    		}
+    	}
+    	return targets;
+    }
+    
+    /**
+     * Update the rules in every switch to route traffic to a host.
+     * @param host the host to which traffic should be routed
+     */
+    private void installHostRules(Host host)
+    {
+    	if (!host.isAttachedToSwitch())
+    	{ 
+    		this.removeHostRules(host.getIPv4Address());
+    		return; 
+    	}
+    	FlowModBatch batch = new FlowModBatch();
+    	Map<Integer,Set<Long>> stale = new HashMap<Integer,Set<Long>>();
+    	synchronized (this.installedRules)
+    	{
+    		this.installHostRules(batch, host.getSwitch().getId(), 
+    				Collections.singleton(host), stale);
+    		this.commitHostRules(batch, stale);
+    	}
+    }
+    
+    /**
+     * Remove the rules for routing traffic to an IP address from every switch.
+     * @param ip the IPv4 address of the host
+     */
+    private void removeHostRules(Integer ip)
+    {
+    	if (null == ip)
+    	{ return; }
+    	FlowModBatch batch = new FlowModBatch();
+    	Map<Integer,Set<Long>> stale = new HashMap<Integer,Set<Long>>();
+    	synchronized (this.installedRules)
+    	{
+    		this.syncHostRules(batch, ip, 
+    				Collections.<Long,Integer>emptyMap(), stale);
+    		
+    		// Prefix rules may be split to leave the host out, and the new 
+    		// rules must be live first; otherwise there is no new path to 
+    		// wait for, so the rules can be removed right away
+    		if (this.prefixAggregator != null)
+    		{
+    			this.commitHostRules(batch, stale);
+    			return;
+    		}
+    	}
+    	this.removeStaleRules(stale, Collections.<Long,Set<Long>>emptyMap());
+    	this.notifyListeners(stale.keySet());
+    }
+    
+    /**
+     * Tell listeners that the routes to some IP addresses changed.
+     * @param ips the IPv4 addresses
+     */
+    private void notifyListeners(Set<Integer> ips)
+    {
+    	if (ips.isEmpty())
+    	{ return; }
+    	Set<Integer> changed = Collections.unmodifiableSet(ips);
+    	for (IL3RoutingListener listener : this.listeners)
+    	{ listener.routesChanged(changed); }
+    }
+    
+    /**
+     * Get the port out which a switch sends traffic to an IP address.
+     * @param switchId DPID for the switch
+     * @param ip the IPv4 address of the host
+     * @return the output port, or null if the switch has no route to the host
+     */
+    @Override
+    public Integer getOutputPort(long switchId, int ip)
+    { 
+    	Integer target = this.installedRules.get(ip).get(switchId);
+    	return (null == target ? null : this.nextHopGroups.getPort(target)); 
+    }
+    
+    /**
+     * Register a listener for route changes.
+     * @param listener the listener
+     */
+    @Override
+    public void addListener(IL3RoutingListener listener)
+    { this.listeners.add(listener); }
+    
+    /**
+     * Bring the rules for routing traffic to an IP address in line with the
+     * desired targets, sending FlowMods only to switches whose rule is
+     * missing or different. Rules that are no longer needed are not removed
+     * here, since they may still carry traffic until the new rules are live.
+     * @param batch the batch to which FlowMods should be added
+     * @param ip the IPv4 address of the host
+     * @param desired map of switch DPID to the desired output port, or 
+     *        select or failover group
+     * @param stale if any rule for the IP changed, filled with the IP mapped
+     *        to the switches whose rule should be removed
+     */
+    private void syncHostRules(FlowModBatch batch, int ip, 
+    		Map<Long,Integer> desired, Map<Integer,Set<Long>> stale)
+    {
+		OFMatch match = new OFMatch();
+		match.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
+		match.setNetworkDestination(ip);
+		
+		synchronized (this.installedRules)
+		{
+			Map<Long,Integer> installed = this.installedRules.get(ip);
+			boolean changed = false;
+			for (Map.Entry<Long,Integer> rule : desired.entrySet())
+			{
+				IOFSwitch sw = this.getSwitches().get(rule.getKey());
+				if (null == sw)
+				{ continue; }
+				Integer current = installed.get(rule.getKey());
+				if (rule.getValue().equals(current))
+				{ continue; }
+				
+				// A group must be in the switch before a rule uses it
+				this.nextHopGroups.acquire(batch, sw, rule.getValue());
+				if (current != null)
+				{ this.nextHopGroups.release(rule.getKey(), current); }
+				
+				// With aggregation, the switch gets prefix rules instead
+				if (this.prefixAggregator != null)
+				{
+					this.prefixAggregator.setRoute(rule.getKey(), ip, 
+							rule.getValue());
+				}
+				else if (null == current)
+				{
+					batch.installRule(sw, table, 
+							SwitchCommands.DEFAULT_PRIORITY, match, 
+							this.getOutputInstructions(rule.getValue()));
+				}
+				else
+				{
+					batch.modifyRule(sw, table, 
+							SwitchCommands.DEFAULT_PRIORITY, match, 
+							this.getOutputInstructions(rule.getValue()));
+				}
+				this.installedRules.put(ip, rule.getKey(), rule.getValue());
+				changed = true;
+			}
+			
+			Set<Long> removed = new HashSet<Long>();
+			for (Long switchId : installed.keySet())
+			{
+				if (desired.containsKey(switchId))
+				{ continue; }
+				removed.add(switchId);
+				this.nextHopGroups.release(switchId, installed.get(switchId));
+				this.installedRules.remove(ip, switchId);
+				if (this.prefixAggregator != null)
+				{ this.prefixAggregator.removeRoute(switchId, ip); }
+			}
+			if (changed || !removed.isEmpty())
+			{ stale.put(ip, removed); }
+		}
+    }
+    
+    /**
+     * Send a batch of new and modified rules with a barrier, and remove the
+     * stale rules once every switch has answered the barrier, so traffic
+     * always has a path while routes change (make-before-break). Listeners
+     * are told about the changed routes once the new rules are live.
+     * Callers hold the lock on the installed rules from syncing the host 
+     * rules until here, so prefix rules go out in the batch that installs 
+     * the groups they use.
+     * @param batch the batch of new and modified rules
+     * @param stale the rules to remove, keyed by destination IP
+     */
+    private void commitHostRules(FlowModBatch batch, 
+    		final Map<Integer,Set<Long>> stale)
+    {
+    	final Map<Long,Set<Long>> stalePrefixes = this.syncPrefixRules(batch);
+    	final long start = System.nanoTime();
+    	Futures.addCallback(batch.commit(), new FutureCallback<List<Long>>()
+    	{
+    		@Override
+    		public void onSuccess(List<Long> switchIds)
+    		{
+    			if (log.isDebugEnabled())
+    			{
+    				log.debug(String.format(
+    						"Rules live on %d switches after %d us",
+    						switchIds.size(), 
+    						(System.nanoTime() - start) / 1000));
+    			}
+    			removeStaleRules(stale, stalePrefixes);
+    			notifyListeners(stale.keySet());
+    		}
+
+    		@Override
+    		public void onFailure(Throwable t)
+    		{
+    			log.warn("Rule commit failed: " + t.getMessage());
+    			removeStaleRules(stale, stalePrefixes);
+    			notifyListeners(stale.keySet());
+    		}
+    	});
+    }
+    
+    /**
+     * Add the prefix rules that changed along with the host rules to a 
+     * batch, most specific first, so a broader rule never catches traffic 
+     * meant for a more specific rule that is not in the switch yet.
+     * @param batch the batch to which FlowMods should be added
+     * @return the prefixes whose rules should be removed once the batch is
+     *         live, keyed by switch DPID
+     */
+    private Map<Long,Set<Long>> syncPrefixRules(FlowModBatch batch)
+    {
+    	Map<Long,Set<Long>> stale = new HashMap<Long,Set<Long>>();
+    	if (null == this.prefixAggregator)
+    	{ return stale; }
+    	synchronized (this.installedRules)
+    	{
+    		for (Map.Entry<Long,Map<Long,Integer>> entry : 
+    				this.prefixAggregator.update().entrySet())
+    		{
+    			IOFSwitch sw = this.getSwitches().get(entry.getKey());
+    			List<Long> prefixes = 
+    					new ArrayList<Long>(entry.getValue().keySet());
+    			Collections.sort(prefixes, new Comparator<Long>()
+    			{
+    				@Override
+    				public int compare(Long a, Long b)
+    				{ 
+    					return PrefixAggregator.getLength(b) 
+    							- PrefixAggregator.getLength(a); 
+    				}
+    			});
+    			
+    			Set<Long> removed = new HashSet<Long>();
+    			for (Long prefix : prefixes)
+    			{
+    				Integer target = this.prefixAggregator.getRule(
+    						entry.getKey(), prefix);
+    				if (null == target)
+    				{ 
+    					removed.add(prefix);
+    					continue;
+    				}
+    				if (null == sw)
+    				{ continue; }
+    				List<OFInstruction> instructions = 
+    						(PrefixAggregator.NO_ROUTE == target 
+    						? Collections.<OFInstruction>emptyList()
+    						: this.getOutputInstructions(target));
+    				if (null == entry.getValue().get(prefix))
+    				{
+    					batch.installRule(sw, table, getPriority(prefix), 
+    							getPrefixMatch(prefix), instructions);
+    				}
+    				else
+    				{
+    					batch.modifyRule(sw, table, getPriority(prefix), 
+    							getPrefixMatch(prefix), instructions);
+    				}
+    			}
+    			if (!removed.isEmpty())
+    			{ stale.put(entry.getKey(), removed); }
+    		}
+    	}
+    	return stale;
+    }
+    
+    /**
+     * Get the match for a prefix rule.
+     * @param prefix the prefix, as from {@link PrefixAggregator#getPrefix}
+     */
+    private static OFMatch getPrefixMatch(long prefix)
+    {
+    	OFMatch match = new OFMatch();
+    	match.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
+    	int length = PrefixAggregator.getLength(prefix);
+    	if (length > 0)
+    	{
+    		match.setField(OFOXMFieldType.IPV4_DST, 
+    				PrefixAggregator.getAddress(prefix), 
+    				PrefixAggregator.getMask(length));
+    	}
+    	return match;
+    }
+    
+    /**
+     * Get the priority of a prefix rule: longer prefixes take precedence.
+     * @param prefix the prefix, as from {@link PrefixAggregator#getPrefix}
+     */
+    private static short getPriority(long prefix)
+    {
+    	return (short)(SwitchCommands.DEFAULT_PRIORITY 
+    			+ PrefixAggregator.getLength(prefix));
+    }
+    
+    /**
+     * Remove rules that are no longer needed. A rule is skipped if it has
+     * been installed again since it became stale.
+     * @param stale the host rules to remove, keyed by destination IP
+     * @param stalePrefixes the prefix rules to remove, keyed by switch DPID
+     */
+    private void removeStaleRules(Map<Integer,Set<Long>> stale, 
+    		Map<Long,Set<Long>> stalePrefixes)
+    {
+    	if (stale.isEmpty() && stalePrefixes.isEmpty())
+    	{ return; }
+    	FlowModBatch batch = new FlowModBatch(this.batchSize, 
+    			FlowModBatch.DEFAULT_MAX_DELAY_MS);
+    	synchronized (this.installedRules)
+    	{
+    		for (Map.Entry<Integer,Set<Long>> entry : stale.entrySet())
+    		{
+    			// With aggregation, switches only have prefix rules
+    			if (this.prefixAggregator != null)
+    			{ break; }
+    			OFMatch match = new OFMatch();
+    			match.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
+    			match.setNetworkDestination(entry.getKey());
+    			for (Long switchId : entry.getValue())
+    			{
+    				if (this.installedRules.contains(entry.getKey(), switchId))
+    				{ continue; }
+    				IOFSwitch sw = this.getSwitches().get(switchId);
+    				if (null == sw)
+    				{ continue; }
+    				batch.removeRule(sw, table, 
+    						SwitchCommands.DEFAULT_PRIORITY, match);
+    			}
+    		}
+    		for (Map.Entry<Long,Set<Long>> entry : stalePrefixes.entrySet())
+    		{
+    			IOFSwitch sw = this.getSwitches().get(entry.getKey());
+    			if (null == sw)
+    			{ continue; }
+    			for (Long prefix : entry.getValue())
+    			{
+    				if (this.prefixAggregator.getRule(entry.getKey(), prefix) 
+    						!= null)
+    				{ continue; }
+    				batch.removeRule(sw, table, getPriority(prefix), 
+    						getPrefixMatch(prefix));
+    			}
+    		}
+    		// Groups are removed after the rules, since removing a group 
+    		// removes any rule still using it
+    		this.nextHopGroups.removeUnused(batch, this.getSwitches());
+    		
+    		// Flush while holding the lock, so a rule installed again later
+    		// cannot reach the switch before its removal
+    		batch.flush();
+    	}
+    }
+    
+    /**
+     * Get the instructions for a rule that sends traffic out a single port,
+     * or to a group.
+     * @param target the port out which traffic should be sent, or the group
+     */
+    private List<OFInstruction> getOutputInstructions(int target)
+    {
+		OFAction action;
+		if (NextHopGroups.isGroup(target))
+		{ action = new OFActionGroup(NextHopGroups.getGroupId(target)); }
+		else
+		{ action = new OFActionOutput(target); }
+		OFInstruction instruction = 
+				new OFInstructionApplyActions(Arrays.asList(action));
+		return Arrays.asList(instruction);
+    }
+    
+    /**
+     * Update the rules for all hosts attached to switches whose shortest
+     * path trees changed. Hosts are grouped by attachment switch so each
+     * tree is consulted once, regardless of how many hosts hang off it.
+     * @param changed DPIDs of the switches whose trees changed
+     */
+    private void updateHostRules(Set<Long> changed)
+    {
+    	if (changed.isEmpty())
+    	{ return; }
+    	Map<Long,List<Host>> hostsBySwitch = new HashMap<Long,List<Host>>();
+    	for (Host host : this.getHosts())
+    	{
+    		if (!host.isAttachedToSwitch())
+    		{ continue; }
+    		long switchId = host.getSwitch().getId();
+    		if (!changed.contains(switchId))
+    		{ continue; }
+    		List<Host> hosts = hostsBySwitch.get(switchId);
+    		if (null == hosts)
+    		{
+    			hosts = new ArrayList<Host>();
+    			hostsBySwitch.put(switchId, hosts);
+    		}
+    		hosts.add(host);
+    	}
+    	
+    	FlowModBatch batch = new FlowModBatch(this.batchSize, 
+    			FlowModBatch.DEFAULT_MAX_DELAY_MS);
+    	Map<Integer,Set<Long>> stale = new HashMap<Integer,Set<Long>>();
+    	synchronized (this.installedRules)
+    	{
+    		for (Map.Entry<Long,List<Host>> entry : hostsBySwitch.entrySet())
+    		{ 
+    			this.installHostRules(batch, entry.getKey(), entry.getValue(), 
+    					stale); 
+    		}
+    		this.commitHostRules(batch, stale);
+    	}
+    	if (log.isDebugEnabled())
+    	{
+    		log.debug(String.format(
+    				"FlowMod batches: avg size %.1f, avg flush %.1f us; "
+    				+ "barriers: avg %.1f us",
+    				FlowModBatch.getAverageBatchSize(),
+    				FlowModBatch.getAverageFlushMicros(),
+    				BarrierTracker.getInstance().getAverageLatencyMicros()));
+    	}
+    }
+
+    /**
+     * Create the link cost model named in the module's configuration.
+     * @param config the module's configuration
+     * @throws FloodlightModuleException if the model is unknown or its
+     *         configuration is malformed
+     */
+    private LinkCostModel createCostModel(Map<String,String> config)
+    		throws FloodlightModuleException
+    {
+    	String name = config.get("linkCostModel");
+    	if (null == name || name.equals("hops"))
+    	{ return new HopCountCostModel(); }
+    	try
+    	{
+    		if (name.equals("static"))
+    		{
+    			String costs = config.get("linkCosts");
+    			return StaticCostModel.parse((null == costs ? "" : costs), 1);
+    		}
+    		if (name.equals("bandwidth"))
+    		{
+    			long referenceBps = BandwidthCostModel.DEFAULT_REFERENCE_BPS;
+    			if (config.containsKey("referenceBandwidth"))
+    			{
+    				referenceBps = Long.parseLong(
+    						config.get("referenceBandwidth"));
+    			}
+    			return new BandwidthCostModel(this.floodlightProv, 
+    					referenceBps);
+    		}
+    	}
+    	catch (IllegalArgumentException e)
+    	{ throw new FloodlightModuleException(e.getMessage()); }
+    	throw new FloodlightModuleException("Unknown link cost model " + name);
+    }
+    
+    /**
+     * Use a different link cost model. Routes are recomputed, and rules 
+     * updated, by the route worker.
+     * @param costModel the new model
+     */
+    @Override
+    public void setLinkCostModel(LinkCostModel costModel)
+    {
+    	synchronized (this.pendingSwitches)
+    	{ this.pendingCostModel = costModel; }
+    	this.setUtilizationModel(costModel);
+    	this.queueTopologyChange(null, false);
+    }
+    
+    /**
+     * Report measured link utilization to a cost model, if it uses it.
+     */
+    private void setUtilizationModel(LinkCostModel costModel)
+    {
+    	this.utilizationModel = (costModel instanceof UtilizationCostModel 
+    			? (UtilizationCostModel)costModel : null);
+    }
+    
+    /**
+     * Recompute routes with fresh costs from the current link cost model,
+     * e.g. because the measurements it relies on changed. Routes are 
+     * recomputed, and rules updated, by the route worker.
+     */
+    @Override
+    public void refreshLinkCosts()
+    { this.queueTopologyChange(null, false); }
+    
+    /**
+     * Report the utilization of links out of switches with new port 
+     * statistics to the cost model, and recompute routes if it changed.
+     * @param switchIds DPIDs for the switches with new statistics
+     */
+    @Override
+    public void statsUpdated(Set<Long> switchIds)
+    {
+    	UtilizationCostModel model = this.utilizationModel;
+    	if (null == model)
+    	{ return; }
+    	PortRates rates = StatsCollector.getInstance().getPortRates();
+    	boolean changed = false;
+    	for (Link link : this.getLinks())
+    	{
+    		if (!switchIds.contains(link.getSrc()))
+    		{ continue; }
+    		double used = rates.getUtilization(link.getSrc(), 
+    				link.getSrcPort());
+    		used = Math.round(used / UTILIZATION_STEP) * UTILIZATION_STEP;
+    		changed |= model.setUtilization(link.getSrc(), link.getSrcPort(), 
+    				used);
+    	}
+    	if (changed)
+    	{ this.refreshLinkCosts(); }
+    }
+    
+    /**
+     * Record a topology change for the route worker, and schedule the worker
+     * if it is not already scheduled. Changes that arrive within one 
+     * coalescing window are applied together.
+     * @param switchId DPID for a switch added or removed, or null if links
+     *        or their costs changed
+     * @param added whether the switch was added
+     */
+    private void queueTopologyChange(Long switchId, boolean added)
+    {
+    	synchronized (this.pendingSwitches)
+    	{
+    		if (null == switchId)
+    		{ this.pendingLinks = true; }
+    		else
+    		{
+    			this.pendingSwitches.put(switchId, added);
+    			if (!added)
+    			{ this.pendingRemovals.add(switchId); }
+    		}
+    		if (this.updateScheduled)
+    		{ return; }
+    		this.updateScheduled = true;
+    	}
+    	this.routeWorker.schedule(new Runnable()
+    	{
+    		@Override
+    		public void run()
+    		{ applyTopologyChanges(); }
+    	}, this.coalesceWindow, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Apply the net topology change since routes were last updated: the 
+     * trees are repaired once, and rules are updated once for the hosts 
+     * behind switches whose trees changed. Runs on the route worker.
+     */
+    private void applyTopologyChanges()
+    {
+    	List<Long> added = new ArrayList<Long>();
+    	Set<Long> removed;
+    	boolean linksChanged;
+    	LinkCostModel costModel;
+    	synchronized (this.pendingSwitches)
+    	{
+    		for (Map.Entry<Long,Boolean> entry : 
+    				this.pendingSwitches.entrySet())
+    		{
+    			if (entry.getValue())
+    			{ added.add(entry.getKey()); }
+    		}
+    		removed = this.pendingRemovals;
+    		linksChanged = this.pendingLinks;
+    		costModel = this.pendingCostModel;
+    		this.pendingCostModel = null;
+    		this.pendingSwitches.clear();
+    		this.pendingRemovals = new HashSet<Long>();
+    		this.pendingLinks = false;
+    		this.updateScheduled = false;
+    	}
+    	
+    	try
+    	{
+    		// The rules and groups of a switch are forgotten in the same 
+    		// critical section that reinstalls them, so no host update sees 
+    		// rules or groups the switch no longer has
+    		synchronized (this.installedRules)
+    		{
+    			// A switch that went away and came back has lost its rules, 
+    			// so it is removed before it is added again
+    			for (Long switchId : removed)
+    			{ 
+    				this.installedRules.removeSwitch(switchId);
+    				this.nextHopGroups.removeSwitch(switchId);
+    				if (this.prefixAggregator != null)
+    				{ this.prefixAggregator.removeSwitch(switchId); }
+    			}
+    			Set<Long> changed = this.routeEngine.removeSwitches(removed);
+    			for (Long switchId : added)
+    			{ this.routeEngine.addSwitch(switchId); }
+    			if (costModel != null)
+    			{ changed.addAll(this.routeEngine.setCostModel(costModel)); }
+    			if (linksChanged || !added.isEmpty())
+    			{ 
+    				changed.addAll(this.routeEngine.updateLinks(
+    						this.getLinks())); 
+    			}
+    			
+    			// Alternates towards a switch depend on the trees towards its 
+    			// neighbors too, so any change may move them
+    			if (this.fastFailover && !changed.isEmpty())
+    			{ changed.addAll(this.getSwitches().keySet()); }
+    			changed.addAll(added);
+    			this.updateHostRules(changed);
+    		}
+    	}
+    	catch (RuntimeException e)
+    	{ log.error("Failed to apply topology changes", e); }
+    }
+    
+    /**
+     * Have the route worker update the rules for a host, behind any 
+     * topology changes already queued. Callback threads only enqueue, so 
+     * host and topology updates are applied one at a time, in order.
+     * @param host the host to which traffic should be routed
+     */
+    private void queueHostUpdate(final Host host)
+    {
+    	this.routeWorker.execute(new Runnable()
+    	{
+    		@Override
+    		public void run()
+    		{
+    			try
+    			{ installHostRules(host); }
+    			catch (RuntimeException e)
+    			{ log.error("Failed to update rules for a host", e); }
+    		}
+    	});
+    }
+    
+    /**
+     * Have the route worker remove the rules for an IP address.
+     * @param ip the IPv4 address of the host
+     */
+    private void queueHostRemoval(final Integer ip)
+    {
+    	this.routeWorker.execute(new Runnable()
+    	{
+    		@Override
+    		public void run()
+    		{
+    			try
+    			{ removeHostRules(ip); }
+    			catch (RuntimeException e)
+    			{ log.error("Failed to remove rules for a host", e); }
+    		}
+    	});
+    }
 
     /**
      * Event handler called when a host joins the network.
@@ -330,22 +1007,7 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 			
 			/*****************************************************************/
 			/* TODO: Update routing: add rules to route to new host          */
-			if(host.isAttachedToSwitch() == false) return;
-			else{
-				Map<Long, Integer> routes = generateRouterTable(host.getSwitch());
-				OFMatch oMatch = new OFMatch();
-				oMatch.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
-				oMatch.setNetworkDestination(host.getIPv4Address());
-				for (Long id : routes.keySet()) 
-				{
-					OFAction oAction = new OFActionOutput(routes.get(id));
-					OFInstruction oInstruction = new OFInstructionApplyActions(Arrays.asList(oAction));
-					SwitchCommands.installRule(this.getSwitches().get(id), this.table,SwitchCommands.DEFAULT_PRIORITY, oMatch,Arrays.asList(oInstruction));
-				}
-				OFAction oAction = new OFActionOutput(host.getPort());
-				OFInstruction oInstruction = new OFInstructionApplyActions(Arrays.asList(oAction));
-				SwitchCommands.installRule(host.getSwitch(), this.table, SwitchCommands.DEFAULT_PRIORITY, oMatch, Arrays.asList(oInstruction));
-			}
+			this.queueHostUpdate(host);
 			/*****************************************************************/
 		}
 	}
@@ -367,13 +1029,7 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 		
 		/*********************************************************************/
 		/* TODO: Update routing: remove rules to route to host               */
-		// int swNum = this.getSwitches().size();
-		for (IOFSwitch iswitch : this.getSwitches().values()){
-			OFMatch oMatch = new OFMatch();
-			oMatch.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
-			oMatch.setNetworkDestination(host.getIPv4Address());
-			SwitchCommands.removeRules(iswitch, this.table, oMatch);
-		}
+		this.queueHostRemoval(host.getIPv4Address());
 		/*********************************************************************/
 	}
 
@@ -401,30 +1057,7 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 		
 		/*********************************************************************/
 		/* TODO: Update routing: change rules to route to host               */
-		for (IOFSwitch iswitch : this.getSwitches().values()){
-			OFMatch oMatch = new OFMatch();
-			oMatch.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
-			oMatch.setNetworkDestination(host.getIPv4Address());
-			SwitchCommands.removeRules(iswitch, this.table, oMatch);
-		}
-		if(host.isAttachedToSwitch() == false) {
-			return;
-		}
-		else{
-			Map<Long, Integer> routes = generateRouterTable(host.getSwitch());
-			OFMatch oMatch = new OFMatch();
-			oMatch.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
-			oMatch.setNetworkDestination(host.getIPv4Address());
-			for (Long id : routes.keySet()) 
-			{
-				OFAction oAction = new OFActionOutput(routes.get(id));
-				OFInstruction oInstruction = new OFInstructionApplyActions(Arrays.asList(oAction));
-				SwitchCommands.installRule(this.getSwitches().get(id), this.table,SwitchCommands.DEFAULT_PRIORITY, oMatch,Arrays.asList(oInstruction));
-			}
-			OFAction oAction = new OFActionOutput(host.getPort());
-			OFInstruction oInstruction = new OFInstructionApplyActions(Arrays.asList(oAction));
-			SwitchCommands.installRule(host.getSwitch(), this.table, SwitchCommands.DEFAULT_PRIORITY, oMatch, Arrays.asList(oInstruction));
-		}
+		this.queueHostUpdate(host);
 		/*********************************************************************/
 	}
 	
@@ -440,32 +1073,7 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 		
 		/*********************************************************************/
 		/* TODO: Update routing: change routing rules for all hosts          */
-		for(Host host : this.getHosts()){
-			for (IOFSwitch iswitch : this.getSwitches().values()){
-				OFMatch match = new OFMatch();
-				match.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
-				match.setNetworkDestination(host.getIPv4Address());
-				SwitchCommands.removeRules(iswitch, this.table, match);
-			}
-			if(host.isAttachedToSwitch() == false) {
-				return;
-			}
-			else{
-				Map<Long, Integer> routes = generateRouterTable(host.getSwitch());
-				OFMatch oMatch = new OFMatch();
-				oMatch.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
-				oMatch.setNetworkDestination(host.getIPv4Address());
-				for (Long id : routes.keySet()) 
-				{
-					OFAction oAction = new OFActionOutput(routes.get(id));
-					OFInstruction oInstruction = new OFInstructionApplyActions(Arrays.asList(oAction));
-					SwitchCommands.installRule(this.getSwitches().get(id), this.table,SwitchCommands.DEFAULT_PRIORITY, oMatch,Arrays.asList(oInstruction));
-				}
-				OFAction oAction = new OFActionOutput(host.getPort());
-				OFInstruction oInstruction = new OFInstructionApplyActions(Arrays.asList(oAction));
-				SwitchCommands.installRule(host.getSwitch(), this.table, SwitchCommands.DEFAULT_PRIORITY, oMatch, Arrays.asList(oInstruction));
-			}
-		}
+		this.queueTopologyChange(switchId, true);
 		/*********************************************************************/
 	}
 
@@ -481,32 +1089,7 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 		
 		/*********************************************************************/
 		/* TODO: Update routing: change routing rules for all hosts          */
-		for(Host host : this.getHosts()){
-			for (IOFSwitch iswitch : this.getSwitches().values()){
-				OFMatch match = new OFMatch();
-				match.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
-				match.setNetworkDestination(host.getIPv4Address());
-				SwitchCommands.removeRules(iswitch, this.table, match);
-			}
-			if(host.isAttachedToSwitch() == false) {
-				return;
-			}
-			else{
-				Map<Long, Integer> routes = generateRouterTable(host.getSwitch());
-				OFMatch oMatch = new OFMatch();
-				oMatch.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
-				oMatch.setNetworkDestination(host.getIPv4Address());
-				for (Long id : routes.keySet()) 
-				{
-					OFAction oAction = new OFActionOutput(routes.get(id));
-					OFInstruction oInstruction = new OFInstructionApplyActions(Arrays.asList(oAction));
-					SwitchCommands.installRule(this.getSwitches().get(id), this.table,SwitchCommands.DEFAULT_PRIORITY, oMatch,Arrays.asList(oInstruction));
-				}
-				OFAction oAction = new OFActionOutput(host.getPort());
-				OFInstruction oInstruction = new OFInstructionApplyActions(Arrays.asList(oAction));
-				SwitchCommands.installRule(host.getSwitch(), this.table, SwitchCommands.DEFAULT_PRIORITY, oMatch, Arrays.asList(oInstruction));
-			}
-		}
+		this.queueTopologyChange(switchId, false);
 		/*********************************************************************/
 	}
 
@@ -517,6 +1100,7 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 	@Override
 	public void linkDiscoveryUpdate(List<LDUpdate> updateList) 
 	{
+		boolean switchLinksChanged = false;
 		for (LDUpdate update : updateList)
 		{
 			// If we only know the switch & port for one end of the link, then
@@ -532,37 +1116,15 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 				log.info(String.format("Link s%s:%d -> s%s:%d updated", 
 					update.getSrc(), update.getSrcPort(),
 					update.getDst(), update.getDstPort()));
+				switchLinksChanged = true;
 			}
 		}
+		if (!switchLinksChanged)
+		{ return; }
 		
 		/*********************************************************************/
 		/* TODO: Update routing: change routing rules for all hosts          */
-		for(Host host : this.getHosts()){
-			for (IOFSwitch iswitch : this.getSwitches().values()){
-				OFMatch match = new OFMatch();
-				match.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
-				match.setNetworkDestination(host.getIPv4Address());
-				SwitchCommands.removeRules(iswitch, this.table, match);
-			}
-			if(host.isAttachedToSwitch() == false) {
-				return;
-			}
-			else{
-				Map<Long, Integer> routes = generateRouterTable(host.getSwitch());
-				OFMatch oMatch = new OFMatch();
-				oMatch.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
-				oMatch.setNetworkDestination(host.getIPv4Address());
-				for (Long id : routes.keySet()) 
-				{
-					OFAction oAction = new OFActionOutput(routes.get(id));
-					OFInstruction oInstruction = new OFInstructionApplyActions(Arrays.asList(oAction));
-					SwitchCommands.installRule(this.getSwitches().get(id), this.table,SwitchCommands.DEFAULT_PRIORITY, oMatch,Arrays.asList(oInstruction));
-				}
-				OFAction oAction = new OFActionOutput(host.getPort());
-				OFInstruction oInstruction = new OFInstructionApplyActions(Arrays.asList(oAction));
-				SwitchCommands.installRule(host.getSwitch(), this.table, SwitchCommands.DEFAULT_PRIORITY, oMatch, Arrays.asList(oInstruction));
-			}
-		}
+		this.queueTopologyChange(null, false);
 		/*********************************************************************/
 	}
 
@@ -632,7 +1194,11 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 	 */
 	@Override
 	public boolean isCallbackOrderingPrereq(String type, String name) 
-	{ return false; }
+	{ 
+		// Route changes are passed on to modules that look hosts up in the
+		// cache, so it must have dropped its stale entries first
+		return name.equals(HostCache.MODULE_NAME); 
+	}
 
 	/**
 	 * Check if events must be passed to another module after this module has
@@ -647,7 +1213,12 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
      */
 	@Override
 	public Collection<Class<? extends IFloodlightService>> getModuleServices() 
-	{ return null; }
+	{
+		Collection<Class<? extends IFloodlightService>> services =
+				new ArrayList<Class<? extends IFloodlightService>>();
+		services.add(IL3RoutingService.class);
+		return services;
+	}
 
 	/**
      * Tell the module system which services we implement.
@@ -655,7 +1226,13 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 	@Override
 	public Map<Class<? extends IFloodlightService>, IFloodlightService> 
 			getServiceImpls() 
-	{ return null; }
+	{
+		Map<Class<? extends IFloodlightService>, IFloodlightService> services =
+				new HashMap<Class<? extends IFloodlightService>, 
+						IFloodlightService>();
+		services.put(IL3RoutingService.class, this);
+		return services;
+	}
 
 	/**
      * Tell the module system which modules we depend on.
@@ -0,0 +1,20 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+import net.floodlightcontroller.routing.Link;
+
+/**
+ * Assigns each link between switches a cost; routes follow the paths with
+ * the lowest total cost.
+ */
+public interface LinkCostModel
+{
+	// Largest cost a link can have, so path costs cannot overflow an int
+	public static final int MAX_COST = 65535;
+
+	/**
+	 * Get the cost of a link.
+	 * @param link the link
+	 * @return the cost; values outside 1 to MAX_COST are clamped
+	 */
+	public int getCost(Link link);
+}
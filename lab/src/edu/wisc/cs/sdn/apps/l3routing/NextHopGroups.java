@@ -0,0 +1,237 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.openflow.protocol.OFBucket;
+import org.openflow.protocol.OFGroupMod;
+import org.openflow.protocol.OFPort;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionOutput;
+
+import edu.wisc.cs.sdn.apps.util.FlowModBatch;
+import edu.wisc.cs.sdn.apps.util.SwitchCommands;
+
+import net.floodlightcontroller.core.IOFSwitch;
+
+/**
+ * Select groups that spread traffic over a set of equal-cost output ports,
+ * and fast failover groups that send traffic out a primary port while it is
+ * up and out a backup port otherwise, so a switch reroutes around a failed 
+ * link without waiting for the controller. Each distinct set of ports gets 
+ * one group ID, shared by every destination and every switch that uses the 
+ * set, and a switch only holds the groups its rules use. A group is 
+ * installed in a switch when the first rule starts using it, and removed 
+ * once no rule has used it for a whole update.
+ *
+ * Rule targets are ints that are either an output port or, with the sign
+ * bit set, a group ID.
+ */
+public class NextHopGroups
+{
+	// First group ID used; lower IDs are left to the load balancer
+	public static final int FIRST_GROUP_ID = 0x10000000;
+
+	// Set in a rule target that is a group rather than a port
+	private static final int GROUP_TARGET = Integer.MIN_VALUE;
+
+	// Select group ID for each set of ports, failover group ID for each 
+	// primary and backup port, and the ports and type of each group
+	private Map<List<Integer>,Integer> selectIds;
+	private Map<List<Integer>,Integer> failoverIds;
+	private Map<Integer,List<Integer>> ports;
+	private Map<Integer,Byte> types;
+
+	// Next group ID to assign
+	private int nextGroupId;
+
+	// Number of rules using each group installed in a switch, keyed by
+	// switch DPID and then group ID
+	private Map<Long,Map<Integer,Integer>> references;
+
+	/**
+	 * Create an empty set of groups.
+	 */
+	public NextHopGroups()
+	{
+		this.selectIds = new HashMap<List<Integer>,Integer>();
+		this.failoverIds = new HashMap<List<Integer>,Integer>();
+		this.ports = new HashMap<Integer,List<Integer>>();
+		this.types = new HashMap<Integer,Byte>();
+		this.nextGroupId = FIRST_GROUP_ID;
+		this.references = new HashMap<Long,Map<Integer,Integer>>();
+	}
+
+	/**
+	 * Get the rule target for a set of equal-cost output ports.
+	 * @param ports the output ports, in ascending order
+	 * @return the port itself if there is only one, otherwise the group that
+	 *         spreads traffic over the ports
+	 */
+	public synchronized int getTarget(List<Integer> ports)
+	{
+		if (1 == ports.size())
+		{ return ports.get(0); }
+		return this.getGroupTarget(this.selectIds, OFGroupMod.OFPGT_SELECT,
+				ports);
+	}
+
+	/**
+	 * Get the rule target for a primary output port with a backup.
+	 * @param primary the port used while it is up
+	 * @param backup the port used while the primary port is down
+	 * @return the failover group that watches the primary port
+	 */
+	public synchronized int getFailoverTarget(int primary, int backup)
+	{
+		return this.getGroupTarget(this.failoverIds, OFGroupMod.OFPGT_FF,
+				Arrays.asList(primary, backup));
+	}
+
+	/**
+	 * Get the rule target for a group of a type over some ports, assigning a
+	 * group ID if the ports do not have one yet.
+	 */
+	private int getGroupTarget(Map<List<Integer>,Integer> groupIds, byte type,
+			List<Integer> ports)
+	{
+		Integer groupId = groupIds.get(ports);
+		if (null == groupId)
+		{
+			groupId = this.nextGroupId++;
+			List<Integer> copy = new ArrayList<Integer>(ports);
+			groupIds.put(copy, groupId);
+			this.ports.put(groupId, copy);
+			this.types.put(groupId, type);
+		}
+		return groupId | GROUP_TARGET;
+	}
+
+	/**
+	 * Check whether a rule target is a group.
+	 */
+	public static boolean isGroup(int target)
+	{ return ((target & GROUP_TARGET) != 0); }
+
+	/**
+	 * Get the group ID for a rule target that is a group.
+	 */
+	public static int getGroupId(int target)
+	{ return (target & ~GROUP_TARGET); }
+
+	/**
+	 * Get one output port of a rule target, e.g. for packets sent by the
+	 * controller rather than by a rule.
+	 * @return the port itself, or the first (for failover groups, primary) 
+	 *         port of a group
+	 */
+	public synchronized int getPort(int target)
+	{
+		if (!isGroup(target))
+		{ return target; }
+		return this.ports.get(getGroupId(target)).get(0);
+	}
+
+	/**
+	 * Record that a rule in a switch now sends to a target, installing the
+	 * target's group in the switch if no rule used it before.
+	 * @param batch the batch to which a GroupMod should be added
+	 * @param sw the switch holding the rule
+	 * @param target the rule's new target
+	 */
+	public synchronized void acquire(FlowModBatch batch, IOFSwitch sw,
+			int target)
+	{
+		if (!isGroup(target))
+		{ return; }
+		Map<Integer,Integer> counts = this.references.get(sw.getId());
+		if (null == counts)
+		{
+			counts = new HashMap<Integer,Integer>();
+			this.references.put(sw.getId(), counts);
+		}
+		int groupId = getGroupId(target);
+		Integer count = counts.get(groupId);
+		if (null == count)
+		{
+			batch.installGroup(sw, this.types.get(groupId), groupId,
+					this.getBuckets(groupId));
+			count = 0;
+		}
+		counts.put(groupId, count + 1);
+	}
+
+	/**
+	 * Record that a rule in a switch no longer sends to a target. The
+	 * target's group stays installed until {@link #removeUnused(FlowModBatch,
+	 * Map)} is called, since the rule may still be live.
+	 * @param switchId DPID for the switch holding the rule
+	 * @param target the rule's old target
+	 */
+	public synchronized void release(long switchId, int target)
+	{
+		Map<Integer,Integer> counts = this.references.get(switchId);
+		if (!isGroup(target) || null == counts)
+		{ return; }
+		int groupId = getGroupId(target);
+		Integer count = counts.get(groupId);
+		if (count != null)
+		{ counts.put(groupId, count - 1); }
+	}
+
+	/**
+	 * Remove the groups that no rule uses any more.
+	 * @param batch the batch to which GroupMods should be added
+	 * @param switches map of DPID to switch, for the connected switches
+	 */
+	public synchronized void removeUnused(FlowModBatch batch,
+			Map<Long,IOFSwitch> switches)
+	{
+		for (Map.Entry<Long,Map<Integer,Integer>> entry :
+				this.references.entrySet())
+		{
+			IOFSwitch sw = switches.get(entry.getKey());
+			Iterator<Map.Entry<Integer,Integer>> iterator =
+					entry.getValue().entrySet().iterator();
+			while (iterator.hasNext())
+			{
+				Map.Entry<Integer,Integer> count = iterator.next();
+				if (count.getValue() > 0)
+				{ continue; }
+				if (sw != null)
+				{ batch.removeGroup(sw, count.getKey()); }
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Forget every group in a switch, e.g. because it disconnected.
+	 * @param switchId DPID for the switch
+	 */
+	public synchronized void removeSwitch(long switchId)
+	{ this.references.remove(switchId); }
+
+	/**
+	 * Get the buckets of a group: one per port, in order. Select buckets 
+	 * have equal weights; failover buckets watch their own port.
+	 */
+	private List<OFBucket> getBuckets(int groupId)
+	{
+		boolean failover = (OFGroupMod.OFPGT_FF == this.types.get(groupId));
+		List<OFBucket> buckets = new ArrayList<OFBucket>();
+		for (int port : this.ports.get(groupId))
+		{
+			OFAction output = new OFActionOutput(port);
+			buckets.add(SwitchCommands.createBucket(
+					(short)(failover ? 0 : 1),
+					(failover ? port : OFPort.OFPP_ANY.getValue()), 
+					Arrays.asList(output)));
+		}
+		return buckets;
+	}
+}
@@ -0,0 +1,395 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Turns the per-host routes of each switch into the smallest set of prefix
+ * rules that forwards every host address the same way, using the Optimal
+ * Routing Table Constructor (ORTC) algorithm. Each switch's routes are kept
+ * in a binary trie of the IPv4 address space; every node holds the targets
+ * its whole prefix could be sent to with the fewest rules, and a rule is
+ * needed at a node only if the target inherited from the rules above it is
+ * not one of them. Addresses with no host keep their own target,
+ * {@link #NO_ROUTE}, so packets to them are dropped just as if the switch
+ * had no rule for them; a half of a prefix with no host gets a drop rule
+ * when the rules above it would otherwise forward it.
+ *
+ * Routes change one host at a time; only the nodes on the path to the host,
+ * and the subtrees whose inherited target changes, are visited again.
+ */
+public class PrefixAggregator
+{
+	// Target of addresses with no host; rules with it drop traffic
+	public static final int NO_ROUTE = Integer.MAX_VALUE;
+
+	// Candidate targets of a prefix with no host
+	private static final int[] NO_ROUTE_TARGETS = { NO_ROUTE };
+
+	// Root of the trie of each switch, keyed by switch DPID
+	private Map<Long,Node> roots;
+
+	// Target of each prefix rule, keyed by switch DPID and then prefix
+	private Map<Long,Map<Long,Integer>> rules;
+
+	// Prefix rules changed since the last update, mapped to their target
+	// before the first change, or null if they did not exist; keyed by
+	// switch DPID
+	private Map<Long,Map<Long,Integer>> changes;
+
+	/**
+	 * Create an aggregator with no routes.
+	 */
+	public PrefixAggregator()
+	{
+		this.roots = new HashMap<Long,Node>();
+		this.rules = new HashMap<Long,Map<Long,Integer>>();
+		this.changes = new HashMap<Long,Map<Long,Integer>>();
+	}
+
+	/**
+	 * Set the target to which a switch sends traffic for a host.
+	 * @param switchId DPID for the switch
+	 * @param ip the IPv4 address of the host
+	 * @param target the output port or group
+	 */
+	public synchronized void setRoute(long switchId, int ip, int target)
+	{
+		Node root = this.roots.get(switchId);
+		if (null == root)
+		{
+			root = new Node();
+			this.roots.put(switchId, root);
+			this.changes.put(switchId, new HashMap<Long,Integer>());
+		}
+
+		Node[] path = new Node[33];
+		path[0] = root;
+		for (int depth = 0; depth < 32; depth++)
+		{
+			int bit = getBit(ip, depth);
+			if (null == path[depth].children[bit])
+			{
+				// The drop rule for the half, if any, becomes the new node's
+				Node child = new Node();
+				if ((path[depth].holes & (1 << bit)) != 0)
+				{
+					child.rule = NO_ROUTE;
+					path[depth].holes &= ~(1 << bit);
+				}
+				path[depth].children[bit] = child;
+			}
+			path[depth + 1] = path[depth].children[bit];
+		}
+		path[32].targets = new int[] { target };
+		path[32].dirty = true;
+		updateTargets(path, 31);
+	}
+
+	/**
+	 * Forget the route a switch has for a host.
+	 * @param switchId DPID for the switch
+	 * @param ip the IPv4 address of the host
+	 */
+	public synchronized void removeRoute(long switchId, int ip)
+	{
+		Node root = this.roots.get(switchId);
+		if (null == root)
+		{ return; }
+
+		Node[] path = new Node[33];
+		path[0] = root;
+		for (int depth = 0; depth < 32; depth++)
+		{
+			path[depth + 1] = path[depth].children[getBit(ip, depth)];
+			if (null == path[depth + 1])
+			{ return; }
+		}
+
+		// Prune the nodes left with no host below them, with their rules
+		int depth = 32;
+		while (depth > 0 && (32 == depth || path[depth].isEmpty()))
+		{
+			this.removeRules(switchId, path[depth], ip, depth);
+			path[depth - 1].children[getBit(ip, depth - 1)] = null;
+			depth--;
+		}
+		updateTargets(path, depth);
+	}
+
+	/**
+	 * Forget every route and rule in a switch, e.g. because it disconnected.
+	 * @param switchId DPID for the switch
+	 */
+	public synchronized void removeSwitch(long switchId)
+	{
+		this.roots.remove(switchId);
+		this.rules.remove(switchId);
+		this.changes.remove(switchId);
+	}
+
+	/**
+	 * Choose the prefix rules for the routes set since the last update.
+	 * @return the prefixes whose rules changed, mapped to the target of
+	 *         their old rule, or null if they had none, keyed by switch DPID;
+	 *         {@link #getRule(long, long)} gives their new rules
+	 */
+	public synchronized Map<Long,Map<Long,Integer>> update()
+	{
+		Map<Long,Map<Long,Integer>> updated =
+				new HashMap<Long,Map<Long,Integer>>();
+		for (Map.Entry<Long,Node> entry : this.roots.entrySet())
+		{
+			long switchId = entry.getKey();
+			this.assign(switchId, entry.getValue(), 0, 0, NO_ROUTE);
+
+			// Leave out rules that changed back to what they were
+			Map<Long,Integer> changed = this.changes.get(switchId);
+			Iterator<Map.Entry<Long,Integer>> iterator =
+					changed.entrySet().iterator();
+			while (iterator.hasNext())
+			{
+				Map.Entry<Long,Integer> change = iterator.next();
+				Integer rule = this.getRule(switchId, change.getKey());
+				if ((null == rule ? null == change.getValue()
+						: rule.equals(change.getValue())))
+				{ iterator.remove(); }
+			}
+			if (!changed.isEmpty())
+			{
+				updated.put(switchId, changed);
+				this.changes.put(switchId, new HashMap<Long,Integer>());
+			}
+		}
+		return updated;
+	}
+
+	/**
+	 * Get the rule a switch should have for a prefix.
+	 * @param switchId DPID for the switch
+	 * @param prefix the prefix, as from {@link #getPrefix(int, int)}
+	 * @return the target of the rule, or null if the switch needs no rule
+	 */
+	public synchronized Integer getRule(long switchId, long prefix)
+	{
+		Map<Long,Integer> switchRules = this.rules.get(switchId);
+		return (null == switchRules ? null : switchRules.get(prefix));
+	}
+
+	/**
+	 * Get the number of prefix rules a switch needs.
+	 * @param switchId DPID for the switch
+	 */
+	public synchronized int getRuleCount(long switchId)
+	{
+		Map<Long,Integer> switchRules = this.rules.get(switchId);
+		return (null == switchRules ? 0 : switchRules.size());
+	}
+
+	/**
+	 * Identify the prefix of an address.
+	 * @param ip the IPv4 address
+	 * @param length the prefix length, from 0 to 32
+	 */
+	public static long getPrefix(int ip, int length)
+	{ return (((ip & getMask(length)) & 0xffffffffL) << 8) | length; }
+
+	/**
+	 * Get the network address of a prefix.
+	 */
+	public static int getAddress(long prefix)
+	{ return (int)(prefix >>> 8); }
+
+	/**
+	 * Get the length of a prefix.
+	 */
+	public static int getLength(long prefix)
+	{ return (int)(prefix & 0xff); }
+
+	/**
+	 * Get the netmask for a prefix length.
+	 */
+	public static int getMask(int length)
+	{ return (0 == length ? 0 : -1 << (32 - length)); }
+
+	private static int getBit(int ip, int depth)
+	{ return (ip >>> (31 - depth)) & 1; }
+
+	/**
+	 * Recompute the candidate targets of the nodes on a path, from a depth
+	 * up to the root.
+	 */
+	private static void updateTargets(Node[] path, int depth)
+	{
+		for (; depth >= 0; depth--)
+		{
+			Node node = path[depth];
+			node.targets = combine(getTargets(node.children[0]),
+					getTargets(node.children[1]));
+			node.dirty = true;
+		}
+	}
+
+	private static int[] getTargets(Node node)
+	{ return (null == node ? NO_ROUTE_TARGETS : node.targets); }
+
+	/**
+	 * Get the candidate targets of a prefix from those of its halves: the
+	 * targets both halves share if there are any, since a rule for the
+	 * prefix then covers both, and otherwise all of them.
+	 */
+	private static int[] combine(int[] a, int[] b)
+	{
+		int[] shared = new int[Math.min(a.length, b.length)];
+		int count = 0;
+		for (int i = 0, j = 0; i < a.length && j < b.length; )
+		{
+			if (a[i] == b[j])
+			{
+				shared[count++] = a[i];
+				i++;
+				j++;
+			}
+			else if (a[i] < b[j])
+			{ i++; }
+			else
+			{ j++; }
+		}
+		if (count > 0)
+		{ return (count == a.length ? a : Arrays.copyOf(shared, count)); }
+
+		int[] all = new int[a.length + b.length];
+		count = 0;
+		int i = 0;
+		int j = 0;
+		while (i < a.length || j < b.length)
+		{
+			if (j >= b.length || (i < a.length && a[i] < b[j]))
+			{ all[count++] = a[i++]; }
+			else
+			{ all[count++] = b[j++]; }
+		}
+		return all;
+	}
+
+	/**
+	 * Choose the rules for a subtree, given the target its addresses get
+	 * from the rules above it. Subtrees that have not changed, and whose
+	 * inherited target is the same as before, are skipped.
+	 */
+	private void assign(long switchId, Node node, int ip, int depth,
+			int inherited)
+	{
+		if (!node.dirty && node.inherited == inherited)
+		{ return; }
+		node.dirty = false;
+		node.inherited = inherited;
+
+		// Keep the current rule while it is still a candidate, so routes do
+		// not change for no reason
+		Integer rule = null;
+		if (Arrays.binarySearch(node.targets, inherited) < 0)
+		{
+			rule = node.targets[0];
+			if (node.rule != null
+					&& Arrays.binarySearch(node.targets, node.rule) >= 0)
+			{ rule = node.rule; }
+		}
+		if ((null == rule ? node.rule != null : !rule.equals(node.rule)))
+		{
+			this.setRule(switchId, getPrefix(ip, depth), node.rule, rule);
+			node.rule = rule;
+		}
+
+		int target = (null == rule ? inherited : rule);
+		for (int bit = 0; bit < 2 && depth < 32; bit++)
+		{
+			int half = ip | (bit << (31 - depth));
+			if (node.children[bit] != null)
+			{
+				this.assign(switchId, node.children[bit], half, depth + 1,
+						target);
+				continue;
+			}
+
+			// A half with no host must not be forwarded
+			boolean hole = (target != NO_ROUTE);
+			if (hole == ((node.holes & (1 << bit)) != 0))
+			{ continue; }
+			node.holes ^= (1 << bit);
+			this.setRule(switchId, getPrefix(half, depth + 1),
+					(hole ? null : NO_ROUTE), (hole ? NO_ROUTE : null));
+		}
+	}
+
+	/**
+	 * Remove the rules of a node with no host below it.
+	 */
+	private void removeRules(long switchId, Node node, int ip, int depth)
+	{
+		if (node.rule != null)
+		{ this.setRule(switchId, getPrefix(ip, depth), node.rule, null); }
+		for (int bit = 0; bit < 2 && depth < 32; bit++)
+		{
+			if ((node.holes & (1 << bit)) != 0)
+			{
+				int half = (ip & getMask(depth)) | (bit << (31 - depth));
+				this.setRule(switchId, getPrefix(half, depth + 1), NO_ROUTE,
+						null);
+			}
+		}
+	}
+
+	/**
+	 * Record that the rule a switch should have for a prefix changed.
+	 */
+	private void setRule(long switchId, long prefix, Integer oldRule,
+			Integer newRule)
+	{
+		Map<Long,Integer> switchRules = this.rules.get(switchId);
+		if (null == switchRules)
+		{
+			switchRules = new HashMap<Long,Integer>();
+			this.rules.put(switchId, switchRules);
+		}
+		if (null == newRule)
+		{ switchRules.remove(prefix); }
+		else
+		{ switchRules.put(prefix, newRule); }
+
+		Map<Long,Integer> changed = this.changes.get(switchId);
+		if (!changed.containsKey(prefix))
+		{ changed.put(prefix, oldRule); }
+	}
+
+	/**
+	 * A prefix in a switch's trie. Leaves are /32 host routes.
+	 */
+	private static class Node
+	{
+		// Halves of the prefix that contain hosts
+		private final Node[] children = new Node[2];
+
+		// Targets, in ascending order, that the prefix could be sent to
+		// with the fewest rules below it
+		private int[] targets = NO_ROUTE_TARGETS;
+
+		// Target of the prefix's rule, or null if it needs none
+		private Integer rule;
+
+		// Halves with no host that have a drop rule, as bits 0 and 1
+		private int holes;
+
+		// Target the prefix got from the rules above it when its rules were
+		// last chosen
+		private int inherited;
+
+		// Whether the candidate targets changed since rules were chosen
+		private boolean dirty = true;
+
+		private boolean isEmpty()
+		{ return (null == this.children[0] && null == this.children[1]); }
+	}
+}
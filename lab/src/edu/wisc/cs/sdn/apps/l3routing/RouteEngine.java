@@ -0,0 +1,624 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.wisc.cs.sdn.apps.util.LongIntHashMap;
+
+import net.floodlightcontroller.routing.Link;
+
+/**
+ * Maintains a shortest-path tree towards every switch in the network and
+ * updates only the trees affected when links are added or removed, or their
+ * costs change. Link costs come from a pluggable {@link LinkCostModel}.
+ * Switches are given dense indices that stay stable for as long as the switch
+ * is known, so the trees can be stored as primitive arrays and survive
+ * rebuilds of the topology snapshot.
+ */
+public class RouteEngine
+{
+	// Cost of the path of a switch with no path to the destination
+	private static final int UNREACHABLE = Integer.MAX_VALUE;
+
+	// Next hop of a switch with no path to the destination
+	private static final int NONE = -1;
+
+	// Maps switch DPID to index
+	private LongIntHashMap switchIndex;
+
+	// DPID for each index; 0 marks a free index
+	private long[] dpids;
+
+	// One more than the largest index ever assigned
+	private int size;
+
+	// Indices released by removed switches, available for reuse
+	private int[] freeIndices;
+
+	// Number of entries in freeIndices
+	private int freeCount;
+
+	// Links between switches in the current snapshot
+	private List<Link> links;
+
+	// Current snapshot of the topology
+	private TopologyGraph graph;
+
+	// Assigns each link its cost
+	private LinkCostModel costModel;
+
+	// Shortest-path trees, indexed by destination switch; null if unused
+	private ShortestPathTree[] trees;
+
+	// Scratch space reused across tree repairs
+	private DistanceHeap heap;
+	private boolean[] detached;
+	private int[] queue;
+
+	/**
+	 * Create an empty route engine.
+	 */
+	public RouteEngine()
+	{
+		int capacity = 16;
+		this.switchIndex = new LongIntHashMap(capacity);
+		this.dpids = new long[capacity];
+		this.freeIndices = new int[capacity];
+		this.links = new ArrayList<Link>();
+		this.trees = new ShortestPathTree[capacity];
+		this.heap = new DistanceHeap(capacity);
+		this.detached = new boolean[capacity];
+		this.queue = new int[capacity];
+		this.costModel = new HopCountCostModel();
+		this.graph = new TopologyGraph(this.dpids, 0, this.links, 
+				this.costModel);
+	}
+
+	/**
+	 * Add a switch with no links to the topology.
+	 * @param switchId DPID for the switch
+	 */
+	public synchronized void addSwitch(long switchId)
+	{
+		if (this.register(switchId))
+		{ this.graph = this.buildGraph(); }
+	}
+
+	/**
+	 * Remove a switch, and all links to and from it, from the topology.
+	 * @param switchId DPID for the switch
+	 * @return DPIDs of the destination switches whose routes changed
+	 */
+	public synchronized Set<Long> removeSwitch(long switchId)
+	{ return this.removeSwitches(Collections.singleton(switchId)); }
+
+	/**
+	 * Remove several switches, and all links to and from them, from the
+	 * topology, repairing the affected trees once.
+	 * @param switchIds DPIDs for the switches
+	 * @return DPIDs of the destination switches whose routes changed
+	 */
+	public synchronized Set<Long> removeSwitches(Collection<Long> switchIds)
+	{
+		List<Long> removed = new ArrayList<Long>();
+		for (Long switchId : switchIds)
+		{
+			int index = this.switchIndex.get(switchId);
+			if (index < 0)
+			{ continue; }
+			this.dpids[index] = 0;
+			this.trees[index] = null;
+			removed.add(switchId);
+		}
+		if (removed.isEmpty())
+		{ return new HashSet<Long>(); }
+
+		// Drop the switches from the snapshot, which drops their links too
+		Set<Long> changed = this.replaceGraph(this.buildGraph());
+
+		for (Long switchId : removed)
+		{
+			this.freeIndices[this.freeCount++] =
+					this.switchIndex.remove(switchId);
+		}
+		return changed;
+	}
+
+	/**
+	 * Replace the set of links in the topology and repair every tree that
+	 * the difference between the old and new links affects. Links to or from
+	 * switches that have not been added are ignored.
+	 * @param links all links between switches in the network
+	 * @return DPIDs of the destination switches whose routes changed
+	 */
+	public synchronized Set<Long> updateLinks(Collection<Link> links)
+	{
+		this.links = new ArrayList<Link>(links);
+		return this.replaceGraph(this.buildGraph());
+	}
+
+	/**
+	 * Replace the link cost model and repair every tree whose links' costs
+	 * changed.
+	 * @param costModel the new model
+	 * @return DPIDs of the destination switches whose routes changed
+	 */
+	public synchronized Set<Long> setCostModel(LinkCostModel costModel)
+	{
+		this.costModel = costModel;
+		return this.replaceGraph(this.buildGraph());
+	}
+
+	/**
+	 * Ask the cost model for the cost of every link again, e.g. because the
+	 * measurements it relies on changed, and repair every tree whose links'
+	 * costs changed.
+	 * @return DPIDs of the destination switches whose routes changed
+	 */
+	public synchronized Set<Long> refreshCosts()
+	{ return this.replaceGraph(this.buildGraph()); }
+
+	/**
+	 * Get the port out which each switch should forward traffic destined for
+	 * hosts attached to a particular switch. The result is computed once per
+	 * change to the destination's tree and shared by all callers.
+	 * @param dst DPID for the destination switch
+	 * @return unmodifiable map of switch DPID to output port; the destination
+	 *         switch and switches with no path to it are excluded
+	 */
+	public synchronized Map<Long,Integer> getRoutes(long dst)
+	{
+		int index = this.switchIndex.get(dst);
+		if (index < 0)
+		{ return Collections.emptyMap(); }
+		ShortestPathTree tree = this.trees[index];
+		if (null == tree.routes)
+		{
+			Map<Long,Integer> routes = new HashMap<Long,Integer>();
+			for (int i = 0; i < this.size; i++)
+			{
+				if (tree.nextHop[i] != NONE)
+				{ routes.put(this.dpids[i], tree.outPort[i]); }
+			}
+			tree.routes = Collections.unmodifiableMap(routes);
+		}
+		return tree.routes;
+	}
+
+	/**
+	 * Get every port out which each switch can forward traffic destined for
+	 * hosts attached to a particular switch along a shortest path. The result
+	 * is computed once per change to the destination's tree and shared by 
+	 * all callers.
+	 * @param dst DPID for the destination switch
+	 * @return unmodifiable map of switch DPID to the output ports of its 
+	 *         equal-cost next hops, in ascending order; the destination 
+	 *         switch and switches with no path to it are excluded
+	 */
+	public synchronized Map<Long,List<Integer>> getNextHops(long dst)
+	{
+		int index = this.switchIndex.get(dst);
+		if (index < 0)
+		{ return Collections.emptyMap(); }
+		ShortestPathTree tree = this.trees[index];
+		if (null == tree.nextHops)
+		{
+			TopologyGraph g = this.graph;
+			Map<Long,List<Integer>> nextHops = 
+					new HashMap<Long,List<Integer>>();
+			for (int i = 0; i < this.size; i++)
+			{
+				if (NONE == tree.nextHop[i])
+				{ continue; }
+				List<Integer> ports = new ArrayList<Integer>();
+				for (int k = g.outOffsets[i]; k < g.outOffsets[i + 1]; k++)
+				{
+					int neighbor = g.outTargets[k];
+					if (tree.distance[neighbor] != UNREACHABLE
+							&& tree.distance[neighbor] + g.outCosts[k] 
+									== tree.distance[i])
+					{ ports.add(g.outPorts[k]); }
+				}
+				Collections.sort(ports);
+				nextHops.put(this.dpids[i], 
+						Collections.unmodifiableList(ports));
+			}
+			tree.nextHops = Collections.unmodifiableMap(nextHops);
+		}
+		return tree.nextHops;
+	}
+
+	/**
+	 * Get a loop-free alternate next hop for each switch towards a particular
+	 * switch, for use when the link to the switch's next hop fails. As in
+	 * RFC 5286, a neighbor N of a switch S is loop-free towards destination D
+	 * if dist(N,D) < dist(N,S) + dist(S,D), i.e. its own shortest path does
+	 * not go back through S; dist(N,S) is read from the tree towards S, so
+	 * links may cost different amounts in each direction. The neighbor with
+	 * the smallest dist(N,D) is chosen. The result is computed once per
+	 * change to the destination's tree and shared by all callers.
+	 * @param dst DPID for the destination switch
+	 * @return unmodifiable map of switch DPID to the output port of the
+	 *         alternate; switches with no alternate are excluded
+	 */
+	public synchronized Map<Long,Integer> getAlternates(long dst)
+	{
+		int index = this.switchIndex.get(dst);
+		if (index < 0)
+		{ return Collections.emptyMap(); }
+		ShortestPathTree tree = this.trees[index];
+		if (null == tree.alternates)
+		{
+			TopologyGraph g = this.graph;
+			Map<Long,Integer> alternates = new HashMap<Long,Integer>();
+			for (int i = 0; i < this.size; i++)
+			{
+				if (NONE == tree.nextHop[i] || null == this.trees[i])
+				{ continue; }
+				int[] toSwitch = this.trees[i].distance;
+				int best = NONE;
+				for (int k = g.outOffsets[i]; k < g.outOffsets[i + 1]; k++)
+				{
+					int neighbor = g.outTargets[k];
+					if (g.outPorts[k] == tree.outPort[i]
+							|| UNREACHABLE == tree.distance[neighbor])
+					{ continue; }
+
+					// dist(N,D) < dist(N,S) + dist(S,D); an unreachable S
+					// counts as infinitely far
+					if (toSwitch[neighbor] != UNREACHABLE
+							&& (long)tree.distance[neighbor] >= 
+									(long)toSwitch[neighbor] + tree.distance[i])
+					{ continue; }
+					if (NONE == best || tree.distance[neighbor] 
+							< tree.distance[g.outTargets[best]])
+					{ best = k; }
+				}
+				if (best != NONE)
+				{ alternates.put(this.dpids[i], g.outPorts[best]); }
+			}
+			tree.alternates = Collections.unmodifiableMap(alternates);
+		}
+		return tree.alternates;
+	}
+
+	/**
+	 * Assign an index to a switch, if it does not already have one.
+	 * @return true if the switch was not previously known
+	 */
+	private boolean register(long switchId)
+	{
+		if (this.switchIndex.containsKey(switchId))
+		{ return false; }
+		int index;
+		if (this.freeCount > 0)
+		{ index = this.freeIndices[--this.freeCount]; }
+		else
+		{
+			index = this.size++;
+			if (this.size > this.dpids.length)
+			{ this.grow(this.dpids.length * 2); }
+		}
+		this.switchIndex.put(switchId, index);
+		this.dpids[index] = switchId;
+		this.trees[index] = new ShortestPathTree(index, this.dpids.length);
+		return true;
+	}
+
+	/**
+	 * Resize every per-switch array.
+	 */
+	private void grow(int capacity)
+	{
+		this.dpids = Arrays.copyOf(this.dpids, capacity);
+		this.freeIndices = Arrays.copyOf(this.freeIndices, capacity);
+		this.trees = Arrays.copyOf(this.trees, capacity);
+		this.detached = Arrays.copyOf(this.detached, capacity);
+		this.queue = Arrays.copyOf(this.queue, capacity);
+		this.heap.ensureCapacity(capacity);
+		for (ShortestPathTree tree : this.trees)
+		{
+			if (tree != null)
+			{ tree.ensureCapacity(capacity); }
+		}
+	}
+
+	/**
+	 * Build a snapshot of the current switches and links.
+	 */
+	private TopologyGraph buildGraph()
+	{
+		return new TopologyGraph(this.dpids, this.size, this.links,
+				this.costModel);
+	}
+
+	/**
+	 * Switch to a new snapshot and repair the trees affected by the links
+	 * that differ between the old and new snapshots. A link whose cost 
+	 * changed is handled as removed and added again. Removed links are
+	 * handled before added links, and every repair works on the new snapshot.
+	 * @return DPIDs of the destination switches whose routes changed
+	 */
+	private Set<Long> replaceGraph(TopologyGraph next)
+	{
+		TopologyGraph prev = this.graph;
+		this.graph = next;
+		boolean[] changed = new boolean[this.size];
+
+		for (int pass = 0; pass < 2; pass++)
+		{
+			boolean removals = (0 == pass);
+			TopologyGraph from = (removals ? prev : next);
+			TopologyGraph to = (removals ? next : prev);
+			for (int u = 0; u < from.size(); u++)
+			{
+				int j = (u < to.size() ? to.outOffsets[u] : 0);
+				int otherEnd = (u < to.size() ? to.outOffsets[u + 1] : 0);
+				for (int i = from.outOffsets[u]; i < from.outOffsets[u + 1];
+						i++)
+				{
+					// Skip links in the other snapshot that sort earlier
+					while (j < otherEnd && compare(to, j, from, i) < 0)
+					{ j++; }
+					if (j < otherEnd && 0 == compare(to, j, from, i)
+							&& to.outCosts[j] == from.outCosts[i])
+					{ continue; }
+					if (removals)
+					{
+						this.repairRemovedLink(u, from.outTargets[i],
+								from.outPorts[i], from.outCosts[i], changed);
+					}
+					else
+					{
+						this.repairAddedLink(u, from.outTargets[i],
+								from.outPorts[i], from.outCosts[i], changed);
+					}
+				}
+			}
+		}
+
+		Set<Long> result = new HashSet<Long>();
+		for (int i = 0; i < this.size; i++)
+		{
+			if (changed[i] && this.trees[i] != null)
+			{ result.add(this.dpids[i]); }
+		}
+
+		// Alternates towards any switch depend on the trees towards every
+		// other switch
+		if (!result.isEmpty())
+		{
+			for (int i = 0; i < this.size; i++)
+			{
+				if (this.trees[i] != null)
+				{ this.trees[i].alternates = null; }
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Compare two outgoing links by neighbor, then port.
+	 */
+	private static int compare(TopologyGraph a, int i, TopologyGraph b, int j)
+	{
+		if (a.outTargets[i] != b.outTargets[j])
+		{ return (a.outTargets[i] < b.outTargets[j] ? -1 : 1); }
+		if (a.outPorts[i] != b.outPorts[j])
+		{ return (a.outPorts[i] < b.outPorts[j] ? -1 : 1); }
+		return 0;
+	}
+
+	/**
+	 * Shorten paths in every tree that can use a newly added link.
+	 * @param src index of the switch at the source of the link
+	 * @param dst index of the switch at the destination of the link
+	 * @param port port on the source switch
+	 * @param cost cost of the link
+	 * @param changed flags the destinations whose trees changed
+	 */
+	private void repairAddedLink(int src, int dst, int port, int cost,
+			boolean[] changed)
+	{
+		for (int d = 0; d < this.size; d++)
+		{
+			ShortestPathTree tree = this.trees[d];
+			if (null == tree || UNREACHABLE == tree.distance[dst])
+			{ continue; }
+			
+			// The link is no cheaper, but may be one more equal-cost next hop
+			// or a loop-free alternate for the source
+			if (tree.distance[dst] + cost >= tree.distance[src])
+			{
+				if (tree.distance[dst] < tree.distance[src] + cost)
+				{
+					tree.invalidate();
+					changed[d] = true;
+				}
+				continue;
+			}
+
+			// The source (and possibly switches behind it) got closer
+			tree.setHop(src, tree.distance[dst] + cost, dst, port);
+			this.heap.offer(src, tree.distance[src]);
+			this.propagate(tree);
+			changed[d] = true;
+		}
+	}
+
+	/**
+	 * Reroute every tree that used a removed link.
+	 * @param src index of the switch at the source of the link
+	 * @param dst index of the switch at the destination of the link
+	 * @param port port on the source switch
+	 * @param cost cost the link had
+	 * @param changed flags the destinations whose trees changed
+	 */
+	private void repairRemovedLink(int src, int dst, int port, int cost,
+			boolean[] changed)
+	{
+		TopologyGraph g = this.graph;
+		for (int d = 0; d < this.size; d++)
+		{
+			ShortestPathTree tree = this.trees[d];
+			if (null == tree)
+			{ continue; }
+			if (tree.nextHop[src] != dst || tree.outPort[src] != port)
+			{
+				// The link may have been an equal-cost next hop other than 
+				// the one the tree follows, or a loop-free alternate, in 
+				// which case only those changed
+				if (tree.distance[dst] != UNREACHABLE
+						&& tree.distance[src] != UNREACHABLE
+						&& tree.distance[dst] < tree.distance[src] + cost)
+				{
+					tree.invalidate();
+					changed[d] = true;
+				}
+				continue;
+			}
+
+			// Detach the subtree of switches whose path used the link
+			int head = 0, tail = 0;
+			this.queue[tail++] = src;
+			this.detached[src] = true;
+			while (head < tail)
+			{
+				int current = this.queue[head++];
+				for (int k = g.inOffsets[current];
+						k < g.inOffsets[current + 1]; k++)
+				{
+					int neighbor = g.inSources[k];
+					if (!this.detached[neighbor]
+							&& tree.nextHop[neighbor] == current
+							&& tree.outPort[neighbor] == g.inPorts[k])
+					{
+						this.detached[neighbor] = true;
+						this.queue[tail++] = neighbor;
+					}
+				}
+			}
+			for (int q = 0; q < tail; q++)
+			{ tree.clear(this.queue[q]); }
+
+			// Reattach detached switches through their remaining neighbors
+			for (int q = 0; q < tail; q++)
+			{
+				int sw = this.queue[q];
+				for (int k = g.outOffsets[sw]; k < g.outOffsets[sw + 1]; k++)
+				{
+					int neighbor = g.outTargets[k];
+					if (this.detached[neighbor]
+							|| UNREACHABLE == tree.distance[neighbor])
+					{ continue; }
+					if (tree.distance[neighbor] + g.outCosts[k] 
+							< tree.distance[sw])
+					{
+						tree.setHop(sw, tree.distance[neighbor] + g.outCosts[k],
+								neighbor, g.outPorts[k]);
+					}
+				}
+				if (tree.distance[sw] != UNREACHABLE)
+				{ this.heap.offer(sw, tree.distance[sw]); }
+			}
+			for (int q = 0; q < tail; q++)
+			{ this.detached[this.queue[q]] = false; }
+			this.propagate(tree);
+			changed[d] = true;
+		}
+	}
+
+	/**
+	 * Drain the heap, shortening the paths of switches that can reach the
+	 * destination through a switch whose path got cheaper.
+	 */
+	private void propagate(ShortestPathTree tree)
+	{
+		TopologyGraph g = this.graph;
+		while (!this.heap.isEmpty())
+		{
+			int sw = this.heap.poll();
+			for (int k = g.inOffsets[sw]; k < g.inOffsets[sw + 1]; k++)
+			{
+				int neighbor = g.inSources[k];
+				int distance = tree.distance[sw] + g.inCosts[k];
+				if (distance < tree.distance[neighbor])
+				{
+					tree.setHop(neighbor, distance, sw, g.inPorts[k]);
+					this.heap.offer(neighbor, distance);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Path costs and next hops from every switch towards one destination.
+	 */
+	private static class ShortestPathTree
+	{
+		// Cost of the path to the destination, or UNREACHABLE
+		private int[] distance;
+
+		// Index of the next switch on the path to the destination, or NONE
+		private int[] nextHop;
+
+		// Port out which traffic is sent to the next switch
+		private int[] outPort;
+
+		// Snapshots of the output ports, of the ports of all equal-cost
+		// next hops, and of the ports of loop-free alternates; null if the 
+		// tree changed since the snapshot was taken
+		private Map<Long,Integer> routes;
+		private Map<Long,List<Integer>> nextHops;
+		private Map<Long,Integer> alternates;
+
+		private ShortestPathTree(int destination, int capacity)
+		{
+			this.distance = new int[capacity];
+			this.nextHop = new int[capacity];
+			this.outPort = new int[capacity];
+			Arrays.fill(this.distance, UNREACHABLE);
+			Arrays.fill(this.nextHop, NONE);
+			this.distance[destination] = 0;
+		}
+
+		private void ensureCapacity(int capacity)
+		{
+			int oldCapacity = this.distance.length;
+			this.distance = Arrays.copyOf(this.distance, capacity);
+			this.nextHop = Arrays.copyOf(this.nextHop, capacity);
+			this.outPort = Arrays.copyOf(this.outPort, capacity);
+			Arrays.fill(this.distance, oldCapacity, capacity, UNREACHABLE);
+			Arrays.fill(this.nextHop, oldCapacity, capacity, NONE);
+		}
+
+		private void setHop(int sw, int cost, int next, int port)
+		{
+			this.distance[sw] = cost;
+			this.nextHop[sw] = next;
+			this.outPort[sw] = port;
+			this.invalidate();
+		}
+
+		private void clear(int sw)
+		{
+			this.distance[sw] = UNREACHABLE;
+			this.nextHop[sw] = NONE;
+			this.invalidate();
+		}
+
+		private void invalidate()
+		{
+			this.routes = null;
+			this.nextHops = null;
+			this.alternates = null;
+		}
+	}
+}
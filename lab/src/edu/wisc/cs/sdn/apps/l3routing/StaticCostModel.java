@@ -0,0 +1,83 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.floodlightcontroller.routing.Link;
+
+/**
+ * Gives links configured costs, keyed by the switch and port at the source
+ * of the link. Links without a configured cost get a default cost.
+ */
+public class StaticCostModel implements LinkCostModel
+{
+	// Cost of links without a configured cost
+	private int defaultCost;
+
+	// Configured costs, keyed by source switch DPID and then port
+	private ConcurrentHashMap<Long,ConcurrentHashMap<Integer,Integer>> costs;
+
+	/**
+	 * Create a model with no configured costs.
+	 * @param defaultCost cost of links without a configured cost
+	 */
+	public StaticCostModel(int defaultCost)
+	{
+		this.defaultCost = defaultCost;
+		this.costs = new ConcurrentHashMap<Long,
+				ConcurrentHashMap<Integer,Integer>>();
+	}
+
+	/**
+	 * Create a model from a configuration string.
+	 * @param config comma-separated costs, each written as dpid:port=cost,
+	 *        e.g. "1:2=10,2:1=10"
+	 * @param defaultCost cost of links without a configured cost
+	 * @throws IllegalArgumentException if the string is malformed
+	 */
+	public static StaticCostModel parse(String config, int defaultCost)
+	{
+		StaticCostModel model = new StaticCostModel(defaultCost);
+		for (String entry : config.split(","))
+		{
+			entry = entry.trim();
+			if (entry.isEmpty())
+			{ continue; }
+			String[] parts = entry.split("[:=]");
+			if (parts.length != 3)
+			{ throw new IllegalArgumentException("Bad link cost: " + entry); }
+			model.setCost(Long.parseLong(parts[0].trim()),
+					Integer.parseInt(parts[1].trim()),
+					Integer.parseInt(parts[2].trim()));
+		}
+		return model;
+	}
+
+	/**
+	 * Set the cost of the link out a switch port.
+	 * @param switchId DPID for the switch at the source of the link
+	 * @param port the port on the switch
+	 * @param cost the cost of the link
+	 */
+	public void setCost(long switchId, int port, int cost)
+	{
+		ConcurrentHashMap<Integer,Integer> ports = this.costs.get(switchId);
+		if (null == ports)
+		{
+			ports = new ConcurrentHashMap<Integer,Integer>();
+			ConcurrentHashMap<Integer,Integer> existing =
+					this.costs.putIfAbsent(switchId, ports);
+			if (existing != null)
+			{ ports = existing; }
+		}
+		ports.put(port, cost);
+	}
+
+	@Override
+	public int getCost(Link link)
+	{
+		ConcurrentHashMap<Integer,Integer> ports =
+				this.costs.get(link.getSrc());
+		Integer cost = (null == ports ? null : ports.get(link.getSrcPort()));
+		return (null == cost ? this.defaultCost : cost);
+	}
+}
@@ -0,0 +1,179 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+import java.util.Collection;
+
+import edu.wisc.cs.sdn.apps.util.LongIntHashMap;
+
+import net.floodlightcontroller.routing.Link;
+
+/**
+ * Immutable snapshot of the switch-to-switch links in the network, stored as
+ * compressed sparse row (CSR) adjacency arrays over dense switch indices.
+ * The links leaving switch i are at positions [outOffsets[i], outOffsets[i+1])
+ * of the out arrays, sorted by neighbor and port; the links entering switch i
+ * are laid out the same way in the in arrays.
+ */
+public class TopologyGraph
+{
+	// DPID for each switch index; 0 marks an unused index
+	final long[] dpids;
+
+	// Start of each switch's outgoing links, plus a final end marker
+	final int[] outOffsets;
+
+	// Index of the switch at the far end of each outgoing link
+	final int[] outTargets;
+
+	// Port on the local switch for each outgoing link
+	final int[] outPorts;
+
+	// Cost of each outgoing link
+	final int[] outCosts;
+
+	// Start of each switch's incoming links, plus a final end marker
+	final int[] inOffsets;
+
+	// Index of the switch at the near end of each incoming link
+	final int[] inSources;
+
+	// Port on the near-end switch for each incoming link
+	final int[] inPorts;
+
+	// Cost of each incoming link
+	final int[] inCosts;
+
+	// Maps switch DPID to index
+	private final LongIntHashMap index;
+
+	/**
+	 * Build a snapshot of a set of links.
+	 * @param dpids DPID for each switch index; 0 marks an unused index
+	 * @param size number of indices in use, including unused ones
+	 * @param links the links to include; links to or from switches that do
+	 *        not have an index are ignored
+	 * @param costModel assigns each link its cost
+	 */
+	public TopologyGraph(long[] dpids, int size, Collection<Link> links,
+			LinkCostModel costModel)
+	{
+		this.dpids = new long[size];
+		System.arraycopy(dpids, 0, this.dpids, 0, size);
+		this.index = new LongIntHashMap(size);
+		for (int i = 0; i < size; i++)
+		{
+			if (dpids[i] != 0)
+			{ this.index.put(dpids[i], i); }
+		}
+
+		// Resolve link endpoints and count the degree of each switch
+		int[] srcs = new int[links.size()];
+		int[] dsts = new int[links.size()];
+		int[] ports = new int[links.size()];
+		int[] costs = new int[links.size()];
+		int count = 0;
+		this.outOffsets = new int[size + 1];
+		this.inOffsets = new int[size + 1];
+		for (Link link : links)
+		{
+			int src = this.index.get(link.getSrc());
+			int dst = this.index.get(link.getDst());
+			if (src < 0 || dst < 0 || src == dst)
+			{ continue; }
+			srcs[count] = src;
+			dsts[count] = dst;
+			ports[count] = link.getSrcPort();
+			costs[count] = Math.max(1, Math.min(LinkCostModel.MAX_COST,
+					costModel.getCost(link)));
+			this.outOffsets[src + 1]++;
+			this.inOffsets[dst + 1]++;
+			count++;
+		}
+		for (int i = 0; i < size; i++)
+		{
+			this.outOffsets[i + 1] += this.outOffsets[i];
+			this.inOffsets[i + 1] += this.inOffsets[i];
+		}
+
+		// Scatter the links into their rows
+		this.outTargets = new int[count];
+		this.outPorts = new int[count];
+		this.outCosts = new int[count];
+		this.inSources = new int[count];
+		this.inPorts = new int[count];
+		this.inCosts = new int[count];
+		int[] outFill = new int[size];
+		int[] inFill = new int[size];
+		for (int k = 0; k < count; k++)
+		{
+			int out = this.outOffsets[srcs[k]] + outFill[srcs[k]]++;
+			this.outTargets[out] = dsts[k];
+			this.outPorts[out] = ports[k];
+			this.outCosts[out] = costs[k];
+			int in = this.inOffsets[dsts[k]] + inFill[dsts[k]]++;
+			this.inSources[in] = srcs[k];
+			this.inPorts[in] = ports[k];
+			this.inCosts[in] = costs[k];
+		}
+		for (int i = 0; i < size; i++)
+		{
+			sortRow(this.outTargets, this.outPorts, this.outCosts,
+					this.outOffsets[i], this.outOffsets[i + 1]);
+			sortRow(this.inSources, this.inPorts, this.inCosts,
+					this.inOffsets[i], this.inOffsets[i + 1]);
+		}
+	}
+
+	/**
+	 * Get the number of switch indices covered by the snapshot.
+	 */
+	public int size()
+	{ return this.dpids.length; }
+
+	/**
+	 * Get the number of links in the snapshot.
+	 */
+	public int getLinkCount()
+	{ return this.outTargets.length; }
+
+	/**
+	 * Get the DPID for a switch index.
+	 * @return the DPID, 0 if the index is unused
+	 */
+	public long getDpid(int index)
+	{ return this.dpids[index]; }
+
+	/**
+	 * Get the index for a switch.
+	 * @param dpid DPID for the switch
+	 * @return the index, LongIntHashMap.NO_VALUE if the switch is unknown
+	 */
+	public int getIndex(long dpid)
+	{ return this.index.get(dpid); }
+
+	/**
+	 * Sort one row of a CSR array by neighbor, then port. Rows are as long as
+	 * a switch's degree, so insertion sort is sufficient.
+	 */
+	private static void sortRow(int[] neighbors, int[] ports, int[] costs,
+			int from, int to)
+	{
+		for (int i = from + 1; i < to; i++)
+		{
+			int neighbor = neighbors[i];
+			int port = ports[i];
+			int cost = costs[i];
+			int j = i - 1;
+			while (j >= from && (neighbors[j] > neighbor
+					|| (neighbors[j] == neighbor && ports[j] > port)))
+			{
+				neighbors[j + 1] = neighbors[j];
+				ports[j + 1] = ports[j];
+				costs[j + 1] = costs[j];
+				j--;
+			}
+			neighbors[j + 1] = neighbor;
+			ports[j + 1] = port;
+			costs[j + 1] = cost;
+		}
+	}
+}
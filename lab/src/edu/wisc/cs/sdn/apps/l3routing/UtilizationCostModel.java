@@ -0,0 +1,79 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.floodlightcontroller.routing.Link;
+
+/**
+ * Raises the cost given by another model in proportion to how busy each
+ * link is, so new routes steer around congested links. Utilization is
+ * reported by whatever measures it, e.g. from port statistics; links with no
+ * report are treated as idle. New reports only affect routes once they are
+ * recomputed.
+ */
+public class UtilizationCostModel implements LinkCostModel
+{
+	// Default factor by which a fully utilized link's cost is raised
+	public static final double DEFAULT_PENALTY = 4.0;
+
+	// Model giving the cost of an idle link
+	private LinkCostModel base;
+
+	// Factor by which a fully utilized link's cost is raised, over its base
+	private double penalty;
+
+	// Last reported utilization, from 0 to 1, keyed by source switch DPID
+	// and then port
+	private ConcurrentHashMap<Long,ConcurrentHashMap<Integer,Double>>
+			utilization;
+
+	/**
+	 * Create a model.
+	 * @param base model giving the cost of an idle link
+	 * @param penalty a fully utilized link costs (1 + penalty) times its base
+	 *        cost
+	 */
+	public UtilizationCostModel(LinkCostModel base, double penalty)
+	{
+		this.base = base;
+		this.penalty = penalty;
+		this.utilization =
+				new ConcurrentHashMap<Long,ConcurrentHashMap<Integer,Double>>();
+	}
+
+	/**
+	 * Report the utilization of the link out a switch port.
+	 * @param switchId DPID for the switch at the source of the link
+	 * @param port the port on the switch
+	 * @param utilization the fraction of the link's capacity in use
+	 * @return whether the utilization differs from the last report
+	 */
+	public boolean setUtilization(long switchId, int port, double utilization)
+	{
+		Double used = Math.max(0.0, Math.min(1.0, utilization));
+		ConcurrentHashMap<Integer,Double> ports =
+				this.utilization.get(switchId);
+		if (null == ports)
+		{
+			ports = new ConcurrentHashMap<Integer,Double>();
+			ConcurrentHashMap<Integer,Double> existing =
+					this.utilization.putIfAbsent(switchId, ports);
+			if (existing != null)
+			{ ports = existing; }
+		}
+		return !used.equals(ports.put(port, used));
+	}
+
+	@Override
+	public int getCost(Link link)
+	{
+		int cost = this.base.getCost(link);
+		ConcurrentHashMap<Integer,Double> ports =
+				this.utilization.get(link.getSrc());
+		Double used = (null == ports ? null : ports.get(link.getSrcPort()));
+		if (null == used)
+		{ return cost; }
+		return (int)Math.min(MAX_COST,
+				Math.round(cost * (1 + this.penalty * used)));
+	}
+}
@@ -0,0 +1,24 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+/**
+ * Strategy for choosing the host that serves a new connection to a virtual
+ * IP. Selectors are called concurrently from every packet-in thread, so
+ * implementations must be thread safe and should avoid locks.
+ */
+public interface BackendSelector
+{
+	/**
+	 * Called whenever the hosts or weights of the virtual IP change, before
+	 * the new snapshot is used for selection.
+	 * @param backends the new snapshot
+	 */
+	public void backendsChanged(BackendSet backends);
+
+	/**
+	 * Choose the host for a new connection.
+	 * @param backends the current snapshot; never empty
+	 * @param flowHash hash of the connection's 5-tuple
+	 * @return the index of the host in the snapshot
+	 */
+	public int select(BackendSet backends, int flowHash);
+}
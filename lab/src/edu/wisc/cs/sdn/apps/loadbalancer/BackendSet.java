@@ -0,0 +1,153 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Immutable snapshot of the hosts behind a virtual IP, with their weights
+ * and live connection counts and measured loads. A new snapshot is published
+ * whenever the hosts or weights change, so readers never need a lock.
+ */
+public class BackendSet
+{
+	// IPs for the hosts
+	private final int[] hostIPs;
+
+	// Relative share of connections for each host
+	private final int[] weights;
+
+	// Connections currently open to each host
+	private final AtomicLongArray connections;
+
+	// Rate at which each host was last measured receiving traffic, in bytes
+	// per second
+	private final AtomicLongArray loads;
+
+	/**
+	 * Create a snapshot with no open connections.
+	 * @param hostIPs IPs for the hosts
+	 * @param weights relative share of connections for each host; each
+	 *        weight must be at least 1
+	 */
+	public BackendSet(int[] hostIPs, int[] weights)
+	{
+		this.hostIPs = hostIPs.clone();
+		this.weights = weights.clone();
+		this.connections = new AtomicLongArray(hostIPs.length);
+		this.loads = new AtomicLongArray(hostIPs.length);
+	}
+
+	/**
+	 * Create a snapshot that keeps the connection counts and loads of the
+	 * hosts it shares with a previous snapshot.
+	 * @param hostIPs IPs for the hosts
+	 * @param weights relative share of connections for each host
+	 * @param previous the previous snapshot, or null
+	 */
+	public BackendSet(int[] hostIPs, int[] weights, BackendSet previous)
+	{
+		this(hostIPs, weights);
+		if (null == previous)
+		{ return; }
+		for (int i = 0; i < hostIPs.length; i++)
+		{
+			int index = previous.indexOf(hostIPs[i]);
+			if (index >= 0)
+			{
+				this.connections.set(i, previous.getConnections(index));
+				this.loads.set(i, previous.getLoad(index));
+			}
+		}
+	}
+
+	/**
+	 * Get the number of hosts.
+	 */
+	public int size()
+	{ return this.hostIPs.length; }
+
+	/**
+	 * Get the IP for a host.
+	 * @param index the index of the host
+	 */
+	public int getHostIP(int index)
+	{ return this.hostIPs[index]; }
+
+	/**
+	 * Get the weight of a host.
+	 * @param index the index of the host
+	 */
+	public int getWeight(int index)
+	{ return this.weights[index]; }
+
+	/**
+	 * Get the number of connections currently open to a host.
+	 * @param index the index of the host
+	 */
+	public long getConnections(int index)
+	{ return this.connections.get(index); }
+
+	/**
+	 * Set the number of connections open to a host, e.g. when it rejoins
+	 * the hosts with connections it kept while it was out.
+	 * @param index the index of the host
+	 * @param connections the number of open connections
+	 */
+	public void setConnections(int index, long connections)
+	{ this.connections.set(index, connections); }
+
+	/**
+	 * Get the rate at which a host was last measured receiving traffic.
+	 * @param index the index of the host
+	 * @return bytes per second, or 0 if the host has not been measured
+	 */
+	public long getLoad(int index)
+	{ return this.loads.get(index); }
+
+	/**
+	 * Record the rate at which a host is receiving traffic.
+	 * @param index the index of the host
+	 * @param load bytes per second
+	 */
+	public void setLoad(int index, long load)
+	{ this.loads.set(index, load); }
+
+	/**
+	 * Get the index of a host.
+	 * @param hostIP the IP for the host
+	 * @return the index, or -1 if the host is not in the snapshot
+	 */
+	public int indexOf(int hostIP)
+	{
+		for (int i = 0; i < this.hostIPs.length; i++)
+		{
+			if (this.hostIPs[i] == hostIP)
+			{ return i; }
+		}
+		return -1;
+	}
+
+	/**
+	 * Record that a connection to a host was opened.
+	 * @param index the index of the host
+	 */
+	public void connectionOpened(int index)
+	{ this.connections.incrementAndGet(index); }
+
+	/**
+	 * Record that a connection to a host was closed.
+	 * @param index the index of the host
+	 */
+	public void connectionClosed(int index)
+	{
+		long current = this.connections.get(index);
+		while (current > 0
+				&& !this.connections.compareAndSet(index, current, current - 1))
+		{ current = this.connections.get(index); }
+	}
+
+	/**
+	 * Get a copy of the host IPs.
+	 */
+	public int[] getHostIPs()
+	{ return this.hostIPs.clone(); }
+}
@@ -0,0 +1,263 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Connections to virtual IPs whose rules are installed in a switch, keyed by
+ * the packed TCP 5-tuple. Entries are kept in flat primitive arrays with
+ * open addressing, so lookups never allocate. The table never grows: once
+ * it is full, new connections are still served but are not tracked.
+ */
+public class ConnectionTable
+{
+	// Default maximum number of tracked connections
+	public static final int DEFAULT_MAX_CONNECTIONS = 65536;
+
+	// Marks a free slot in the host table; hosts never have IP 0.0.0.0
+	private static final int FREE = 0;
+
+	// Client IP in the high and virtual IP in the low half of each key
+	private long[] addresses;
+
+	// Client port in the high and virtual port in the low half of each key
+	private int[] ports;
+
+	// Host serving each connection, or FREE
+	private int[] hosts;
+
+	// Switch holding the rules for each connection
+	private long[] switchIds;
+
+	// Number of connections in the table
+	private int size;
+
+	// Maximum number of connections in the table
+	private int maxSize;
+
+	// Number of connections that were not tracked because the table was full
+	private long overflowCount;
+
+	/**
+	 * Create an empty table.
+	 * @param maxConnections maximum number of tracked connections
+	 */
+	public ConnectionTable(int maxConnections)
+	{
+		int capacity = 8;
+		while (capacity < maxConnections + maxConnections / 3)
+		{ capacity <<= 1; }
+		this.addresses = new long[capacity];
+		this.ports = new int[capacity];
+		this.hosts = new int[capacity];
+		this.switchIds = new long[capacity];
+		this.maxSize = maxConnections;
+	}
+
+	/**
+	 * Get the host serving a connection.
+	 * @return the host IP, or 0 if the connection is not tracked
+	 */
+	public synchronized int get(int clientIP, int virtualIP, short clientPort,
+			short virtualPort)
+	{
+		int slot = this.find(pack(clientIP, virtualIP),
+				pack(clientPort, virtualPort));
+		return (slot < 0 ? FREE : this.hosts[slot]);
+	}
+
+	/**
+	 * Track a connection, replacing any previous entry for the 5-tuple.
+	 * @param hostIP the host serving the connection
+	 * @param switchId DPID for the switch holding the connection's rules
+	 * @return false if the table is full and the connection is not tracked
+	 */
+	public synchronized boolean put(int clientIP, int virtualIP,
+			short clientPort, short virtualPort, int hostIP, long switchId)
+	{
+		long address = pack(clientIP, virtualIP);
+		int port = pack(clientPort, virtualPort);
+		int slot = this.find(address, port);
+		if (slot < 0)
+		{
+			if (this.size >= this.maxSize)
+			{
+				this.overflowCount++;
+				return false;
+			}
+			slot = -slot - 1;
+			this.addresses[slot] = address;
+			this.ports[slot] = port;
+			this.size++;
+		}
+		this.hosts[slot] = hostIP;
+		this.switchIds[slot] = switchId;
+		return true;
+	}
+
+	/**
+	 * Stop tracking a connection.
+	 * @return the host that served the connection, or 0 if the connection was
+	 *         not tracked
+	 */
+	public synchronized int remove(int clientIP, int virtualIP,
+			short clientPort, short virtualPort)
+	{
+		int slot = this.find(pack(clientIP, virtualIP),
+				pack(clientPort, virtualPort));
+		if (slot < 0)
+		{ return FREE; }
+		int hostIP = this.hosts[slot];
+		this.removeSlot(slot);
+		return hostIP;
+	}
+
+	/**
+	 * Get the number of tracked connections.
+	 */
+	public synchronized int size()
+	{ return this.size; }
+
+	/**
+	 * Get the number of connections that were not tracked because the table
+	 * was full.
+	 */
+	public synchronized long getOverflowCount()
+	{ return this.overflowCount; }
+
+	/**
+	 * Count the tracked connections from a virtual IP to a host. This scans
+	 * the whole table, so it is meant for queries rather than packet-ins.
+	 */
+	public synchronized int count(int virtualIP, int hostIP)
+	{
+		int count = 0;
+		for (int slot = 0; slot < this.hosts.length; slot++)
+		{
+			if (this.hosts[slot] == hostIP && hostIP != FREE
+					&& (int)this.addresses[slot] == virtualIP)
+			{ count++; }
+		}
+		return count;
+	}
+
+	/**
+	 * Get the connections whose rules are held by a switch.
+	 * @param switchId DPID for the switch
+	 */
+	public synchronized List<Connection> getConnections(long switchId)
+	{
+		List<Connection> connections = new ArrayList<Connection>();
+		for (int slot = 0; slot < this.hosts.length; slot++)
+		{
+			if (this.hosts[slot] != FREE && this.switchIds[slot] == switchId)
+			{
+				connections.add(new Connection(
+						(int)(this.addresses[slot] >>> 32),
+						(int)this.addresses[slot],
+						(short)(this.ports[slot] >>> 16),
+						(short)this.ports[slot],
+						this.hosts[slot], switchId));
+			}
+		}
+		return connections;
+	}
+
+	/**
+	 * Find the slot holding a key.
+	 * @return the slot, or -(free slot + 1) if the key is not in the table
+	 */
+	private int find(long address, int port)
+	{
+		int mask = this.hosts.length - 1;
+		int slot = hash(address, port) & mask;
+		while (this.hosts[slot] != FREE)
+		{
+			if (this.addresses[slot] == address && this.ports[slot] == port)
+			{ return slot; }
+			slot = (slot + 1) & mask;
+		}
+		return -slot - 1;
+	}
+
+	/**
+	 * Empty a slot, shifting later entries of the same probe sequence back
+	 * so lookups do not stop early.
+	 */
+	private void removeSlot(int slot)
+	{
+		int mask = this.hosts.length - 1;
+		int next = (slot + 1) & mask;
+		while (this.hosts[next] != FREE)
+		{
+			int home = hash(this.addresses[next], this.ports[next]) & mask;
+			if (((next - home) & mask) >= ((next - slot) & mask))
+			{
+				this.addresses[slot] = this.addresses[next];
+				this.ports[slot] = this.ports[next];
+				this.hosts[slot] = this.hosts[next];
+				this.switchIds[slot] = this.switchIds[next];
+				slot = next;
+			}
+			next = (next + 1) & mask;
+		}
+		this.hosts[slot] = FREE;
+		this.size--;
+	}
+
+	private static long pack(int high, int low)
+	{ return ((long)high << 32) | (low & 0xffffffffL); }
+
+	private static int pack(short high, short low)
+	{ return ((high & 0xffff) << 16) | (low & 0xffff); }
+
+	private static int hash(long address, int port)
+	{
+		long hash = (address ^ (address >>> 29)) * 0x9e3779b97f4a7c15L + port;
+		hash ^= hash >>> 32;
+		hash *= 0xbf58476d1ce4e5b9L;
+		return (int)(hash ^ (hash >>> 29));
+	}
+
+	/**
+	 * A tracked connection.
+	 */
+	public static class Connection
+	{
+		private final int clientIP;
+		private final int virtualIP;
+		private final short clientPort;
+		private final short virtualPort;
+		private final int hostIP;
+		private final long switchId;
+
+		private Connection(int clientIP, int virtualIP, short clientPort,
+				short virtualPort, int hostIP, long switchId)
+		{
+			this.clientIP = clientIP;
+			this.virtualIP = virtualIP;
+			this.clientPort = clientPort;
+			this.virtualPort = virtualPort;
+			this.hostIP = hostIP;
+			this.switchId = switchId;
+		}
+
+		public int getClientIP()
+		{ return this.clientIP; }
+
+		public int getVirtualIP()
+		{ return this.virtualIP; }
+
+		public short getClientPort()
+		{ return this.clientPort; }
+
+		public short getVirtualPort()
+		{ return this.virtualPort; }
+
+		public int getHostIP()
+		{ return this.hostIP; }
+
+		public long getSwitchId()
+		{ return this.switchId; }
+	}
+}
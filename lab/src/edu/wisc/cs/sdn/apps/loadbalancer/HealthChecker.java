@@ -0,0 +1,258 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.wisc.cs.sdn.apps.util.HostCache;
+import edu.wisc.cs.sdn.apps.util.SwitchCommands;
+
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.packet.ARP;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+
+/**
+ * Checks that the hosts behind each virtual IP are alive. On every round,
+ * each host is sent an ARP request from the virtual IP, out of the port
+ * where the device manager last saw it. A host is down if it has not
+ * answered within the timeout, or if the device manager has lost track of
+ * it after seeing it; it is up again as soon as it answers. Hosts the
+ * device manager has never seen are assumed up, since they cannot be probed
+ * until they send some traffic.
+ */
+public class HealthChecker implements Runnable
+{
+	// Default time between rounds of health checks, in milliseconds
+	public static final long DEFAULT_INTERVAL = 100;
+
+	// Default time a host has to answer a probe, in milliseconds
+	public static final long DEFAULT_TIMEOUT = 300;
+
+	// Interface to the logging system
+	private static Logger log = LoggerFactory.getLogger(
+			HealthChecker.class.getSimpleName());
+
+	// Interface to Floodlight core for interacting with connected switches
+	private IFloodlightProviderService floodlightProv;
+
+	// Load balancer instances whose hosts are checked
+	private Collection<LoadBalancerInstance> instances;
+
+	// Told when hosts change state
+	private IHealthCheckListener listener;
+
+	// Time between rounds of health checks, in milliseconds
+	private long interval;
+
+	// Time a host has to answer a probe, in nanoseconds
+	private long timeoutNanos;
+
+	// Time of the last answer from each host, keyed by virtual and host IP;
+	// a host's entry is created the first time it is probed
+	private ConcurrentHashMap<Long,Long> lastReplies;
+
+	// Hosts the device manager has seen, keyed by virtual and host IP
+	private Set<Long> seenHosts;
+
+	// Hosts that are down, keyed by virtual and host IP
+	private Set<Long> downHosts;
+
+	// Thread that runs the health checks
+	private ScheduledExecutorService executor;
+
+	/**
+	 * Create a health checker.
+	 * @param floodlightProv Floodlight module to lookup switches by DPID
+	 * @param instances the load balancer instances whose hosts are checked;
+	 *        read on every round, so instances may be added later
+	 * @param listener told when hosts change state
+	 * @param interval time between rounds of health checks, in milliseconds
+	 * @param timeout time a host has to answer a probe, in milliseconds
+	 */
+	public HealthChecker(IFloodlightProviderService floodlightProv,
+			Collection<LoadBalancerInstance> instances,
+			IHealthCheckListener listener, long interval, long timeout)
+	{
+		this.floodlightProv = floodlightProv;
+		this.instances = instances;
+		this.listener = listener;
+		this.interval = interval;
+		this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+		this.lastReplies = new ConcurrentHashMap<Long,Long>();
+		this.seenHosts = new HashSet<Long>();
+		this.downHosts = new HashSet<Long>();
+	}
+
+	/**
+	 * Start running health checks in the background.
+	 */
+	public synchronized void start()
+	{
+		if (this.executor != null)
+		{ return; }
+		this.executor = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactory()
+				{
+					@Override
+					public Thread newThread(Runnable runnable)
+					{
+						Thread thread = new Thread(runnable,
+								HealthChecker.class.getSimpleName());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		this.executor.scheduleWithFixedDelay(this, this.interval,
+				this.interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop running health checks.
+	 */
+	public synchronized void stop()
+	{
+		if (null == this.executor)
+		{ return; }
+		this.executor.shutdownNow();
+		this.executor = null;
+	}
+
+	/**
+	 * Record an answer to a probe.
+	 * @param virtualIP the virtual IP the probe was sent from
+	 * @param hostIP the IP of the host that answered
+	 */
+	public void replyReceived(int virtualIP, int hostIP)
+	{ this.lastReplies.replace(key(virtualIP, hostIP), System.nanoTime()); }
+
+	/**
+	 * Run one round of health checks. Exceptions are logged rather than
+	 * thrown, since they would cancel later rounds.
+	 */
+	@Override
+	public void run()
+	{
+		try
+		{
+			for (LoadBalancerInstance instance : this.instances)
+			{ this.check(instance); }
+		}
+		catch (RuntimeException e)
+		{ log.error("Health check failed", e); }
+	}
+
+	/**
+	 * Check the hosts behind a virtual IP, probe them for the next round, and
+	 * tell the listener about hosts that changed state.
+	 */
+	private void check(LoadBalancerInstance instance)
+	{
+		long now = System.nanoTime();
+		Set<Integer> upHosts = new HashSet<Integer>();
+		Set<Integer> downHosts = new HashSet<Integer>();
+		List<Integer> hostIPs = instance.getConfiguredHostIPs();
+		for (int hostIP : hostIPs)
+		{
+			long key = key(instance.getVirtualIP(), hostIP);
+			HostCache.Entry host = HostCache.getInstance().lookup(hostIP);
+			IOFSwitch sw = (null == host || !host.isAttachedToSwitch() ? null
+					: this.floodlightProv.getSwitch(host.getSwitchId()));
+
+			boolean alive;
+			if (null == sw)
+			{
+				// Until a host is seen, its grace period keeps restarting
+				alive = !this.seenHosts.contains(key);
+				this.lastReplies.put(key, now);
+			}
+			else
+			{
+				Long lastReply = this.lastReplies.putIfAbsent(key, now);
+				alive = (null == lastReply
+						|| now - lastReply <= this.timeoutNanos);
+				this.seenHosts.add(key);
+				this.sendProbe(sw, host.getPort(), instance,
+						host.getMACAddressBytes(), hostIP);
+			}
+
+			if (alive && this.downHosts.remove(key))
+			{ upHosts.add(hostIP); }
+			else if (!alive && this.downHosts.add(key))
+			{ downHosts.add(hostIP); }
+		}
+
+		// Forget hosts that are no longer configured
+		Iterator<Long> iterator = this.lastReplies.keySet().iterator();
+		while (iterator.hasNext())
+		{
+			long key = iterator.next();
+			if ((int)(key >>> 32) == instance.getVirtualIP()
+					&& !hostIPs.contains((int)key))
+			{
+				iterator.remove();
+				this.seenHosts.remove(key);
+				this.downHosts.remove(key);
+			}
+		}
+
+		if (upHosts.isEmpty() && downHosts.isEmpty())
+		{ return; }
+		for (int hostIP : downHosts)
+		{
+			log.warn(String.format("Host %s behind %s is down",
+					IPv4.fromIPv4Address(hostIP),
+					IPv4.fromIPv4Address(instance.getVirtualIP())));
+		}
+		for (int hostIP : upHosts)
+		{
+			log.info(String.format("Host %s behind %s is up",
+					IPv4.fromIPv4Address(hostIP),
+					IPv4.fromIPv4Address(instance.getVirtualIP())));
+		}
+		this.listener.healthChanged(instance.getVirtualIP(), upHosts,
+				downHosts);
+	}
+
+	/**
+	 * Send an ARP request for a host from a virtual IP.
+	 */
+	private void sendProbe(IOFSwitch sw, int port,
+			LoadBalancerInstance instance, byte[] hostMAC, int hostIP)
+	{
+		Ethernet ether = new Ethernet();
+		ARP arp = new ARP();
+		ether.setPayload(arp);
+
+		ether.setEtherType(Ethernet.TYPE_ARP);
+		ether.setSourceMACAddress(instance.getVirtualMAC());
+		ether.setDestinationMACAddress(hostMAC);
+
+		arp.setOpCode(ARP.OP_REQUEST);
+		arp.setSenderHardwareAddress(instance.getVirtualMAC());
+		arp.setSenderProtocolAddress(instance.getVirtualIP());
+		arp.setTargetHardwareAddress(
+				new byte[Ethernet.DATALAYER_ADDRESS_LENGTH]);
+		arp.setTargetProtocolAddress(hostIP);
+		arp.setHardwareType(ARP.HW_TYPE_ETHERNET);
+		arp.setProtocolType(ARP.PROTO_TYPE_IP);
+		arp.setProtocolAddressLength((byte) 4);
+		arp.setHardwareAddressLength((byte) Ethernet.DATALAYER_ADDRESS_LENGTH);
+
+		SwitchCommands.sendPacket(sw, (short)port, ether);
+	}
+
+	private static long key(int virtualIP, int hostIP)
+	{ return ((long)virtualIP << 32) | (hostIP & 0xffffffffL); }
+}
@@ -0,0 +1,20 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.util.Set;
+
+/**
+ * Notified by {@link HealthChecker} when hosts behind a virtual IP go down
+ * or come back up.
+ */
+public interface IHealthCheckListener
+{
+	/**
+	 * Called after a round of health checks in which some hosts behind a
+	 * virtual IP changed state.
+	 * @param virtualIP the virtual IP address of the load balancer instance
+	 * @param upHosts IPs for the hosts that came back up
+	 * @param downHosts IPs for the hosts that went down
+	 */
+	public void healthChanged(int virtualIP, Set<Integer> upHosts,
+			Set<Integer> downHosts);
+}
@@ -0,0 +1,93 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.util.Collection;
+import java.util.List;
+
+import net.floodlightcontroller.core.module.IFloodlightService;
+
+/**
+ * Lets other modules change the virtual IPs balanced by {@link LoadBalancer},
+ * and the hosts behind them, while the controller runs. Methods that change
+ * rules push them to every switch in a single batch.
+ */
+public interface ILoadBalancerService extends IFloodlightService
+{
+	/**
+	 * Get the load balancer instances.
+	 */
+	public Collection<LoadBalancerInstance> getInstances();
+
+	/**
+	 * Start balancing connections to a virtual IP.
+	 * @param virtualIP the virtual IP address
+	 * @param virtualMAC the virtual MAC address
+	 * @param hostIPs IPs for hosts to which requests should be balanced; must
+	 *        not be empty
+	 * @return false if the virtual IP is already balanced
+	 */
+	public boolean addVirtualIP(int virtualIP, byte[] virtualMAC,
+			List<Integer> hostIPs);
+
+	/**
+	 * Stop balancing connections to a virtual IP. Open connections keep their
+	 * rules until they go idle.
+	 * @param virtualIP the virtual IP address
+	 * @return false if there is no instance for the virtual IP
+	 */
+	public boolean removeVirtualIP(int virtualIP);
+
+	/**
+	 * Replace the hosts behind a virtual IP.
+	 * @param virtualIP the virtual IP address
+	 * @param hostIPs IPs for hosts to which requests should be balanced; must
+	 *        not be empty
+	 * @return false if there is no instance for the virtual IP
+	 */
+	public boolean setHostIPs(int virtualIP, List<Integer> hostIPs);
+
+	/**
+	 * Add a host behind a virtual IP, or change the weight of a host.
+	 * @param virtualIP the virtual IP address
+	 * @param hostIP the IP for the host
+	 * @param weight the host's weight; at least 1
+	 * @return false if there is no instance for the virtual IP
+	 */
+	public boolean addHost(int virtualIP, int hostIP, int weight);
+
+	/**
+	 * Remove a host from behind a virtual IP.
+	 * @param virtualIP the virtual IP address
+	 * @param hostIP the IP for the host
+	 * @return false if there is no instance for the virtual IP, the host is
+	 *         not behind it, or the host is the last one
+	 */
+	public boolean removeHost(int virtualIP, int hostIP);
+
+	/**
+	 * Start or stop draining a host: a draining host gets no new connections
+	 * but keeps its open ones.
+	 * @param virtualIP the virtual IP address
+	 * @param hostIP the IP for the host
+	 * @param draining whether the host should be drained
+	 * @return false if there is no instance for the virtual IP or the host is
+	 *         not behind it
+	 */
+	public boolean setDraining(int virtualIP, int hostIP, boolean draining);
+
+	/**
+	 * Get the number of open connections to a virtual IP.
+	 * @param virtualIP the virtual IP address
+	 * @return the number of connections, or -1 if there is no instance for
+	 *         the virtual IP
+	 */
+	public long getActiveConnections(int virtualIP);
+
+	/**
+	 * Get the number of open connections from a virtual IP to one host.
+	 * @param virtualIP the virtual IP address
+	 * @param hostIP the IP for the host
+	 * @return the number of connections, or -1 if the host is not behind the
+	 *         virtual IP
+	 */
+	public long getActiveConnections(int virtualIP, int hostIP);
+}
@@ -0,0 +1,43 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends each connection to the host with the fewest open connections
+ * relative to its weight. Ties are broken by rotating the starting point of
+ * the scan, so idle hosts share new connections evenly.
+ */
+public class LeastConnectionsSelector implements BackendSelector
+{
+	// Where the next scan starts
+	private AtomicInteger start = new AtomicInteger();
+
+	@Override
+	public void backendsChanged(BackendSet backends)
+	{ /* Nothing we need to do */ }
+
+	@Override
+	public int select(BackendSet backends, int flowHash)
+	{
+		int size = backends.size();
+		int first = (this.start.getAndIncrement() & Integer.MAX_VALUE) % size;
+		int best = first;
+		for (int i = 1; i < size; i++)
+		{
+			int candidate = (first + i) % size;
+			if (isLessLoaded(backends, candidate, best))
+			{ best = candidate; }
+		}
+		return best;
+	}
+
+	/**
+	 * Check whether a host has fewer connections per unit of weight than
+	 * another, without dividing.
+	 */
+	static boolean isLessLoaded(BackendSet backends, int a, int b)
+	{
+		return backends.getConnections(a) * backends.getWeight(b)
+				< backends.getConnections(b) * backends.getWeight(a);
+	}
+}
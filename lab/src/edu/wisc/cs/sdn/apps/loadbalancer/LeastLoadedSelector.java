@@ -0,0 +1,41 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Picks two hosts at random and sends the connection to the one receiving
+ * less traffic relative to its weight, as measured from the switch port
+ * each host is attached to. Hosts with the same load, e.g. because they
+ * have not been measured yet, are compared by open connections instead.
+ */
+public class LeastLoadedSelector implements BackendSelector
+{
+	@Override
+	public void backendsChanged(BackendSet backends)
+	{ /* Nothing we need to do */ }
+
+	@Override
+	public int select(BackendSet backends, int flowHash)
+	{
+		int size = backends.size();
+		if (1 == size)
+		{ return 0; }
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int first = random.nextInt(size);
+		int second = random.nextInt(size - 1);
+		if (second >= first)
+		{ second++; }
+
+		// Compare load per unit of weight without dividing
+		double firstLoad = (double)backends.getLoad(first)
+				* backends.getWeight(second);
+		double secondLoad = (double)backends.getLoad(second)
+				* backends.getWeight(first);
+		if (firstLoad == secondLoad)
+		{
+			return (LeastConnectionsSelector.isLessLoaded(backends, second,
+					first) ? second : first);
+		}
+		return (secondLoad < firstLoad ? second : first);
+	}
+}
@@ -1,14 +1,20 @@
 package edu.wisc.cs.sdn.apps.loadbalancer;
 
 import java.util.*;
-import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import org.openflow.protocol.OFBucket;
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFFlowRemoved;
+import org.openflow.protocol.OFGroupMod;
 import org.openflow.protocol.OFMatch;
 import org.openflow.protocol.OFMessage;
 import org.openflow.protocol.OFPacketIn;
+import org.openflow.protocol.OFPacketOut;
 import org.openflow.protocol.OFType;
 import org.openflow.protocol.OFPort;
 import org.openflow.protocol.OFOXMFieldType;
 import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionGroup;
 import org.openflow.protocol.action.OFActionOutput;
 import org.openflow.protocol.action.OFActionSetField;
 import org.openflow.protocol.instruction.OFInstruction;
@@ -18,10 +24,24 @@ import org.openflow.protocol.instruction.OFInstructionApplyActions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import edu.wisc.cs.sdn.apps.l3routing.IL3RoutingListener;
+import edu.wisc.cs.sdn.apps.l3routing.IL3RoutingService;
 import edu.wisc.cs.sdn.apps.l3routing.L3Routing;
+import edu.wisc.cs.sdn.apps.util.ArpResponder;
 import edu.wisc.cs.sdn.apps.util.ArpServer;
+import edu.wisc.cs.sdn.apps.util.BarrierTracker;
+import edu.wisc.cs.sdn.apps.util.EventLog;
+import edu.wisc.cs.sdn.apps.util.FlowModBatch;
+import edu.wisc.cs.sdn.apps.util.HostCache;
+import edu.wisc.cs.sdn.apps.util.IStatsListener;
+import edu.wisc.cs.sdn.apps.util.PacketPeek;
+import edu.wisc.cs.sdn.apps.util.PortRates;
+import edu.wisc.cs.sdn.apps.util.StatsCollector;
 import edu.wisc.cs.sdn.apps.util.SwitchCommands;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+
 import net.floodlightcontroller.core.FloodlightContext;
 import net.floodlightcontroller.core.IFloodlightProviderService;
 import net.floodlightcontroller.core.IOFMessageListener;
@@ -33,18 +53,17 @@ import net.floodlightcontroller.core.module.FloodlightModuleContext;
 import net.floodlightcontroller.core.module.FloodlightModuleException;
 import net.floodlightcontroller.core.module.IFloodlightModule;
 import net.floodlightcontroller.core.module.IFloodlightService;
-import net.floodlightcontroller.devicemanager.IDevice;
 import net.floodlightcontroller.devicemanager.IDeviceService;
 import net.floodlightcontroller.devicemanager.internal.DeviceManagerImpl;
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.TCP;
 import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.packet.ARP;
-import net.floodlightcontroller.util.MACAddress;
 
 
 public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
-		IOFMessageListener
+		IOFMessageListener, IL3RoutingListener, IHealthCheckListener,
+		IStatsListener, ILoadBalancerService
 {
 	public static final String MODULE_NAME = LoadBalancer.class.getSimpleName();
 	
@@ -52,6 +71,9 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 	
 	private static final short IDLE_TIMEOUT = 20;
 	
+	// Default number of client buckets per virtual IP in proactive mode
+	private static final int DEFAULT_BUCKETS = 16;
+	
 	// Interface to the logging system
     private static Logger log = LoggerFactory.getLogger(MODULE_NAME);
     
@@ -61,11 +83,47 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
     // Interface to device manager service
     private IDeviceService deviceProv;
     
+    // Interface to the routes installed by the routing application
+    private IL3RoutingService routingProv;
+    
     // Switch table in which rules should be installed
     private byte table;
     
-    // Set of virtual IPs and the load balancer instances they correspond with
+    // Module config, used to configure instances added at runtime
+    private Map<String,String> config;
+    
+    // Set of virtual IPs and the load balancer instances they correspond with;
+    // concurrent, so packet-ins never wait for instances to be added or removed
     private Map<Integer,LoadBalancerInstance> instances;
+    
+    // Whether connections are balanced by pre-installed client bucket rules
+    // instead of per-connection rules installed on packet-in
+    private boolean proactive;
+    
+    // Number of client buckets per virtual IP in proactive mode; a power of 2
+    private int buckets;
+    
+    // Whether connections are balanced by a select group per virtual IP,
+    // which lets the switch pick the host for each connection
+    private boolean selectGroups;
+    
+    // Whether switches answer ARP requests for virtual IPs themselves
+    private boolean arpResponder;
+    
+    // ID of the select group for each virtual IP
+    private Map<Integer,Integer> groupIds;
+    
+    // ID of the select group for the next virtual IP
+    private int nextGroupId;
+    
+    // Connections whose per-connection rules are installed
+    private ConnectionTable connections;
+    
+    // Checks that hosts are alive, or null if health checks are off
+    private HealthChecker healthChecker;
+    
+    // Time between polls of switch statistics, in ms, or 0 to not poll
+    private long statsInterval;
 
     /**
      * Loads dependencies and initializes data structures.
@@ -78,10 +136,26 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 		
 		// Obtain table number from config
 		Map<String,String> config = context.getConfigParams(this);
+		this.config = config;
         this.table = Byte.parseByte(config.get("table"));
+        this.proactive = Boolean.parseBoolean(config.get("proactive"));
+        this.selectGroups = Boolean.parseBoolean(config.get("selectGroups"));
+        this.arpResponder = Boolean.parseBoolean(config.get("arpResponder"));
+        this.buckets = DEFAULT_BUCKETS;
+        if (config.containsKey("buckets"))
+        { 
+        	this.buckets = Integer.highestOneBit(
+        			Math.max(1, Integer.parseInt(config.get("buckets")))); 
+        }
         
         // Create instances from config
-        this.instances = new HashMap<Integer,LoadBalancerInstance>();
+        this.instances = new ConcurrentHashMap<Integer,LoadBalancerInstance>();
+        this.groupIds = new ConcurrentHashMap<Integer,Integer>();
+        this.nextGroupId = 1;
+        int maxConnections = ConnectionTable.DEFAULT_MAX_CONNECTIONS;
+        if (config.containsKey("maxConnections"))
+        { maxConnections = Integer.parseInt(config.get("maxConnections")); }
+        this.connections = new ConnectionTable(maxConnections);
         String[] instanceConfigs = config.get("instances").split(";");
         for (String instanceConfig : instanceConfigs)
         {
@@ -93,13 +167,34 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
         	}
         	LoadBalancerInstance instance = new LoadBalancerInstance(
         			configItems[0], configItems[1], configItems[2].split(","));
+        	instance.setSelector(createSelector(config));
             this.instances.put(instance.getVirtualIP(), instance);
+            this.groupIds.put(instance.getVirtualIP(), this.nextGroupId++);
             log.info("Added load balancer instance: " + instance);
         }
         
 		this.floodlightProv = context.getServiceImpl(
 				IFloodlightProviderService.class);
         this.deviceProv = context.getServiceImpl(IDeviceService.class);
+        this.routingProv = context.getServiceImpl(IL3RoutingService.class);
+        
+        if (Boolean.parseBoolean(config.get("healthCheck")))
+        {
+        	long interval = HealthChecker.DEFAULT_INTERVAL;
+        	if (config.containsKey("healthCheckInterval"))
+        	{ interval = Long.parseLong(config.get("healthCheckInterval")); }
+        	long timeout = HealthChecker.DEFAULT_TIMEOUT;
+        	if (config.containsKey("healthCheckTimeout"))
+        	{ timeout = Long.parseLong(config.get("healthCheckTimeout")); }
+        	this.healthChecker = new HealthChecker(this.floodlightProv,
+        			this.instances.values(), this, interval, timeout);
+        }
+        
+        // Host loads are measured from switch port statistics
+        if (config.containsKey("statsInterval"))
+        { this.statsInterval = Long.parseLong(config.get("statsInterval")); }
+        else if ("leastloaded".equals(config.get("selector")))
+        { this.statsInterval = StatsCollector.DEFAULT_INTERVAL; }
 	}
 
 	/**
@@ -112,6 +207,18 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 		log.info(String.format("Starting %s...", MODULE_NAME));
 		this.floodlightProv.addOFSwitchListener(this);
 		this.floodlightProv.addOFMessageListener(OFType.PACKET_IN, this);
+		this.floodlightProv.addOFMessageListener(OFType.FLOW_REMOVED, this);
+		BarrierTracker.register(this.floodlightProv);
+		HostCache.register(this.deviceProv);
+		this.routingProv.addListener(this);
+		if (this.healthChecker != null)
+		{ this.healthChecker.start(); }
+		if (this.statsInterval > 0)
+		{
+			StatsCollector.register(this.floodlightProv);
+			StatsCollector.getInstance().addListener(this);
+			StatsCollector.getInstance().start(this.statsInterval);
+		}
 	}
 	
 	/**
@@ -131,25 +238,647 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 		/*       (2) ARP packets to the controller, and                      */
 		/*       (3) all other packets to the next rule table in the switch  */
 
-		Set keyset = instances.keySet();
-		Iterator it = keyset.iterator();
-		while(it.hasNext()){
-			Integer ip = (Integer) it.next();
-			OFMatch ofm = new OFMatch();
-			ofm.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
-			ofm.setNetworkProtocol(OFMatch.IP_PROTO_TCP);
-			ofm.setNetworkDestination(ip);
-			OFInstruction instruction =  new OFInstructionApplyActions( Arrays.asList((OFAction) (new OFActionOutput(OFPort.OFPP_CONTROLLER))));
-			SwitchCommands.installRule(sw, this.table, (short)(SwitchCommands.DEFAULT_PRIORITY+1), ofm, Arrays.asList(instruction));
-			ofm.setDataLayerType(OFMatch.ETH_TYPE_ARP);
-			SwitchCommands.installRule(sw, this.table, (short)(SwitchCommands.DEFAULT_PRIORITY+1), ofm, Arrays.asList(instruction));
+		FlowModBatch batch = new FlowModBatch();
+		for (LoadBalancerInstance instance : this.instances.values())
+		{ this.installInstanceRules(batch, sw, instance); }
+		batch.installRule(sw, this.table, SwitchCommands.DEFAULT_PRIORITY, new OFMatch(), Arrays.asList((OFInstruction) (new OFInstructionGotoTable(L3Routing.table))));	
+		
+		// Restore the rules of connections that were open when the switch
+		// disconnected; rules for connections that ended will time out
+		for (ConnectionTable.Connection connection : this.connections.getConnections(switchId))
+		{
+			LoadBalancerInstance instance = this.instances.get(connection.getVirtualIP());
+			if (null == instance)
+			{ continue; }
+			this.installReverseConnectionRule(batch, sw, instance, connection.getClientIP(), connection.getClientPort(), connection.getVirtualPort(), connection.getHostIP());
+			this.installForwardConnectionRule(batch, sw, instance, connection.getClientIP(), connection.getClientPort(), connection.getVirtualPort(), connection.getHostIP(), OFPacketOut.BUFFER_ID_NONE);
 		}
-		SwitchCommands.installRule(sw, this.table, SwitchCommands.DEFAULT_PRIORITY, new OFMatch(), Arrays.asList((OFInstruction) (new OFInstructionGotoTable(L3Routing.table))));	
+		batch.flush();
 
 		/*********************************************************************/
 
 	}
 	
+	/**
+	 * Install the rules that send traffic for a virtual IP to its hosts, or
+	 * new connections to the controller, and that send ARP packets for the 
+	 * virtual IP to the controller. In ARP responder mode, requests for the 
+	 * virtual IP are answered by the switch instead, and only replies to 
+	 * health checks reach the controller.
+	 * @param batch the batch to which FlowMods should be added
+	 * @param sw the switch in which to install the rules
+	 * @param instance the load balancer instance
+	 */
+	private void installInstanceRules(FlowModBatch batch, IOFSwitch sw,
+			LoadBalancerInstance instance)
+	{
+		OFInstruction instruction =  new OFInstructionApplyActions( Arrays.asList((OFAction) (new OFActionOutput(OFPort.OFPP_CONTROLLER))));
+		if (this.selectGroups)
+		{ this.installGroupRules(batch, sw, instance); }
+		else if (this.proactive)
+		{ this.installBucketRules(batch, sw, instance); }
+		else
+		{ batch.installRule(sw, this.table, (short)(SwitchCommands.DEFAULT_PRIORITY+1), this.getControllerMatch(instance), Arrays.asList(instruction)); }
+		batch.installRule(sw, this.table, (short)(SwitchCommands.DEFAULT_PRIORITY+1), this.getArpMatch(instance), Arrays.asList(instruction));
+		if (this.arpResponder)
+		{ 
+			ArpResponder.install(batch, sw, this.table, instance.getVirtualIP(),
+					instance.getVirtualMAC()); 
+		}
+	}
+	
+	/**
+	 * Remove the rules, and the select group, installed for a virtual IP by
+	 * {@link #installInstanceRules}.
+	 */
+	private void removeInstanceRules(FlowModBatch batch, IOFSwitch sw,
+			LoadBalancerInstance instance)
+	{
+		if (this.selectGroups)
+		{
+			// Removing the group removes the rule that uses it
+			batch.removeGroup(sw, this.groupIds.get(instance.getVirtualIP()));
+		}
+		else if (this.proactive)
+		{
+			for (int bucket = 0; bucket < this.buckets; bucket++)
+			{
+				batch.removeRule(sw, this.table, this.getBucketPriority(),
+						this.getBucketMatch(instance, bucket));
+			}
+		}
+		else
+		{ batch.removeRule(sw, this.table, (short)(SwitchCommands.DEFAULT_PRIORITY+1), this.getControllerMatch(instance)); }
+		if (this.selectGroups || this.proactive)
+		{
+			for (int hostIP : instance.getConfiguredHostIPs())
+			{
+				batch.removeRule(sw, this.table, this.getBucketPriority(),
+						this.getReverseMatch(hostIP));
+			}
+		}
+		batch.removeRule(sw, this.table, (short)(SwitchCommands.DEFAULT_PRIORITY+1), this.getArpMatch(instance));
+		if (this.arpResponder)
+		{ ArpResponder.remove(batch, sw, this.table, instance.getVirtualIP()); }
+	}
+	
+	/**
+	 * Get the match for TCP traffic to a virtual IP.
+	 */
+	private OFMatch getControllerMatch(LoadBalancerInstance instance)
+	{
+		OFMatch match = new OFMatch();
+		match.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
+		match.setNetworkProtocol(OFMatch.IP_PROTO_TCP);
+		match.setNetworkDestination(instance.getVirtualIP());
+		return match;
+	}
+	
+	/**
+	 * Get the match for ARP packets for a virtual IP.
+	 */
+	private OFMatch getArpMatch(LoadBalancerInstance instance)
+	{
+		OFMatch match = this.getControllerMatch(instance);
+		match.setDataLayerType(OFMatch.ETH_TYPE_ARP);
+		return match;
+	}
+	
+	/**
+	 * Install the rule that rewrites a connection's traffic from the client
+	 * to the virtual IP so it goes to the chosen host. The switch reports
+	 * when the rule times out, which ends the connection.
+	 * @param bufferId the buffer holding the connection's SYN on the switch,
+	 *        or OFPacketOut.BUFFER_ID_NONE
+	 */
+	private void installForwardConnectionRule(FlowModBatch batch, IOFSwitch sw,
+			LoadBalancerInstance instance, int clientIp, short clientPort,
+			short virtualPort, int hostIp, int bufferId)
+	{
+		OFMatch rule = new OFMatch();
+		rule.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
+		rule.setNetworkSource(clientIp);
+		rule.setNetworkDestination(instance.getVirtualIP());
+		rule.setNetworkProtocol(OFMatch.IP_PROTO_TCP);
+		rule.setTransportSource(clientPort);
+		rule.setTransportDestination(virtualPort);
+		
+		OFAction actionEthDst = new OFActionSetField(OFOXMFieldType.ETH_DST, getHostMACAddress(hostIp));
+		OFAction actionIpDst = new OFActionSetField(OFOXMFieldType.IPV4_DST, hostIp);
+		OFInstructionApplyActions instruction = new OFInstructionApplyActions(Arrays.asList(actionEthDst, actionIpDst));
+		OFInstruction redirectInstr = new OFInstructionGotoTable(L3Routing.table);
+		batch.installRule(sw, table, SwitchCommands.MAX_PRIORITY, rule, Arrays.asList(instruction, redirectInstr), SwitchCommands.NO_TIMEOUT, IDLE_TIMEOUT, bufferId, OFFlowMod.OFPFF_SEND_FLOW_REM);
+	}
+	
+	/**
+	 * Install the rule that makes a connection's traffic from the host
+	 * appear to come from the virtual IP.
+	 */
+	private void installReverseConnectionRule(FlowModBatch batch, IOFSwitch sw,
+			LoadBalancerInstance instance, int clientIp, short clientPort,
+			short virtualPort, int hostIp)
+	{
+		OFMatch reverseRule = new OFMatch();
+		reverseRule.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
+		reverseRule.setNetworkSource(hostIp);
+		reverseRule.setNetworkDestination(clientIp);
+		reverseRule.setNetworkProtocol(OFMatch.IP_PROTO_TCP);
+		reverseRule.setTransportSource(virtualPort);
+		reverseRule.setTransportDestination(clientPort);
+		
+		OFAction actionEthSrc = new OFActionSetField(OFOXMFieldType.ETH_SRC, instance.getVirtualMAC());
+		OFAction actionIpSrc = new OFActionSetField(OFOXMFieldType.IPV4_SRC, instance.getVirtualIP());
+		OFInstructionApplyActions instructionOut = new OFInstructionApplyActions(Arrays.asList(actionEthSrc, actionIpSrc));
+		OFInstruction redirectInstr = new OFInstructionGotoTable(L3Routing.table);
+		batch.installRule(sw, table, SwitchCommands.MAX_PRIORITY, reverseRule, Arrays.asList(instructionOut, redirectInstr), SwitchCommands.NO_TIMEOUT, IDLE_TIMEOUT);
+	}
+	
+	/**
+	 * Stop tracking a connection once its forward rule has timed out.
+	 */
+	private Command handleFlowRemoved(OFFlowRemoved flowRemoved)
+	{
+		OFMatch match = flowRemoved.getMatch();
+		if (flowRemoved.getPriority() != SwitchCommands.MAX_PRIORITY)
+		{ return Command.CONTINUE; }
+		int hostIp = this.connections.remove(match.getNetworkSource(),
+				match.getNetworkDestination(), match.getTransportSource(),
+				match.getTransportDestination());
+		if (0 == hostIp)
+		{ return Command.CONTINUE; }
+		
+		// The instance is gone if its virtual IP was removed
+		LoadBalancerInstance instance = this.instances.get(match.getNetworkDestination());
+		if (instance != null)
+		{ instance.connectionClosed(hostIp); }
+		return Command.STOP;
+	}
+	
+	@Override
+	public long getActiveConnections(int virtualIP)
+	{
+		LoadBalancerInstance instance = this.instances.get(virtualIP);
+		if (null == instance)
+		{ return -1; }
+		BackendSet backends = instance.getBackends();
+		long total = 0;
+		for (int hostIP : instance.getConfiguredHostIPs())
+		{
+			// Hosts that are down or draining are not in the snapshot
+			int index = backends.indexOf(hostIP);
+			if (index >= 0)
+			{ total += backends.getConnections(index); }
+			else
+			{ total += this.connections.count(virtualIP, hostIP); }
+		}
+		return total;
+	}
+	
+	@Override
+	public long getActiveConnections(int virtualIP, int hostIP)
+	{
+		LoadBalancerInstance instance = this.instances.get(virtualIP);
+		if (null == instance)
+		{ return -1; }
+		BackendSet backends = instance.getBackends();
+		int index = backends.indexOf(hostIP);
+		if (index >= 0)
+		{ return backends.getConnections(index); }
+		
+		// Hosts that are down or draining are not in the snapshot
+		if (!instance.getConfiguredHostIPs().contains(hostIP))
+		{ return -1; }
+		return this.connections.count(virtualIP, hostIP);
+	}
+	
+	/**
+	 * Create the strategy for choosing the host for a new connection, named
+	 * by the "selector" config option: roundrobin (the default), weighted, 
+	 * p2c, leastconn, leastloaded, or maglev.
+	 * @param config the module config
+	 */
+	private static BackendSelector createSelector(Map<String,String> config)
+	{
+		String name = config.get("selector");
+		if ("maglev".equals(name))
+		{
+			int tableSize = MaglevSelector.DEFAULT_TABLE_SIZE;
+			if (config.containsKey("maglevTableSize"))
+			{ tableSize = Integer.parseInt(config.get("maglevTableSize")); }
+			return new MaglevSelector(tableSize);
+		}
+		if ("weighted".equals(name))
+		{ return new WeightedRoundRobinSelector(); }
+		if ("p2c".equals(name))
+		{ return new PowerOfTwoChoicesSelector(); }
+		if ("leastconn".equals(name))
+		{ return new LeastConnectionsSelector(); }
+		if ("leastloaded".equals(name))
+		{ return new LeastLoadedSelector(); }
+		if (name != null && !"roundrobin".equals(name))
+		{ log.error("Unknown selector " + name + ", using roundrobin"); }
+		return new RoundRobinSelector();
+	}
+	
+	/**
+	 * Hash the 5-tuple of a TCP connection.
+	 */
+	private static int getFlowHash(int srcIp, int dstIp, short srcPort,
+			short dstPort)
+	{
+		int hash = srcIp;
+		hash = hash * 31 + dstIp;
+		hash = hash * 31 + (((srcPort & 0xffff) << 16) | (dstPort & 0xffff));
+		hash = hash * 31 + IPv4.PROTOCOL_TCP;
+		// Spread the bits, since nearby tuples differ only in a few of them
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		hash *= 0xc2b2ae35;
+		hash ^= hash >>> 16;
+		return hash;
+	}
+	
+	/**
+	 * Install the rules that balance all connections to a virtual IP without
+	 * involving the controller: one rule per client bucket, and one reverse
+	 * rule per host.
+	 * @param batch the batch to which FlowMods should be added
+	 * @param sw the switch in which to install the rules
+	 * @param instance the load balancer instance
+	 */
+	private void installBucketRules(FlowModBatch batch, IOFSwitch sw,
+			LoadBalancerInstance instance)
+	{
+		int[] bucketHosts = instance.getBucketHosts(this.buckets);
+		for (int bucket = 0; bucket < bucketHosts.length; bucket++)
+		{
+			batch.installRule(sw, this.table, this.getBucketPriority(),
+					this.getBucketMatch(instance, bucket),
+					this.getBucketInstructions(bucketHosts[bucket]));
+		}
+		for (int hostIP : instance.getHostIPs())
+		{ this.installReverseRule(batch, sw, instance, hostIP); }
+	}
+	
+	/**
+	 * Install a select group that sends each connection to a virtual IP to
+	 * one of the hosts, the rule that sends traffic for the virtual IP to the
+	 * group, and one reverse rule per host.
+	 * @param batch the batch to which FlowMods should be added
+	 * @param sw the switch in which to install the group and rules
+	 * @param instance the load balancer instance
+	 */
+	private void installGroupRules(FlowModBatch batch, IOFSwitch sw,
+			LoadBalancerInstance instance)
+	{
+		int groupId = this.groupIds.get(instance.getVirtualIP());
+		batch.installGroup(sw, OFGroupMod.OFPGT_SELECT, groupId,
+				this.getGroupBuckets(sw, instance));
+		
+		OFMatch match = new OFMatch();
+		match.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
+		match.setNetworkProtocol(OFMatch.IP_PROTO_TCP);
+		match.setNetworkDestination(instance.getVirtualIP());
+		OFAction group = new OFActionGroup(groupId);
+		batch.installRule(sw, this.table, this.getBucketPriority(), match,
+				Arrays.asList((OFInstruction) new OFInstructionApplyActions(Arrays.asList(group))));
+		
+		for (int hostIP : instance.getHostIPs())
+		{ this.installReverseRule(batch, sw, instance, hostIP); }
+	}
+	
+	/**
+	 * Get the buckets of the select group for a virtual IP in a switch, each
+	 * weighted like its host. Since a group ends the pipeline, each bucket 
+	 * rewrites traffic to a host and outputs it on the switch's route to the
+	 * host. Hosts whose MAC address or route is not known yet are left out;
+	 * if no host is left, traffic is sent to the controller and balanced per
+	 * connection instead.
+	 */
+	private List<OFBucket> getGroupBuckets(IOFSwitch sw,
+			LoadBalancerInstance instance)
+	{
+		List<OFBucket> buckets = new ArrayList<OFBucket>();
+		BackendSet backends = instance.getBackends();
+		for (int i = 0; i < backends.size(); i++)
+		{
+			int hostIP = backends.getHostIP(i);
+			byte[] hostMAC = this.getHostMACAddress(hostIP);
+			Integer port = this.routingProv.getOutputPort(sw.getId(), hostIP);
+			if (null == hostMAC || null == port)
+			{ continue; }
+			OFAction actionEthDst = new OFActionSetField(OFOXMFieldType.ETH_DST, hostMAC);
+			OFAction actionIpDst = new OFActionSetField(OFOXMFieldType.IPV4_DST, hostIP);
+			OFAction output = new OFActionOutput(port);
+			buckets.add(SwitchCommands.createBucket((short)backends.getWeight(i), 
+					OFPort.OFPP_ANY.getValue(), 
+					Arrays.asList(actionEthDst, actionIpDst, output)));
+		}
+		if (buckets.isEmpty())
+		{
+			OFAction output = new OFActionOutput(OFPort.OFPP_CONTROLLER);
+			buckets.add(SwitchCommands.createBucket((short)1, 
+					OFPort.OFPP_ANY.getValue(), Arrays.asList(output)));
+		}
+		return buckets;
+	}
+	
+	/**
+	 * Refresh the select groups of the virtual IPs that balance to hosts 
+	 * whose routes changed.
+	 * @param ips the IPv4 addresses of the hosts whose routes changed
+	 */
+	@Override
+	public void routesChanged(Set<Integer> ips)
+	{
+		if (!this.selectGroups)
+		{ return; }
+		FlowModBatch batch = new FlowModBatch();
+		for (LoadBalancerInstance instance : this.instances.values())
+		{
+			if (Collections.disjoint(instance.getHostIPs(), ips))
+			{ continue; }
+			for (IOFSwitch sw : this.floodlightProv.getAllSwitchMap().values())
+			{ this.modifyGroup(batch, sw, instance); }
+		}
+		batch.flush();
+	}
+	
+	/**
+	 * Replace the buckets of the select group for a virtual IP in a switch.
+	 */
+	private void modifyGroup(FlowModBatch batch, IOFSwitch sw,
+			LoadBalancerInstance instance)
+	{
+		batch.modifyGroup(sw, OFGroupMod.OFPGT_SELECT, 
+				this.groupIds.get(instance.getVirtualIP()),
+				this.getGroupBuckets(sw, instance));
+	}
+	
+	/**
+	 * Install the rule that makes replies from a host appear to come from a
+	 * virtual IP. Since the rule matches all TCP traffic from the host, a 
+	 * host may only serve one virtual IP in proactive and group modes.
+	 */
+	private void installReverseRule(FlowModBatch batch, IOFSwitch sw,
+			LoadBalancerInstance instance, int hostIP)
+	{
+		OFAction actionEthSrc = new OFActionSetField(OFOXMFieldType.ETH_SRC, instance.getVirtualMAC());
+		OFAction actionIpSrc = new OFActionSetField(OFOXMFieldType.IPV4_SRC, instance.getVirtualIP());
+		OFInstruction instruction = new OFInstructionApplyActions(Arrays.asList(actionEthSrc, actionIpSrc));
+		OFInstruction redirectInstr = new OFInstructionGotoTable(L3Routing.table);
+		batch.installRule(sw, this.table, this.getBucketPriority(),
+				this.getReverseMatch(hostIP),
+				Arrays.asList(instruction, redirectInstr));
+	}
+	
+	/**
+	 * Get the match for TCP traffic from a host.
+	 */
+	private OFMatch getReverseMatch(int hostIP)
+	{
+		OFMatch match = new OFMatch();
+		match.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
+		match.setNetworkProtocol(OFMatch.IP_PROTO_TCP);
+		match.setNetworkSource(hostIP);
+		return match;
+	}
+	
+	/**
+	 * Get the match for TCP traffic to a virtual IP from the clients in a
+	 * bucket. Clients are bucketed by the low bits of their IP address.
+	 */
+	private OFMatch getBucketMatch(LoadBalancerInstance instance, int bucket)
+	{
+		OFMatch match = new OFMatch();
+		match.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
+		match.setNetworkProtocol(OFMatch.IP_PROTO_TCP);
+		match.setNetworkDestination(instance.getVirtualIP());
+		match.setField(OFOXMFieldType.IPV4_SRC, bucket, this.buckets - 1);
+		return match;
+	}
+	
+	/**
+	 * Get the instructions that rewrite traffic to a virtual IP so it goes
+	 * to a host. If the host's MAC address is not known yet, the traffic is 
+	 * sent to the controller and balanced per connection instead.
+	 */
+	private List<OFInstruction> getBucketInstructions(int hostIP)
+	{
+		byte[] hostMAC = this.getHostMACAddress(hostIP);
+		if (null == hostMAC)
+		{
+			OFAction output = new OFActionOutput(OFPort.OFPP_CONTROLLER);
+			return Arrays.asList((OFInstruction) new OFInstructionApplyActions(Arrays.asList(output)));
+		}
+		OFAction actionEthDst = new OFActionSetField(OFOXMFieldType.ETH_DST, hostMAC);
+		OFAction actionIpDst = new OFActionSetField(OFOXMFieldType.IPV4_DST, hostIP);
+		OFInstruction instruction = new OFInstructionApplyActions(Arrays.asList(actionEthDst, actionIpDst));
+		OFInstruction redirectInstr = new OFInstructionGotoTable(L3Routing.table);
+		return Arrays.asList(instruction, redirectInstr);
+	}
+	
+	/**
+	 * Get the priority of proactive rules, which sits between per-connection
+	 * rules and the rules that send packets to the controller.
+	 */
+	private short getBucketPriority()
+	{ return (short)(SwitchCommands.DEFAULT_PRIORITY + 2); }
+	
+	@Override
+	public synchronized boolean setHostIPs(int virtualIP, List<Integer> hostIPs)
+	{
+		LoadBalancerInstance instance = this.instances.get(virtualIP);
+		if (null == instance || hostIPs.isEmpty())
+		{ return false; }
+		List<Integer> oldHostIPs = instance.getConfiguredHostIPs();
+		List<Integer> moved = instance.setHostIPs(hostIPs);
+		log.info("Updated load balancer instance: " + instance);
+		this.updateRules(instance, oldHostIPs, moved);
+		return true;
+	}
+	
+	@Override
+	public Collection<LoadBalancerInstance> getInstances()
+	{ return Collections.unmodifiableCollection(this.instances.values()); }
+	
+	@Override
+	public synchronized boolean addVirtualIP(int virtualIP, byte[] virtualMAC,
+			List<Integer> hostIPs)
+	{
+		if (this.instances.containsKey(virtualIP) || hostIPs.isEmpty())
+		{ return false; }
+		LoadBalancerInstance instance = new LoadBalancerInstance(virtualIP,
+				virtualMAC, hostIPs);
+		instance.setSelector(createSelector(this.config));
+		if (!this.groupIds.containsKey(virtualIP))
+		{ this.groupIds.put(virtualIP, this.nextGroupId++); }
+		this.instances.put(virtualIP, instance);
+		log.info("Added load balancer instance: " + instance);
+		
+		FlowModBatch batch = new FlowModBatch();
+		for (IOFSwitch sw : this.floodlightProv.getAllSwitchMap().values())
+		{ this.installInstanceRules(batch, sw, instance); }
+		batch.flush();
+		return true;
+	}
+	
+	@Override
+	public synchronized boolean removeVirtualIP(int virtualIP)
+	{
+		LoadBalancerInstance instance = this.instances.remove(virtualIP);
+		if (null == instance)
+		{ return false; }
+		log.info("Removed load balancer instance: " + instance);
+		
+		FlowModBatch batch = new FlowModBatch();
+		for (IOFSwitch sw : this.floodlightProv.getAllSwitchMap().values())
+		{ this.removeInstanceRules(batch, sw, instance); }
+		batch.flush();
+		return true;
+	}
+	
+	@Override
+	public synchronized boolean addHost(int virtualIP, int hostIP, int weight)
+	{
+		LoadBalancerInstance instance = this.instances.get(virtualIP);
+		if (null == instance)
+		{ return false; }
+		List<Integer> oldHostIPs = instance.getConfiguredHostIPs();
+		List<Integer> moved = instance.addHost(hostIP, weight);
+		log.info("Updated load balancer instance: " + instance);
+		this.updateRules(instance, oldHostIPs, moved);
+		return true;
+	}
+	
+	@Override
+	public synchronized boolean removeHost(int virtualIP, int hostIP)
+	{
+		LoadBalancerInstance instance = this.instances.get(virtualIP);
+		if (null == instance)
+		{ return false; }
+		List<Integer> oldHostIPs = instance.getConfiguredHostIPs();
+		List<Integer> moved = instance.removeHost(hostIP);
+		if (null == moved)
+		{ return false; }
+		log.info("Updated load balancer instance: " + instance);
+		this.updateRules(instance, oldHostIPs, moved);
+		return true;
+	}
+	
+	/**
+	 * Start or stop draining a host. In proactive and select-group modes, the
+	 * switch balances by client or by hash rather than by connection, so the
+	 * connections in buckets that move away from a draining host move too.
+	 */
+	@Override
+	public synchronized boolean setDraining(int virtualIP, int hostIP,
+			boolean draining)
+	{
+		LoadBalancerInstance instance = this.instances.get(virtualIP);
+		if (null == instance)
+		{ return false; }
+		List<Integer> oldHostIPs = instance.getConfiguredHostIPs();
+		List<Integer> moved = instance.setDraining(hostIP, draining);
+		if (null == moved)
+		{ return false; }
+		log.info("Updated load balancer instance: " + instance);
+		this.updateRules(instance, oldHostIPs, moved);
+		return true;
+	}
+	
+	/**
+	 * Stop sending new connections to hosts that went down, and resume 
+	 * sending them to hosts that came back up.
+	 */
+	@Override
+	public synchronized void healthChanged(int virtualIP, Set<Integer> upHosts,
+			Set<Integer> downHosts)
+	{
+		LoadBalancerInstance instance = this.instances.get(virtualIP);
+		if (null == instance)
+		{ return; }
+		List<Integer> oldHostIPs = instance.getConfiguredHostIPs();
+		List<Integer> moved = instance.setHostHealth(upHosts, downHosts);
+		log.info("Updated load balancer instance: " + instance);
+		this.updateRules(instance, oldHostIPs, moved);
+	}
+	
+	/**
+	 * Record the load of every host attached to a switch with new port 
+	 * statistics: the rate at which its access port sends it traffic.
+	 */
+	@Override
+	public void statsUpdated(Set<Long> switchIds)
+	{
+		PortRates rates = StatsCollector.getInstance().getPortRates();
+		for (LoadBalancerInstance instance : this.instances.values())
+		{
+			BackendSet backends = instance.getBackends();
+			for (int i = 0; i < backends.size(); i++)
+			{
+				HostCache.Entry host = HostCache.getInstance().lookup(
+						backends.getHostIP(i));
+				if (null == host || !host.isAttachedToSwitch()
+						|| !switchIds.contains(host.getSwitchId()))
+				{ continue; }
+				backends.setLoad(i, rates.getTransmitRate(host.getSwitchId(),
+						host.getPort()));
+			}
+		}
+	}
+	
+	/**
+	 * Update the proactive rules or select groups for a virtual IP after its
+	 * hosts changed, in a single batch. Only the rules for buckets that move
+	 * to another host are changed.
+	 * @param instance the load balancer instance
+	 * @param oldHostIPs the configured hosts before the change
+	 * @param moved the indices of the buckets whose host changed
+	 */
+	private void updateRules(LoadBalancerInstance instance,
+			List<Integer> oldHostIPs, List<Integer> moved)
+	{
+		if (!this.proactive && !this.selectGroups)
+		{ return; }
+		
+		List<Integer> hostIPs = instance.getHostIPs();
+		List<Integer> configuredHostIPs = instance.getConfiguredHostIPs();
+		int[] bucketHosts = instance.getBucketHosts(this.buckets);
+		FlowModBatch batch = new FlowModBatch();
+		for (IOFSwitch sw : this.floodlightProv.getAllSwitchMap().values())
+		{
+			for (int hostIP : hostIPs)
+			{
+				if (!oldHostIPs.contains(hostIP))
+				{ this.installReverseRule(batch, sw, instance, hostIP); }
+			}
+			if (this.selectGroups)
+			{ this.modifyGroup(batch, sw, instance); }
+			else
+			{
+				for (int bucket : moved)
+				{
+					batch.modifyRule(sw, this.table, this.getBucketPriority(),
+							this.getBucketMatch(instance, bucket),
+							this.getBucketInstructions(bucketHosts[bucket]));
+				}
+			}
+			// Hosts that are down or draining are still configured, and keep
+			// their reverse rule so their open connections are not cut off
+			for (int hostIP : oldHostIPs)
+			{
+				if (!configuredHostIPs.contains(hostIP))
+				{
+					batch.removeRule(sw, this.table, this.getBucketPriority(),
+							this.getReverseMatch(hostIP));
+				}
+			}
+		}
+		batch.flush();
+	}
+	
 	/**
 	 * Handle incoming packets sent from switches.
 	 * @param sw switch on which the packet was received
@@ -159,17 +888,56 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 	 */
 	@Override
 	public net.floodlightcontroller.core.IListener.Command receive(
-			IOFSwitch sw, OFMessage msg, FloodlightContext cntx) 
+			final IOFSwitch sw, OFMessage msg, FloodlightContext cntx) 
 	{
-		// We're only interested in packet-in messages
+		// We're only interested in packet-in and flow-removed messages
+		if (msg.getType() == OFType.FLOW_REMOVED)
+		{ return this.handleFlowRemoved((OFFlowRemoved)msg); }
 		if (msg.getType() != OFType.PACKET_IN)
 		{ return Command.CONTINUE; }
-		OFPacketIn pktIn = (OFPacketIn)msg;
+		final OFPacketIn pktIn = (OFPacketIn)msg;
+		
+		// Peek at the headers first, and only deserialize the packets we
+		// act on: SYNs and ARP requests for virtual IPs; the instance is
+		// looked up once and reused below
+		byte[] packetData = pktIn.getPacketData();
+		int etherType = PacketPeek.getEtherType(packetData);
+		LoadBalancerInstance instance;
+		if (Ethernet.TYPE_IPv4 == etherType)
+		{
+			if (PacketPeek.getTcpFlags(packetData) != TCP_FLAG_SYN)
+			{ return Command.CONTINUE; }
+			instance = instances.get(PacketPeek.getIpDestination(packetData));
+			if (null == instance)
+			{ return Command.CONTINUE; }
+		}
+		else if (Ethernet.TYPE_ARP == etherType)
+		{
+			int opCode = PacketPeek.getArpOpCode(packetData);
+			if (opCode != ARP.OP_REPLY && opCode != ARP.OP_REQUEST)
+			{ return Command.CONTINUE; }
+			int targetIp = PacketPeek.getArpTargetAddress(packetData);
+			instance = instances.get(targetIp);
+			if (null == instance)
+			{ return Command.CONTINUE; }
+			
+			// Answers to health check probes are addressed to virtual IPs
+			if (ARP.OP_REPLY == opCode)
+			{
+				if (this.healthChecker != null)
+				{
+					this.healthChecker.replyReceived(targetIp,
+							PacketPeek.getArpSenderAddress(packetData));
+				}
+				return Command.STOP;
+			}
+		}
+		else
+		{ return Command.CONTINUE; }
 		
 		// Handle the packet
 		Ethernet ethPkt = new Ethernet();
-		ethPkt.deserialize(pktIn.getPacketData(), 0,
-				pktIn.getPacketData().length);
+		ethPkt.deserialize(packetData, 0, packetData.length);
 		
 		/*********************************************************************/
 		/* TODO: Send an ARP reply for ARP requests for virtual IPs; for TCP */
@@ -180,52 +948,57 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 		/*********************************************************************/
 		 if (ethPkt.getEtherType() == Ethernet.TYPE_IPv4) {
 			IPv4 ipPacket = (IPv4)ethPkt.getPayload();
-			if (ipPacket.getProtocol() != IPv4.PROTOCOL_TCP) return Command.CONTINUE;
-			if (!instances.containsKey(ipPacket.getDestinationAddress())) return Command.CONTINUE;
-
 			TCP tcpPacket = (TCP)ipPacket.getPayload();
-			if (tcpPacket.getFlags() != TCP_FLAG_SYN) return Command.CONTINUE;
-			
-			LoadBalancerInstance instance = instances.get(ipPacket.getDestinationAddress());
-			int nextHostIp = instance.getNextHostIP();
+			int clientIp = ipPacket.getSourceAddress();
+			short clientPort = tcpPacket.getSourcePort();
+			short virtualPort = tcpPacket.getDestinationPort();
 			
-			OFMatch rule = new OFMatch();
-			rule.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
-			rule.setNetworkSource(ipPacket.getSourceAddress());
-			rule.setNetworkDestination(ipPacket.getDestinationAddress());
-			rule.setNetworkProtocol(OFMatch.IP_PROTO_TCP);
-			rule.setTransportSource(tcpPacket.getSourcePort());
-			rule.setTransportDestination(tcpPacket.getDestinationPort());
+			// A retransmitted SYN keeps the host chosen for the first one
+			int nextHostIp = this.connections.get(clientIp, instance.getVirtualIP(), clientPort, virtualPort);
+			if (0 == nextHostIp)
+			{
+				nextHostIp = instance.getNextHostIP(getFlowHash(clientIp,
+						instance.getVirtualIP(), clientPort, virtualPort));
+				if (!this.connections.put(clientIp, instance.getVirtualIP(), clientPort, virtualPort, nextHostIp, sw.getId()))
+				{ instance.connectionClosed(nextHostIp); }
+			}
+			EventLog.record(EventLog.CONNECTION, sw.getId(), instance.getVirtualIP(), nextHostIp);
 			
-			OFAction actionEthDst = new OFActionSetField(OFOXMFieldType.ETH_DST, getHostMACAddress(nextHostIp));
-			OFAction actionIpDst = new OFActionSetField(OFOXMFieldType.IPV4_DST, nextHostIp);
-			OFInstructionApplyActions instruction = new OFInstructionApplyActions(Arrays.asList(actionEthDst, actionIpDst));
-			OFInstruction redirectInstr = new OFInstructionGotoTable(L3Routing.table);
-			SwitchCommands.installRule(sw, table, SwitchCommands.MAX_PRIORITY, rule, Arrays.asList(instruction, redirectInstr), SwitchCommands.NO_TIMEOUT, IDLE_TIMEOUT);
+			// Install the reverse rule first, so the server's SYN-ACK is
+			// rewritten even if it comes back before the commit completes
+			FlowModBatch batch = new FlowModBatch();
+			this.installReverseConnectionRule(batch, sw, instance, clientIp, clientPort, virtualPort, nextHostIp);
 			
-			rule = new OFMatch();
-			rule.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
-			rule.setNetworkSource(nextHostIp);
-			rule.setNetworkDestination(ipPacket.getSourceAddress());
-			rule.setNetworkProtocol(OFMatch.IP_PROTO_TCP);
-			rule.setTransportSource(tcpPacket.getDestinationPort());
-			rule.setTransportDestination(tcpPacket.getSourcePort());
+			if (pktIn.getBufferId() != OFPacketOut.BUFFER_ID_NONE)
+			{
+				// The barrier keeps the switch from applying the forward rule,
+				// and so releasing the buffered SYN, before the reverse rule
+				batch.commit();
+				this.installForwardConnectionRule(batch, sw, instance, clientIp, clientPort, virtualPort, nextHostIp, pktIn.getBufferId());
+				batch.flush();
+				return Command.STOP;
+			}
 			
-			OFAction actionEthSrc = new OFActionSetField(OFOXMFieldType.ETH_SRC, ethPkt.getDestinationMACAddress());
-			OFAction actionIpSrc = new OFActionSetField(OFOXMFieldType.IPV4_SRC, ipPacket.getDestinationAddress());
-			OFInstructionApplyActions instructionOut = new OFInstructionApplyActions(Arrays.asList(actionEthSrc, actionIpSrc));
-			SwitchCommands.installRule(sw, table, SwitchCommands.MAX_PRIORITY, rule, Arrays.asList(instructionOut, redirectInstr), SwitchCommands.NO_TIMEOUT, IDLE_TIMEOUT);
+			// The switch did not buffer the SYN, so send it back through the
+			// tables, where it is rewritten, once its rules are live
+			this.installForwardConnectionRule(batch, sw, instance, clientIp, clientPort, virtualPort, nextHostIp, OFPacketOut.BUFFER_ID_NONE);
+			Futures.addCallback(batch.commit(), new FutureCallback<List<Long>>()
+			{
+				@Override
+				public void onSuccess(List<Long> switchIds)
+				{
+					SwitchCommands.releasePacket(sw, pktIn.getInPort(),
+							OFPacketOut.BUFFER_ID_NONE, pktIn.getPacketData());
+				}
+
+				@Override
+				public void onFailure(Throwable t)
+				{ log.warn("Connection rules not installed: " + t.getMessage()); }
+			});
 			
-			return Command.CONTINUE;
+			return Command.STOP;
 		}
 		if (ethPkt.getEtherType() == Ethernet.TYPE_ARP) {
-			ARP arpPacket = (ARP) ethPkt.getPayload();
-			if (arpPacket.getOpCode() != ARP.OP_REQUEST) return Command.CONTINUE;
-			int targetIp = ByteBuffer.wrap(arpPacket.getTargetProtocolAddress()).getInt();
-			if (!instances.containsKey(targetIp)) return Command.CONTINUE;
-
-			LoadBalancerInstance instance = instances.get(targetIp);
-			
 			Ethernet ether = new Ethernet();
 			ARP arp = new ARP();
 			ether.setPayload(arp);
@@ -236,7 +1009,7 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 			
 			arp.setOpCode(ARP.OP_REPLY);
 			arp.setSenderHardwareAddress(instance.getVirtualMAC());
-			arp.setSenderProtocolAddress(targetIp);
+			arp.setSenderProtocolAddress(instance.getVirtualIP());
 			arp.setTargetHardwareAddress(arp.getSenderHardwareAddress());
 			arp.setTargetProtocolAddress(arp.getSenderProtocolAddress());
 			arp.setHardwareType(ARP.HW_TYPE_ETHERNET);
@@ -258,14 +1031,8 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 	 * @return the hosts's MAC address, null if unknown
 	 */
 	private byte[] getHostMACAddress(int hostIPAddress)
-	{
-		Iterator<? extends IDevice> iterator = this.deviceProv.queryDevices(
-				null, null, hostIPAddress, null, null);
-		if (!iterator.hasNext())
-		{ return null; }
-		IDevice device = iterator.next();
-		return MACAddress.valueOf(device.getMACAddress()).toBytes();
-	}
+	{ return HostCache.getInstance().getMACAddress(hostIPAddress); }
+
 
 	/**
 	 * Event handler called when a switch leaves the network.
@@ -308,7 +1075,12 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
      */
 	@Override
 	public Collection<Class<? extends IFloodlightService>> getModuleServices() 
-	{ return null; }
+	{
+		Collection<Class<? extends IFloodlightService>> services =
+				new ArrayList<Class<? extends IFloodlightService>>();
+		services.add(ILoadBalancerService.class);
+		return services;
+	}
 
 	/**
      * Tell the module system which services we implement.
@@ -316,7 +1088,13 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 	@Override
 	public Map<Class<? extends IFloodlightService>, IFloodlightService> 
 			getServiceImpls() 
-	{ return null; }
+	{
+		Map<Class<? extends IFloodlightService>, IFloodlightService> services =
+				new HashMap<Class<? extends IFloodlightService>, 
+						IFloodlightService>();
+		services.put(ILoadBalancerService.class, this);
+		return services;
+	}
 
 	/**
      * Tell the module system which modules we depend on.
@@ -329,6 +1107,7 @@ public class LoadBalancer implements IFloodlightModule, IOFSwitchListener,
 	            new ArrayList<Class<? extends IFloodlightService>>();
         floodlightService.add(IFloodlightProviderService.class);
         floodlightService.add(IDeviceService.class);
+        floodlightService.add(IL3RoutingService.class);
         return floodlightService;
 	}
 
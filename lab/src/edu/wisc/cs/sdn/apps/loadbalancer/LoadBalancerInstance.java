@@ -1,24 +1,53 @@
 package edu.wisc.cs.sdn.apps.loadbalancer;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.util.MACAddress;
 
 public class LoadBalancerInstance 
 {
+	// Weight given to hosts whose weight is not configured
+	public static final int DEFAULT_WEIGHT = 1;
+	
 	// Virtual IP for this load balancer instance
 	private int virtualIP;
 	
 	// Virtual MAC address for this load balancer instance
 	private byte[] virtualMAC;
 	
-	// IPs for the hosts to which a flow could be sent
-	private List<Integer> hostIPs;
+	// Configured hosts, in order, with their weights
+	private Map<Integer,Integer> weights;
+	
+	// Configured hosts that are failing their health checks
+	private Set<Integer> downHosts;
+	
+	// Configured hosts that keep their connections but get no new ones
+	private Set<Integer> drainingHosts;
+	
+	// Hosts to which a flow could be sent, with their weights and connection
+	// counts; replaced as a whole when the hosts change
+	private volatile BackendSet backends;
+	
+	// Connections open to configured hosts that are not in the snapshot, so
+	// hosts that come back keep their counts
+	private Map<Integer,Long> parkedConnections;
+	
+	// Strategy for choosing the host for a new connection
+	private volatile BackendSelector selector;
 	
-	// The index for the last host to which a flow was sent;
-	private int lastHost;
+	// Host to which each client bucket is sent in proactive mode, or null if
+	// buckets have not been assigned
+	private int[] bucketHosts;
 	
 	/**
 	 * Create a load balancer instance.
@@ -31,25 +60,48 @@ public class LoadBalancerInstance
 	{
 		this.virtualIP = virtualIP;
 		this.virtualMAC = virtualMAC;
-		this.hostIPs = hostIPs;
-		this.lastHost = -1;
+		this.selector = new RoundRobinSelector();
+		this.weights = new LinkedHashMap<Integer,Integer>();
+		this.downHosts = new HashSet<Integer>();
+		this.drainingHosts = new HashSet<Integer>();
+		this.parkedConnections = new HashMap<Integer,Long>();
+		for (int hostIP : hostIPs)
+		{ this.weights.put(hostIP, DEFAULT_WEIGHT); }
+		int[] weights = new int[hostIPs.size()];
+		Arrays.fill(weights, DEFAULT_WEIGHT);
+		this.setBackends(new BackendSet(toArray(hostIPs), weights));
 	}
 	
 	/**
 	 * Create a load balancer instance.
 	 * @param virtualIP virtual IP address for the load balancer instance
 	 * @param virtualMAC virtual MAC address for the load balancer instances
-	 * @param hostIPs IPs for hosts to which requests should be balanced 
+	 * @param hostIPs IPs for hosts to which requests should be balanced, each
+	 *        optionally followed by a colon and a weight
 	 */
 	public LoadBalancerInstance(String virtualIP, String virtualMAC,
 			String[] hostIPs)
 	{
 		this.virtualIP = IPv4.toIPv4Address(virtualIP);
 		this.virtualMAC = MACAddress.valueOf(virtualMAC).toBytes();
-		this.hostIPs = new ArrayList<Integer>();
-		for (String hostIP : hostIPs)
-		{ this.hostIPs.add(IPv4.toIPv4Address(hostIP)); }
-		this.lastHost = -1;
+		this.selector = new RoundRobinSelector();
+		int[] ips = new int[hostIPs.length];
+		int[] weights = new int[hostIPs.length];
+		for (int i = 0; i < hostIPs.length; i++)
+		{
+			String[] hostConfig = hostIPs[i].split(":");
+			ips[i] = IPv4.toIPv4Address(hostConfig[0]);
+			weights[i] = (hostConfig.length > 1 
+					? Math.max(1, Integer.parseInt(hostConfig[1]))
+					: DEFAULT_WEIGHT);
+		}
+		this.weights = new LinkedHashMap<Integer,Integer>();
+		this.downHosts = new HashSet<Integer>();
+		this.drainingHosts = new HashSet<Integer>();
+		this.parkedConnections = new HashMap<Integer,Long>();
+		for (int i = 0; i < ips.length; i++)
+		{ this.weights.put(ips[i], weights[i]); }
+		this.setBackends(new BackendSet(ips, weights));
 	}
 	
 	/**
@@ -65,24 +117,366 @@ public class LoadBalancerInstance
 	{ return this.virtualMAC; }
 	
 	/**
-	 * Get the IP address for the next host in round-robin order.
+	 * Change the strategy for choosing the host for a new connection.
+	 * @param selector the strategy
+	 */
+	public synchronized void setSelector(BackendSelector selector)
+	{
+		selector.backendsChanged(this.backends);
+		this.selector = selector;
+	}
+	
+	/**
+	 * Get the IP address for the next host, as chosen by the selector. The
+	 * connection is counted as open to that host.
+	 * @param flowHash hash of the connection's 5-tuple
+	 * @return the IP address for the next host
+	 */
+	public int getNextHostIP(int flowHash)
+	{
+		BackendSet current = this.backends;
+		int index = this.selector.select(current, flowHash);
+		current.connectionOpened(index);
+		return current.getHostIP(index);
+	}
+	
+	/**
+	 * Get the IP address for the next host, as chosen by the selector.
 	 * @return the IP address for the next host
 	 */
 	public int getNextHostIP()
+	{ return this.getNextHostIP(0); }
+	
+	/**
+	 * Record that a connection to a host was closed.
+	 * @param hostIP the IP for the host
+	 */
+	public void connectionClosed(int hostIP)
+	{
+		BackendSet current = this.backends;
+		int index = current.indexOf(hostIP);
+		if (index >= 0)
+		{ current.connectionClosed(index); }
+		else
+		{ this.parkedConnectionClosed(hostIP); }
+	}
+	
+	/**
+	 * Record that a connection to a host that was not in the snapshot was
+	 * closed.
+	 */
+	private synchronized void parkedConnectionClosed(int hostIP)
+	{
+		// The host may have come back since the snapshot was read
+		BackendSet current = this.backends;
+		int index = current.indexOf(hostIP);
+		if (index >= 0)
+		{
+			current.connectionClosed(index);
+			return;
+		}
+		Long count = this.parkedConnections.get(hostIP);
+		if (count != null && count > 0)
+		{ this.parkedConnections.put(hostIP, count - 1); }
+	}
+	
+	/**
+	 * Get the current hosts, with their weights and connection counts.
+	 */
+	public BackendSet getBackends()
+	{ return this.backends; }
+	
+	/**
+	 * Publish a new snapshot of the hosts, after telling the selector.
+	 */
+	private void setBackends(BackendSet backends)
+	{
+		this.selector.backendsChanged(backends);
+		this.backends = backends;
+	}
+	
+	/**
+	 * Get the host to which each client bucket should be sent, giving each
+	 * host a share of the buckets in proportion to its weight the first 
+	 * time.
+	 * @param buckets the number of buckets
+	 * @return a copy of the array of host IPs, indexed by bucket
+	 */
+	public synchronized int[] getBucketHosts(int buckets)
+	{
+		if (null == this.bucketHosts || this.bucketHosts.length != buckets)
+		{
+			this.bucketHosts = new int[buckets];
+			List<Integer> all = new ArrayList<Integer>(buckets);
+			for (int i = 0; i < buckets; i++)
+			{ all.add(i); }
+			this.assignBuckets(all, getQuotas(this.backends, buckets));
+		}
+		return this.bucketHosts.clone();
+	}
+	
+	/**
+	 * Split buckets among the hosts in a snapshot in proportion to their 
+	 * weights, using the largest remainder method: each host gets the whole
+	 * part of its share, and the buckets left over go to the hosts with the 
+	 * largest fractional parts, ties going to the first hosts.
+	 * @param backends the hosts
+	 * @param buckets the number of buckets
+	 * @return the number of buckets for each host IP
+	 */
+	private static Map<Integer,Integer> getQuotas(BackendSet backends, 
+			int buckets)
+	{
+		long totalWeight = 0;
+		for (int i = 0; i < backends.size(); i++)
+		{ totalWeight += backends.getWeight(i); }
+		
+		Map<Integer,Integer> quota = new LinkedHashMap<Integer,Integer>();
+		long[] remainders = new long[backends.size()];
+		int left = buckets;
+		for (int i = 0; i < backends.size(); i++)
+		{
+			long share = (long)buckets * backends.getWeight(i);
+			quota.put(backends.getHostIP(i), (int)(share / totalWeight));
+			remainders[i] = share % totalWeight;
+			left -= (int)(share / totalWeight);
+		}
+		for (; left > 0; left--)
+		{
+			int largest = 0;
+			for (int i = 1; i < remainders.length; i++)
+			{
+				if (remainders[i] > remainders[largest])
+				{ largest = i; }
+			}
+			remainders[largest] = -1;
+			int hostIP = backends.getHostIP(largest);
+			quota.put(hostIP, quota.get(hostIP) + 1);
+		}
+		return quota;
+	}
+	
+	/**
+	 * Send buckets to the hosts that are below their share of buckets, in 
+	 * host order.
+	 * @param buckets the indices of the buckets
+	 * @param quota the number of buckets each host IP may still get; the
+	 *        quotas must add up to at least the number of buckets
+	 */
+	private void assignBuckets(List<Integer> buckets, 
+			Map<Integer,Integer> quota)
+	{
+		Iterator<Map.Entry<Integer,Integer>> hosts = 
+				quota.entrySet().iterator();
+		Map.Entry<Integer,Integer> host = hosts.next();
+		for (int bucket : buckets)
+		{
+			while (0 == host.getValue())
+			{ host = hosts.next(); }
+			this.bucketHosts[bucket] = host.getKey();
+			host.setValue(host.getValue() - 1);
+		}
+	}
+	
+	/**
+	 * Replace the configured hosts. Hosts that remain keep their weight, 
+	 * health and connection count, and new hosts get the default weight and
+	 * are assumed healthy.
+	 * @param hostIPs IPs for hosts to which requests should be balanced; must
+	 *        not be empty
+	 * @return the indices of the buckets whose host changed
+	 */
+	public synchronized List<Integer> setHostIPs(List<Integer> hostIPs)
+	{
+		Map<Integer,Integer> weights = new LinkedHashMap<Integer,Integer>();
+		for (int hostIP : hostIPs)
+		{
+			Integer weight = this.weights.get(hostIP);
+			weights.put(hostIP, (null == weight ? DEFAULT_WEIGHT : weight));
+		}
+		this.weights = weights;
+		this.downHosts.retainAll(weights.keySet());
+		this.drainingHosts.retainAll(weights.keySet());
+		return this.updateBackends();
+	}
+	
+	/**
+	 * Add a configured host, or change the weight of a configured host.
+	 * @param hostIP the IP for the host
+	 * @param weight the host's weight; at least 1
+	 * @return the indices of the buckets whose host changed
+	 */
+	public synchronized List<Integer> addHost(int hostIP, int weight)
+	{
+		this.weights.put(hostIP, Math.max(1, weight));
+		return this.updateBackends();
+	}
+	
+	/**
+	 * Remove a configured host. The last host cannot be removed.
+	 * @param hostIP the IP for the host
+	 * @return the indices of the buckets whose host changed, or null if the
+	 *         host is not configured or is the last host
+	 */
+	public synchronized List<Integer> removeHost(int hostIP)
+	{
+		if (!this.weights.containsKey(hostIP) || 1 == this.weights.size())
+		{ return null; }
+		this.weights.remove(hostIP);
+		this.downHosts.remove(hostIP);
+		this.drainingHosts.remove(hostIP);
+		return this.updateBackends();
+	}
+	
+	/**
+	 * Start or stop draining a configured host. A draining host gets no new
+	 * connections, but its open connections are left alone.
+	 * @param hostIP the IP for the host
+	 * @param draining whether the host should be drained
+	 * @return the indices of the buckets whose host changed, or null if the
+	 *         host is not configured
+	 */
+	public synchronized List<Integer> setDraining(int hostIP, boolean draining)
+	{
+		if (!this.weights.containsKey(hostIP))
+		{ return null; }
+		if (draining)
+		{ this.drainingHosts.add(hostIP); }
+		else
+		{ this.drainingHosts.remove(hostIP); }
+		return this.updateBackends();
+	}
+	
+	/**
+	 * Check whether a configured host is being drained.
+	 * @param hostIP the IP for the host
+	 */
+	public synchronized boolean isDraining(int hostIP)
+	{ return this.drainingHosts.contains(hostIP); }
+	
+	/**
+	 * Record the result of health checks. Hosts that are down are no longer
+	 * chosen for new connections, unless every host is down.
+	 * @param upHosts IPs for hosts that passed their health checks
+	 * @param downHosts IPs for hosts that failed their health checks
+	 * @return the indices of the buckets whose host changed
+	 */
+	public synchronized List<Integer> setHostHealth(Collection<Integer> upHosts,
+			Collection<Integer> downHosts)
+	{
+		this.downHosts.removeAll(upHosts);
+		for (int hostIP : downHosts)
+		{
+			if (this.weights.containsKey(hostIP))
+			{ this.downHosts.add(hostIP); }
+		}
+		return this.updateBackends();
+	}
+	
+	/**
+	 * Get the IPs for the configured hosts, including hosts that are down.
+	 */
+	public synchronized List<Integer> getConfiguredHostIPs()
+	{ return new ArrayList<Integer>(this.weights.keySet()); }
+	
+	/**
+	 * Publish a snapshot of the configured hosts that are up and not being
+	 * drained, and move buckets so they are only sent to those hosts. 
+	 * Buckets stay with their host unless the host left or has more than 
+	 * its share of buckets, so only those buckets move. If no host is left, 
+	 * all of them are used, since refusing connections is no better than 
+	 * sending them to a host that may have recovered.
+	 * @return the indices of the buckets whose host changed
+	 */
+	private List<Integer> updateBackends()
+	{
+		List<Integer> hostIPs = new ArrayList<Integer>(this.weights.keySet());
+		hostIPs.removeAll(this.downHosts);
+		hostIPs.removeAll(this.drainingHosts);
+		if (hostIPs.isEmpty())
+		{ hostIPs.addAll(this.weights.keySet()); }
+		int[] ips = toArray(hostIPs);
+		int[] weights = new int[ips.length];
+		for (int i = 0; i < ips.length; i++)
+		{ weights[i] = this.weights.get(ips[i]); }
+		BackendSet previous = this.backends;
+		BackendSet backends = new BackendSet(ips, weights, previous);
+		
+		// Hosts that leave the snapshot park their counts until they return
+		for (int i = 0; i < previous.size(); i++)
+		{
+			if (backends.indexOf(previous.getHostIP(i)) < 0)
+			{
+				this.parkedConnections.put(previous.getHostIP(i),
+						previous.getConnections(i));
+			}
+		}
+		for (int i = 0; i < ips.length; i++)
+		{
+			Long count = this.parkedConnections.remove(ips[i]);
+			if (count != null)
+			{ backends.setConnections(i, count); }
+		}
+		this.parkedConnections.keySet().retainAll(this.weights.keySet());
+		this.setBackends(backends);
+		
+		List<Integer> moved = new ArrayList<Integer>();
+		if (null == this.bucketHosts)
+		{ return moved; }
+		
+		// Each host gets a share of the buckets in proportion to its weight
+		int buckets = this.bucketHosts.length;
+		Map<Integer,Integer> quota = getQuotas(backends, buckets);
+		
+		// Keep buckets whose host remains and is within its share
+		for (int i = 0; i < buckets; i++)
+		{
+			Integer remaining = quota.get(this.bucketHosts[i]);
+			if (remaining != null && remaining > 0)
+			{ quota.put(this.bucketHosts[i], remaining - 1); }
+			else
+			{ moved.add(i); }
+		}
+		
+		// Give the other buckets to hosts below their share
+		if (!moved.isEmpty())
+		{ this.assignBuckets(moved, quota); }
+		return moved;
+	}
+	
+	/**
+	 * Get the IPs for the hosts to which requests are balanced.
+	 */
+	public List<Integer> getHostIPs()
+	{
+		BackendSet current = this.backends;
+		List<Integer> hostIPs = new ArrayList<Integer>(current.size());
+		for (int i = 0; i < current.size(); i++)
+		{ hostIPs.add(current.getHostIP(i)); }
+		return hostIPs;
+	}
+	
+	private static int[] toArray(List<Integer> values)
 	{
-		lastHost++;
-		if (lastHost >= hostIPs.size())
-		{ lastHost = 0; }
-		return hostIPs.get(lastHost);
+		int[] array = new int[values.size()];
+		for (int i = 0; i < array.length; i++)
+		{ array[i] = values.get(i); }
+		return array;
 	}
 	
 	@Override
 	public String toString()
 	{
+		BackendSet current = this.backends;
 		String result = IPv4.fromIPv4Address(this.virtualIP);
 		result += " " + MACAddress.valueOf(this.virtualMAC).toString() + " ";
-		for (Integer hostIP : this.hostIPs)
-		{ result += IPv4.fromIPv4Address(hostIP) + ","; }
+		for (int i = 0; i < current.size(); i++)
+		{
+			result += IPv4.fromIPv4Address(current.getHostIP(i));
+			if (current.getWeight(i) != DEFAULT_WEIGHT)
+			{ result += ":" + current.getWeight(i); }
+			result += ",";
+		}
 		if (',' == result.charAt(result.length()-1))
 		{ result = result.substring(0, result.length()-1); }
 		return result;
@@ -0,0 +1,170 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.util.Arrays;
+
+/**
+ * Maps connections to hosts with a Maglev lookup table: a flat array of
+ * host indices, filled from a per-host permutation derived only from the
+ * host's IP. Selection is a single index by the flow hash, so a connection
+ * always maps to the same host; when a host is added or removed, only about
+ * 1/N of the table entries change. Controllers configured with the same
+ * hosts build the same table, so replicas agree without sharing state.
+ */
+public class MaglevSelector implements BackendSelector
+{
+	// Default number of entries in the lookup table; must be prime
+	public static final int DEFAULT_TABLE_SIZE = 65537;
+
+	// Number of entries in the lookup table
+	private int tableSize;
+
+	// Lookup table and the snapshot it was built for
+	private volatile Table table;
+
+	/**
+	 * Create a selector with the default table size.
+	 */
+	public MaglevSelector()
+	{ this(DEFAULT_TABLE_SIZE); }
+
+	/**
+	 * Create a selector.
+	 * @param tableSize number of entries in the lookup table; rounded up to
+	 *        a prime, and should be much larger than the number of hosts
+	 */
+	public MaglevSelector(int tableSize)
+	{ this.tableSize = nextPrime(Math.max(2, tableSize)); }
+
+	/**
+	 * Get the number of entries in the lookup table.
+	 */
+	public int getTableSize()
+	{ return this.tableSize; }
+
+	@Override
+	public void backendsChanged(BackendSet backends)
+	{ this.table = new Table(backends, this.populate(backends)); }
+
+	@Override
+	public int select(BackendSet backends, int flowHash)
+	{
+		Table current = this.table;
+		int index = current.entries[(flowHash & Integer.MAX_VALUE)
+				% current.entries.length];
+		if (current.backends == backends)
+		{ return index; }
+
+		// The table was built for another snapshot; map by host IP
+		int mapped = backends.indexOf(current.backends.getHostIP(index));
+		return (mapped >= 0 ? mapped
+				: (flowHash & Integer.MAX_VALUE) % backends.size());
+	}
+
+	/**
+	 * Fill the lookup table. Hosts take turns claiming the next free entry in
+	 * their own permutation of the table, a host with weight w taking w
+	 * entries per turn, until the table is full. Turns go in ascending order
+	 * of host IP rather than snapshot order, so the table depends only on
+	 * the set of hosts and their weights.
+	 */
+	private int[] populate(BackendSet backends)
+	{
+		int size = backends.size();
+		int[] entries = new int[this.tableSize];
+		if (0 == size)
+		{ return entries; }
+		Arrays.fill(entries, -1);
+
+		int[] offset = new int[size];
+		int[] skip = new int[size];
+		int[] next = new int[size];
+		for (int i = 0; i < size; i++)
+		{
+			int hostIP = backends.getHostIP(i);
+			offset[i] = (mix(hostIP, 0x9e3779b9) & Integer.MAX_VALUE)
+					% this.tableSize;
+			skip[i] = (mix(hostIP, 0x7f4a7c15) & Integer.MAX_VALUE)
+					% (this.tableSize - 1) + 1;
+		}
+
+		// Sort the indices by IP, keeping each index in the low bits
+		long[] sorted = new long[size];
+		for (int i = 0; i < size; i++)
+		{ sorted[i] = ((backends.getHostIP(i) & 0xffffffffL) << 32) | i; }
+		Arrays.sort(sorted);
+
+		int filled = 0;
+		while (true)
+		{
+			for (long key : sorted)
+			{
+				int i = (int)key;
+				for (int turn = 0; turn < backends.getWeight(i); turn++)
+				{
+					int entry = (int)((offset[i] + (long)next[i] * skip[i])
+							% this.tableSize);
+					while (entries[entry] >= 0)
+					{
+						next[i]++;
+						entry = (int)((offset[i] + (long)next[i] * skip[i])
+								% this.tableSize);
+					}
+					entries[entry] = i;
+					next[i]++;
+					filled++;
+					if (filled == this.tableSize)
+					{ return entries; }
+				}
+			}
+		}
+	}
+
+	/**
+	 * Hash a host IP with a seed, so each host gets an independent offset
+	 * and skip.
+	 */
+	private static int mix(int value, int seed)
+	{
+		int hash = value * 0xcc9e2d51 + seed;
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		hash *= 0xc2b2ae35;
+		hash ^= hash >>> 16;
+		return hash;
+	}
+
+	private static int nextPrime(int value)
+	{
+		while (!isPrime(value))
+		{ value++; }
+		return value;
+	}
+
+	private static boolean isPrime(int value)
+	{
+		if (value < 2)
+		{ return false; }
+		for (int divisor = 2; (long)divisor * divisor <= value; divisor++)
+		{
+			if (0 == value % divisor)
+			{ return false; }
+		}
+		return true;
+	}
+
+	/**
+	 * A lookup table and the snapshot whose host indices it holds.
+	 */
+	private static class Table
+	{
+		private final BackendSet backends;
+		private final int[] entries;
+
+		private Table(BackendSet backends, int[] entries)
+		{
+			this.backends = backends;
+			this.entries = entries;
+		}
+	}
+}
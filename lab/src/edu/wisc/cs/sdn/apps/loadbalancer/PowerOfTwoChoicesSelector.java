@@ -0,0 +1,30 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Picks two hosts at random and sends the connection to the one with fewer
+ * open connections relative to its weight. This gets close to
+ * least-connections while reading only two counters.
+ */
+public class PowerOfTwoChoicesSelector implements BackendSelector
+{
+	@Override
+	public void backendsChanged(BackendSet backends)
+	{ /* Nothing we need to do */ }
+
+	@Override
+	public int select(BackendSet backends, int flowHash)
+	{
+		int size = backends.size();
+		if (1 == size)
+		{ return 0; }
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int first = random.nextInt(size);
+		int second = random.nextInt(size - 1);
+		if (second >= first)
+		{ second++; }
+		return (LeastConnectionsSelector.isLessLoaded(backends, second, first)
+				? second : first);
+	}
+}
@@ -0,0 +1,23 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends connections to the hosts in turn, ignoring weights.
+ */
+public class RoundRobinSelector implements BackendSelector
+{
+	// Number of connections assigned so far
+	private AtomicInteger next = new AtomicInteger();
+
+	@Override
+	public void backendsChanged(BackendSet backends)
+	{ /* Nothing we need to do */ }
+
+	@Override
+	public int select(BackendSet backends, int flowHash)
+	{
+		return (this.next.getAndIncrement() & Integer.MAX_VALUE)
+				% backends.size();
+	}
+}
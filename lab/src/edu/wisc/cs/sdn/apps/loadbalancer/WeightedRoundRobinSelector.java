@@ -0,0 +1,105 @@
+package edu.wisc.cs.sdn.apps.loadbalancer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends connections to the hosts in proportion to their weights, spreading
+ * each host's turns evenly over the cycle (smooth weighted round-robin).
+ * The cycle is computed once per change of hosts, so selection is a single
+ * atomic increment and array read.
+ */
+public class WeightedRoundRobinSelector implements BackendSelector
+{
+	// Longest cycle we precompute; larger weights are scaled down
+	private static final int MAX_CYCLE = 4096;
+
+	// Number of connections assigned so far
+	private AtomicInteger next = new AtomicInteger();
+
+	// Index of the host for each turn of the cycle, and the snapshot the
+	// indices refer to
+	private volatile Cycle cycle = new Cycle(null, new int[] { 0 });
+
+	@Override
+	public void backendsChanged(BackendSet backends)
+	{
+		int size = backends.size();
+		if (0 == size)
+		{ return; }
+		int[] weights = new int[size];
+		int divisor = 0;
+		for (int i = 0; i < size; i++)
+		{
+			weights[i] = Math.max(1, backends.getWeight(i));
+			divisor = gcd(divisor, weights[i]);
+		}
+		long total = 0;
+		for (int i = 0; i < size; i++)
+		{
+			weights[i] /= divisor;
+			total += weights[i];
+		}
+		if (total > MAX_CYCLE)
+		{
+			long scaled = 0;
+			for (int i = 0; i < size; i++)
+			{
+				weights[i] = (int)Math.max(1, weights[i] * MAX_CYCLE / total);
+				scaled += weights[i];
+			}
+			total = scaled;
+		}
+
+		// Each turn, every host gains its weight and the host with the most
+		// credit is picked and pays back the total
+		int[] order = new int[(int)total];
+		long[] credit = new long[size];
+		for (int turn = 0; turn < order.length; turn++)
+		{
+			int best = 0;
+			for (int i = 0; i < size; i++)
+			{
+				credit[i] += weights[i];
+				if (credit[i] > credit[best])
+				{ best = i; }
+			}
+			credit[best] -= total;
+			order[turn] = best;
+		}
+		this.cycle = new Cycle(backends, order);
+	}
+
+	@Override
+	public int select(BackendSet backends, int flowHash)
+	{
+		Cycle current = this.cycle;
+		int host = current.order[(this.next.getAndIncrement()
+				& Integer.MAX_VALUE) % current.order.length];
+		if (current.backends == backends)
+		{ return host; }
+
+		// The cycle was built for another snapshot; map by host IP
+		int mapped = (null == current.backends ? -1
+				: backends.indexOf(current.backends.getHostIP(host)));
+		return (mapped >= 0 ? mapped
+				: (flowHash & Integer.MAX_VALUE) % backends.size());
+	}
+
+	private static int gcd(int a, int b)
+	{ return (0 == b ? a : gcd(b, a % b)); }
+
+	/**
+	 * A cycle of turns and the snapshot whose host indices it holds.
+	 */
+	private static class Cycle
+	{
+		private final BackendSet backends;
+		private final int[] order;
+
+		private Cycle(BackendSet backends, int[] order)
+		{
+			this.backends = backends;
+			this.order = order;
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFOXMFieldType;
+import org.openflow.protocol.OFPort;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionOutput;
+import org.openflow.protocol.action.OFActionSetField;
+import org.openflow.protocol.instruction.OFInstruction;
+import org.openflow.protocol.instruction.OFInstructionApplyActions;
+
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.packet.ARP;
+
+/**
+ * Builds rules that let a switch answer ARP requests for an IP itself. The
+ * rule turns a request into a reply from the IP's MAC address and sends it
+ * back out the port it came in on.
+ *
+ * OpenFlow 1.3 can set header fields but not copy one into another, so the
+ * reply keeps the request's Ethernet destination (normally broadcast) and
+ * target addresses, rather than being addressed to the requester. Hosts
+ * that are waiting for the answer still take the sender's addresses from
+ * it, as they do from a gratuitous ARP.
+ */
+public class ArpResponder
+{
+	// Priority of responder rules; above the rules that send ARP packets to
+	// the controller, which still handle requests for other IPs
+	public static final short PRIORITY =
+			(short)(SwitchCommands.DEFAULT_PRIORITY + 3);
+
+	private ArpResponder()
+	{ }
+
+	/**
+	 * Queue the installation of the rule that answers ARP requests for an IP.
+	 * @param batch the batch to which the FlowMod should be added
+	 * @param sw the switch in which to install the rule
+	 * @param table the table in which to install the rule
+	 * @param ip the IPv4 address whose requests are answered
+	 * @param mac the MAC address to answer with
+	 */
+	public static void install(FlowModBatch batch, IOFSwitch sw, byte table,
+			int ip, byte[] mac)
+	{
+		batch.installRule(sw, table, PRIORITY, getMatch(ip),
+				getInstructions(ip, mac));
+	}
+
+	/**
+	 * Queue the removal of the rule that answers ARP requests for an IP.
+	 * @see #install(FlowModBatch, IOFSwitch, byte, int, byte[])
+	 */
+	public static void remove(FlowModBatch batch, IOFSwitch sw, byte table,
+			int ip)
+	{ batch.removeRule(sw, table, PRIORITY, getMatch(ip)); }
+
+	/**
+	 * Get the match for ARP requests for an IP.
+	 */
+	private static OFMatch getMatch(int ip)
+	{
+		OFMatch match = new OFMatch();
+		match.setDataLayerType(OFMatch.ETH_TYPE_ARP);
+		match.setField(OFOXMFieldType.ARP_OP, ARP.OP_REQUEST);
+		match.setField(OFOXMFieldType.ARP_TPA, ip);
+		return match;
+	}
+
+	/**
+	 * Get the instructions that turn an ARP request into a reply.
+	 */
+	private static List<OFInstruction> getInstructions(int ip, byte[] mac)
+	{
+		List<OFAction> actions = Arrays.asList(
+				(OFAction) new OFActionSetField(OFOXMFieldType.ETH_SRC, mac),
+				new OFActionSetField(OFOXMFieldType.ARP_OP, ARP.OP_REPLY),
+				new OFActionSetField(OFOXMFieldType.ARP_SHA, mac),
+				new OFActionSetField(OFOXMFieldType.ARP_SPA, ip),
+				new OFActionOutput(OFPort.OFPP_IN_PORT));
+		return Arrays.asList(
+				(OFInstruction) new OFInstructionApplyActions(actions));
+	}
+}
@@ -1,13 +1,26 @@
 package edu.wisc.cs.sdn.apps.util;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.openflow.protocol.OFMatch;
 import org.openflow.protocol.OFMessage;
 import org.openflow.protocol.OFPacketIn;
+import org.openflow.protocol.OFPort;
 import org.openflow.protocol.OFType;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionOutput;
+import org.openflow.protocol.instruction.OFInstruction;
+import org.openflow.protocol.instruction.OFInstructionApplyActions;
+import org.openflow.protocol.instruction.OFInstructionMeter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -15,11 +28,15 @@ import net.floodlightcontroller.core.FloodlightContext;
 import net.floodlightcontroller.core.IFloodlightProviderService;
 import net.floodlightcontroller.core.IOFMessageListener;
 import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.IOFSwitch.PortChangeType;
+import net.floodlightcontroller.core.IOFSwitchListener;
+import net.floodlightcontroller.core.ImmutablePort;
 import net.floodlightcontroller.core.module.FloodlightModuleContext;
 import net.floodlightcontroller.core.module.FloodlightModuleException;
 import net.floodlightcontroller.core.module.IFloodlightModule;
 import net.floodlightcontroller.core.module.IFloodlightService;
 import net.floodlightcontroller.devicemanager.IDevice;
+import net.floodlightcontroller.devicemanager.IDeviceListener;
 import net.floodlightcontroller.devicemanager.IDeviceService;
 import net.floodlightcontroller.devicemanager.internal.DeviceManagerImpl;
 import net.floodlightcontroller.packet.ARP;
@@ -27,10 +44,29 @@ import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.util.MACAddress;
 
-public class ArpServer implements IFloodlightModule, IOFMessageListener
+public class ArpServer implements IFloodlightModule, IOFMessageListener,
+		IOFSwitchListener
 {
 	public static final String MODULE_NAME = ArpServer.class.getSimpleName();
 	
+	// Default time a repeated request from a sender for a target is ignored
+	private static final long DEFAULT_DEDUP_WINDOW_MS = 500;
+	
+	// Default ARP requests handled per second, and at once, from a port
+	private static final int DEFAULT_RATE_LIMIT = 100;
+	private static final int DEFAULT_BURST = 200;
+	
+	// Number of (sender, target) pairs the duplicate filter remembers
+	private static final int DEDUP_SLOTS = 4096;
+	
+	// ID of the meter that limits ARP packets sent to the controller
+	private static final int ARP_METER_ID = 1;
+	
+	// Priority of the metered rule that sends ARP packets to the controller;
+	// above the load balancer's rules for virtual IPs, below responder rules
+	private static final short ARP_METER_PRIORITY = 
+			(short)(SwitchCommands.DEFAULT_PRIORITY + 2);
+	
 	// Interface to the logging system
     private static Logger log = LoggerFactory.getLogger(MODULE_NAME);
     
@@ -39,6 +75,36 @@ public class ArpServer implements IFloodlightModule, IOFMessageListener
     
     // Interface to device manager service
     private IDeviceService deviceProv;
+    
+    // Whether switches answer ARP requests for known hosts themselves
+    private boolean arpResponder;
+    
+    // Switch table in which ARP responder rules should be installed
+    private byte table;
+    
+    // MAC address each IP's ARP responder rule answers with
+    private Map<Integer,Long> responders;
+    
+    // Recognizes requests repeated by a sender for the same target
+    private DuplicateFilter duplicates;
+    
+    // ARP requests handled per second, and at once, from a port; 0 for no
+    // limit
+    private int rateLimit;
+    private int burst;
+    
+    // Rate limiter for each switch port, keyed by DPID and then port; a 
+    // switch's limiters are dropped when it leaves the network
+    private ConcurrentHashMap<Long,ConcurrentHashMap<Integer,TokenBucket>> 
+    		rateLimiters;
+    
+    // ARP packets sent to the controller per second by each switch; 0 for
+    // no meter
+    private int meterRate;
+    
+    // Number of requests dropped as duplicates, and by the rate limit
+    private AtomicLong suppressedCount;
+    private AtomicLong rateLimitedCount;
 
 	@Override
 	public void init(FloodlightModuleContext context)
@@ -48,6 +114,29 @@ public class ArpServer implements IFloodlightModule, IOFMessageListener
 		this.floodlightProv = context.getServiceImpl(
 				IFloodlightProviderService.class);
 		this.deviceProv = context.getServiceImpl(IDeviceService.class);
+		
+		Map<String,String> config = context.getConfigParams(this);
+		this.arpResponder = Boolean.parseBoolean(config.get("arpResponder"));
+		if (config.containsKey("table"))
+		{ this.table = Byte.parseByte(config.get("table")); }
+		this.responders = new HashMap<Integer,Long>();
+		
+		long dedupWindow = DEFAULT_DEDUP_WINDOW_MS;
+		if (config.containsKey("dedupWindow"))
+		{ dedupWindow = Long.parseLong(config.get("dedupWindow")); }
+		this.duplicates = new DuplicateFilter(DEDUP_SLOTS, dedupWindow);
+		this.rateLimit = DEFAULT_RATE_LIMIT;
+		if (config.containsKey("rateLimit"))
+		{ this.rateLimit = Integer.parseInt(config.get("rateLimit")); }
+		this.burst = DEFAULT_BURST;
+		if (config.containsKey("burst"))
+		{ this.burst = Integer.parseInt(config.get("burst")); }
+		this.rateLimiters = new ConcurrentHashMap<Long,
+				ConcurrentHashMap<Integer,TokenBucket>>();
+		if (config.containsKey("meterRate"))
+		{ this.meterRate = Integer.parseInt(config.get("meterRate")); }
+		this.suppressedCount = new AtomicLong();
+		this.rateLimitedCount = new AtomicLong();
 	}
 
 	/**
@@ -59,7 +148,126 @@ public class ArpServer implements IFloodlightModule, IOFMessageListener
 	{
 		log.info(String.format("Starting %s...", MODULE_NAME));
 		this.floodlightProv.addOFMessageListener(OFType.PACKET_IN, this);
+		HostCache.register(this.deviceProv);
+		if (this.arpResponder || this.meterRate > 0 || this.rateLimit > 0)
+		{ this.floodlightProv.addOFSwitchListener(this); }
+		if (this.arpResponder)
+		{ this.deviceProv.addListener(new ResponderUpdater()); }
+	}
+	
+	/**
+	 * Install a meter that limits the ARP packets a new switch sends to the
+	 * controller, and ARP responder rules for the known hosts.
+	 * @param DPID for the switch
+	 */
+	@Override
+	public synchronized void switchAdded(long switchId)
+	{
+		IOFSwitch sw = this.floodlightProv.getSwitch(switchId);
+		FlowModBatch batch = new FlowModBatch();
+		if (this.meterRate > 0)
+		{
+			OFMatch match = new OFMatch();
+			match.setDataLayerType(OFMatch.ETH_TYPE_ARP);
+			OFAction output = new OFActionOutput(OFPort.OFPP_CONTROLLER);
+			batch.installMeter(sw, ARP_METER_ID, this.meterRate, this.burst);
+			batch.installRule(sw, this.table, ARP_METER_PRIORITY, match,
+					Arrays.asList(
+						(OFInstruction) new OFInstructionMeter(ARP_METER_ID),
+						new OFInstructionApplyActions(Arrays.asList(output))));
+		}
+		for (Map.Entry<Integer,Long> responder : this.responders.entrySet())
+		{
+			ArpResponder.install(batch, sw, this.table, responder.getKey(),
+					MACAddress.valueOf(responder.getValue()).toBytes());
+		}
+		batch.flush();
+	}
+	
+	/**
+	 * Bring the ARP responder rules for a host's IPs up to date in every
+	 * switch: add rules for its current IPs, and remove the rules for IPs it
+	 * no longer has.
+	 * @param device information about the host
+	 * @param removed whether the host left the network
+	 */
+	private synchronized void updateResponders(IDevice device, boolean removed)
+	{
+		long mac = device.getMACAddress();
+		Set<Integer> ips = new HashSet<Integer>();
+		if (!removed && device.getIPv4Addresses() != null)
+		{
+			for (Integer ip : device.getIPv4Addresses())
+			{
+				if (ip != null && ip != 0)
+				{ ips.add(ip); }
+			}
+		}
+		
+		Collection<IOFSwitch> switches = 
+				this.floodlightProv.getAllSwitchMap().values();
+		FlowModBatch batch = new FlowModBatch();
+		Iterator<Map.Entry<Integer,Long>> iterator = 
+				this.responders.entrySet().iterator();
+		while (iterator.hasNext())
+		{
+			Map.Entry<Integer,Long> responder = iterator.next();
+			if (responder.getValue() != mac || ips.contains(responder.getKey()))
+			{ continue; }
+			for (IOFSwitch sw : switches)
+			{ ArpResponder.remove(batch, sw, this.table, responder.getKey()); }
+			iterator.remove();
+		}
+		for (int ip : ips)
+		{
+			Long previous = this.responders.put(ip, mac);
+			if (previous != null && previous == mac)
+			{ continue; }
+			for (IOFSwitch sw : switches)
+			{
+				ArpResponder.install(batch, sw, this.table, ip, 
+						MACAddress.valueOf(mac).toBytes());
+			}
+		}
+		batch.flush();
 	}
+	
+	/**
+	 * Event handler called when a switch leaves the network; forgets the
+	 * rate limiters of its ports.
+	 * @param DPID for the switch
+	 */
+	@Override
+	public void switchRemoved(long switchId)
+	{ this.rateLimiters.remove(switchId); }
+	
+	/**
+	 * Event handler called when the controller becomes the master for a switch.
+	 * @param DPID for the switch
+	 */
+	@Override
+	public void switchActivated(long switchId)
+	{ /* Nothing we need to do, since we're not switching controller roles */ }
+	
+	/**
+	 * Event handler called when a port on a switch goes up or down, or is
+	 * added or removed.
+	 * @param DPID for the switch
+	 * @param port the port on the switch whose status changed
+	 * @param type the type of status change (up, down, add, remove)
+	 */
+	@Override
+	public void switchPortChanged(long switchId, ImmutablePort port,
+			PortChangeType type)
+	{ /* Nothing we need to do, since responder rules are port-agnostic */ }
+	
+	/**
+	 * Event handler called when some attribute of a switch changes.
+	 * @param DPID for the switch
+	 */
+	@Override
+	public void switchChanged(long switchId)
+	{ /* Nothing we need to do */ }
 
 	/**
      * Tell the module system which services we provide.
@@ -105,7 +313,7 @@ public class ArpServer implements IFloodlightModule, IOFMessageListener
 	@Override
 	public boolean isCallbackOrderingPrereq(OFType type, String name) 
 	{ return false; }
-
+	
 	/**
 	 * Check if events must be passed to another module after this module has
 	 * been notified of the event.
@@ -129,31 +337,41 @@ public class ArpServer implements IFloodlightModule, IOFMessageListener
 		{ return Command.CONTINUE; }
 		OFPacketIn pktIn = (OFPacketIn)msg;
 		
-		// We only care about ARP packets
-		Ethernet eth = new Ethernet();
-		eth.deserialize(pktIn.getPacketData(), 0, pktIn.getPacketData().length);
-		if (eth.getEtherType() != Ethernet.TYPE_ARP)
+		// We only care about ARP requests for IPv4 addresses; check the raw
+		// headers, so other packets are never deserialized
+		byte[] packetData = pktIn.getPacketData();
+		if (PacketPeek.getArpOpCode(packetData) != ARP.OP_REQUEST)
 		{ return Command.CONTINUE; }
-		ARP arp = (ARP)eth.getPayload();
 		
-		// We only care about ARP requests for IPv4 addresses
-		if (arp.getOpCode() != ARP.OP_REQUEST 
-				|| arp.getProtocolType() != ARP.PROTO_TYPE_IP)
-		{ return Command.CONTINUE; }
-				
-		// See if we known about the device whose MAC address is being requested
-		int targetIP = IPv4.toIPv4Address(arp.getTargetProtocolAddress());
-		log.info(String.format("Received ARP request for %s from %s",
-				IPv4.fromIPv4Address(targetIP),
-				MACAddress.valueOf(arp.getSenderHardwareAddress()).toString()));
-		Iterator<? extends IDevice> deviceIterator = 
-				this.deviceProv.queryDevices(null, null, targetIP, null, null);
-		if (!deviceIterator.hasNext())
+		// See if we known about the device whose MAC address is being 
+		// requested; other requests, e.g. for virtual IPs, are left to the
+		// modules that answer them
+		int targetIP = PacketPeek.getArpTargetAddress(packetData);
+		byte[] deviceMac = HostCache.getInstance().getMACAddress(targetIP);
+		if (null == deviceMac)
 		{ return Command.CONTINUE; }
 		
+		// Drop requests the sender repeated before it could have seen our
+		// reply, and requests beyond the rate limit for the port; no other 
+		// module needs to see them either
+		long pair = ((long)PacketPeek.getArpSenderAddress(packetData) << 32)
+				| (targetIP & 0xffffffffL);
+		if (this.duplicates.isDuplicate(pair))
+		{
+			this.suppressedCount.incrementAndGet();
+			return Command.STOP;
+		}
+		if (!this.allowRequest(sw.getId(), pktIn.getInPort()))
+		{
+			this.rateLimitedCount.incrementAndGet();
+			return Command.STOP;
+		}
+		
+		Ethernet eth = new Ethernet();
+		eth.deserialize(packetData, 0, packetData.length);
+		ARP arp = (ARP)eth.getPayload();
+		
 		// Create ARP reply
-		IDevice device = deviceIterator.next();
-		byte[] deviceMac = MACAddress.valueOf(device.getMACAddress()).toBytes();
 		arp.setOpCode(ARP.OP_REPLY);
 		arp.setTargetHardwareAddress(arp.getSenderHardwareAddress());
 		arp.setTargetProtocolAddress(arp.getSenderProtocolAddress());
@@ -163,11 +381,123 @@ public class ArpServer implements IFloodlightModule, IOFMessageListener
 		eth.setSourceMACAddress(deviceMac);
 		
 		// Send the ARP reply
-		log.info(String.format("Sending ARP reply %s->%s",
-				IPv4.fromIPv4Address(targetIP),
-				MACAddress.valueOf(deviceMac).toString()));
+		EventLog.record(EventLog.ARP_REPLY, sw.getId(), targetIP,
+				IPv4.toIPv4Address(arp.getTargetProtocolAddress()));
 		SwitchCommands.sendPacket(sw, (short)pktIn.getInPort(), eth);
 	
 		return Command.STOP;
 	}
+	
+	/**
+	 * Take a token from the rate limiter for a switch port.
+	 * @return false if the port is over its rate limit
+	 */
+	private boolean allowRequest(long switchId, int port)
+	{
+		if (this.rateLimit <= 0)
+		{ return true; }
+		
+		ConcurrentHashMap<Integer,TokenBucket> limiters = 
+				this.rateLimiters.get(switchId);
+		if (null == limiters)
+		{
+			limiters = new ConcurrentHashMap<Integer,TokenBucket>();
+			ConcurrentHashMap<Integer,TokenBucket> existing = 
+					this.rateLimiters.putIfAbsent(switchId, limiters);
+			if (existing != null)
+			{ limiters = existing; }
+		}
+		TokenBucket limiter = limiters.get(port);
+		if (null == limiter)
+		{
+			limiter = new TokenBucket(this.rateLimit, this.burst);
+			TokenBucket existing = limiters.putIfAbsent(port, limiter);
+			if (existing != null)
+			{ limiter = existing; }
+		}
+		return limiter.tryAcquire();
+	}
+	
+	/**
+	 * Get the number of ARP requests dropped as duplicates.
+	 */
+	public long getSuppressedCount()
+	{ return this.suppressedCount.get(); }
+	
+	/**
+	 * Get the number of ARP requests dropped by the per-port rate limit.
+	 */
+	public long getRateLimitedCount()
+	{ return this.rateLimitedCount.get(); }
+	
+	/**
+	 * Keeps the ARP responder rules in step with the hosts the device manager
+	 * knows. Device events are handled by a separate listener, since a 
+	 * module cannot listen for both OpenFlow messages and device events.
+	 */
+	private class ResponderUpdater implements IDeviceListener
+	{
+		/**
+		 * Event handler called when a host joins the network.
+		 * @param device information about the host
+		 */
+		@Override
+		public void deviceAdded(IDevice device)
+		{ updateResponders(device, false); }
+	
+		/**
+		 * Event handler called when a host is no longer attached to a switch.
+		 * @param device information about the host
+		 */
+		@Override
+		public void deviceRemoved(IDevice device)
+		{ updateResponders(device, true); }
+	
+		/**
+		 * Event handler called when a host moves within the network.
+		 * @param device information about the host
+		 */
+		@Override
+		public void deviceMoved(IDevice device)
+		{ /* Nothing we need to do, since responder rules are port-agnostic */ }
+	
+		/**
+		 * Event handler called when the IP address of a host changes.
+		 * @param device information about the host
+		 */
+		@Override
+		public void deviceIPV4AddrChanged(IDevice device)
+		{ updateResponders(device, false); }
+	
+		/**
+		 * Event handler called when the VLAN of a host changes.
+		 * @param device information about the host
+		 */
+		@Override
+		public void deviceVlanChanged(IDevice device)
+		{ /* Nothing we need to do, since we're not using VLANs */ }
+	
+		/**
+		 * Gets a name for this listener.
+		 */
+		@Override
+		public String getName()
+		{ return MODULE_NAME; }
+	
+		/**
+		 * Check if device events must be passed to another module before this
+		 * module is notified of the event.
+		 */
+		@Override
+		public boolean isCallbackOrderingPrereq(String type, String name)
+		{ return false; }
+	
+		/**
+		 * Check if device events must be passed to another module after this
+		 * module has been notified of the event.
+		 */
+		@Override
+		public boolean isCallbackOrderingPostreq(String type, String name)
+		{ return false; }
+	}
 }
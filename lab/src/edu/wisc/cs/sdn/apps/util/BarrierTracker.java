@@ -0,0 +1,392 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openflow.protocol.OFBarrierRequest;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import net.floodlightcontroller.core.FloodlightContext;
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.IOFMessageListener;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.IOFSwitch.PortChangeType;
+import net.floodlightcontroller.core.IOFSwitchListener;
+import net.floodlightcontroller.core.ImmutablePort;
+
+/**
+ * Matches barrier replies from switches with the barrier requests sent by the
+ * applications. Once a switch answers a barrier, every message written to the
+ * switch before the barrier has been processed, so the future returned for
+ * the barrier tells when a batch of rules is actually live. A barrier that
+ * is not answered within the timeout fails, so callers waiting on it are
+ * never stuck.
+ *
+ * A single tracker is shared by all applications; each application must call
+ * {@link #register(IFloodlightProviderService)} during startup.
+ */
+public class BarrierTracker implements IOFMessageListener, IOFSwitchListener
+{
+	public static final String MODULE_NAME =
+			BarrierTracker.class.getSimpleName();
+
+	// Default time a switch has to answer a barrier, in seconds
+	public static final long DEFAULT_TIMEOUT = 10;
+
+	// Interface to the logging system
+    private static Logger log = LoggerFactory.getLogger(MODULE_NAME);
+
+    // The tracker shared by all applications
+    private static final BarrierTracker instance = new BarrierTracker();
+
+    // Whether the tracker is subscribed to switch and barrier events
+    private boolean registered;
+
+    // Outstanding barriers, keyed by switch DPID and then transaction ID
+    private ConcurrentHashMap<Long,ConcurrentMap<Integer,PendingBarrier>>
+    		pending;
+
+    // Number of barriers answered, and total and worst time to answer them
+    private AtomicLong completedCount;
+    private AtomicLong completedNanos;
+    private AtomicLong maxNanos;
+
+    // Number of barriers that were not answered in time
+    private AtomicLong timeoutCount;
+
+    // Time a switch has to answer a barrier, in seconds
+    private volatile long timeout;
+
+    // Thread that fails barriers that were not answered in time
+    private ScheduledExecutorService timer;
+
+    private BarrierTracker()
+    {
+    	this.pending = new ConcurrentHashMap<Long,
+    			ConcurrentMap<Integer,PendingBarrier>>();
+    	this.completedCount = new AtomicLong();
+    	this.completedNanos = new AtomicLong();
+    	this.maxNanos = new AtomicLong();
+    	this.timeoutCount = new AtomicLong();
+    	this.timeout = DEFAULT_TIMEOUT;
+    	this.timer = Executors.newSingleThreadScheduledExecutor(
+    			new ThreadFactory()
+    			{
+    				@Override
+    				public Thread newThread(Runnable runnable)
+    				{
+    					Thread thread = new Thread(runnable, MODULE_NAME);
+    					thread.setDaemon(true);
+    					return thread;
+    				}
+    			});
+    }
+
+    /**
+     * Get the tracker shared by all applications.
+     */
+    public static BarrierTracker getInstance()
+    { return instance; }
+
+    /**
+     * Subscribe the shared tracker to barrier replies and switch events, if
+     * it is not already subscribed.
+     * @param floodlightProv Floodlight core service
+     */
+    public static void register(IFloodlightProviderService floodlightProv)
+    {
+    	synchronized (instance)
+    	{
+    		if (instance.registered)
+    		{ return; }
+    		floodlightProv.addOFMessageListener(OFType.BARRIER_REPLY, instance);
+    		floodlightProv.addOFSwitchListener(instance);
+    		instance.registered = true;
+    	}
+    }
+
+    /**
+     * Set the time a switch has to answer a barrier; barriers already sent
+     * keep their timeout.
+     * @param seconds the timeout, in seconds
+     */
+    public void setTimeout(long seconds)
+    { this.timeout = seconds; }
+
+    /**
+     * Create a barrier request for a switch and start tracking it. The
+     * request must be written to the switch after the messages it covers.
+     * @param sw the switch to which the barrier will be sent
+     * @param completion completed with the switch's DPID when the switch
+     *        answers the barrier, or with an exception if the switch is or
+     *        becomes disconnected, does not answer in time, or the barrier
+     *        cannot be sent
+     * @return the barrier request to send
+     */
+    OFBarrierRequest createBarrier(IOFSwitch sw, SettableFuture<Long> completion)
+    {
+    	OFBarrierRequest barrier = new OFBarrierRequest();
+    	barrier.setXid(sw.getNextTransactionId());
+
+    	// The switch will never answer, and may already have been removed
+    	if (!sw.isConnected())
+    	{
+    		completion.setException(new IOException(String.format(
+    				"Switch s%d is not connected", sw.getId())));
+    		return barrier;
+    	}
+
+    	ConcurrentMap<Integer,PendingBarrier> barriers =
+    			this.pending.get(sw.getId());
+    	if (null == barriers)
+    	{
+    		barriers = new ConcurrentHashMap<Integer,PendingBarrier>();
+    		ConcurrentMap<Integer,PendingBarrier> existing =
+    				this.pending.putIfAbsent(sw.getId(), barriers);
+    		if (existing != null)
+    		{ barriers = existing; }
+    	}
+    	PendingBarrier pendingBarrier = new PendingBarrier(completion);
+    	barriers.put(barrier.getXid(), pendingBarrier);
+    	pendingBarrier.timeout = this.timer.schedule(
+    			new Timeout(sw.getId(), barrier.getXid(), barriers,
+    					pendingBarrier), this.timeout, TimeUnit.SECONDS);
+    	return barrier;
+    }
+
+    /**
+     * Stop tracking a barrier that could not be sent.
+     * @param sw the switch to which the barrier was to be sent
+     * @param barrier the barrier request
+     * @param cause why the barrier could not be sent
+     */
+    void abortBarrier(IOFSwitch sw, OFBarrierRequest barrier, Throwable cause)
+    {
+    	ConcurrentMap<Integer,PendingBarrier> barriers =
+    			this.pending.get(sw.getId());
+    	if (null == barriers)
+    	{ return; }
+    	PendingBarrier pendingBarrier = barriers.remove(barrier.getXid());
+    	if (pendingBarrier != null)
+    	{ pendingBarrier.fail(cause); }
+    }
+
+    /**
+     * Send a barrier to a switch on its own, e.g. after messages that were
+     * written without a batch.
+     * @param sw the switch
+     * @return a future completed with the switch's DPID when the switch has
+     *         processed every message sent to it before the barrier
+     */
+    public ListenableFuture<Long> sendBarrier(IOFSwitch sw)
+    {
+    	SettableFuture<Long> completion = SettableFuture.create();
+    	OFBarrierRequest barrier = this.createBarrier(sw, completion);
+    	try
+    	{
+    		sw.write(barrier, null);
+    		sw.flush();
+    	}
+    	catch (IOException e)
+    	{ this.abortBarrier(sw, barrier, e); }
+    	return completion;
+    }
+
+    /**
+     * Get the number of barriers that switches have answered.
+     */
+    public long getCompletedCount()
+    { return this.completedCount.get(); }
+
+    /**
+     * Get the average time, in microseconds, between sending a barrier and
+     * receiving its reply; this is the time taken to install the rules
+     * committed with the barrier.
+     */
+    public double getAverageLatencyMicros()
+    {
+    	long count = this.completedCount.get();
+    	return (0 == count ? 0 : this.completedNanos.get() / 1000.0 / count);
+    }
+
+    /**
+     * Get the longest time, in microseconds, between sending a barrier and
+     * receiving its reply.
+     */
+    public double getMaxLatencyMicros()
+    { return this.maxNanos.get() / 1000.0; }
+
+    /**
+     * Get the number of barriers that were not answered in time.
+     */
+    public long getTimeoutCount()
+    { return this.timeoutCount.get(); }
+
+    /**
+     * Complete the future for an answered barrier.
+     */
+	@Override
+	public Command receive(IOFSwitch sw, OFMessage msg, FloodlightContext cntx)
+	{
+		if (msg.getType() != OFType.BARRIER_REPLY)
+		{ return Command.CONTINUE; }
+		ConcurrentMap<Integer,PendingBarrier> barriers =
+				this.pending.get(sw.getId());
+		if (null == barriers)
+		{ return Command.CONTINUE; }
+		PendingBarrier pendingBarrier = barriers.remove(msg.getXid());
+		if (null == pendingBarrier)
+		{ return Command.CONTINUE; }
+
+		pendingBarrier.cancelTimeout();
+		long elapsed = System.nanoTime() - pendingBarrier.sent;
+		this.completedCount.incrementAndGet();
+		this.completedNanos.addAndGet(elapsed);
+		long max = this.maxNanos.get();
+		while (elapsed > max && !this.maxNanos.compareAndSet(max, elapsed))
+		{ max = this.maxNanos.get(); }
+		if (log.isDebugEnabled())
+		{
+			log.debug(String.format("Barrier %d answered by s%d in %d us",
+					msg.getXid(), sw.getId(), elapsed / 1000));
+		}
+
+		pendingBarrier.completion.set(sw.getId());
+		return Command.STOP;
+	}
+
+	/**
+	 * Fail the outstanding barriers of a switch that left the network.
+	 * @param DPID for the switch
+	 */
+	@Override
+	public void switchRemoved(long switchId)
+	{
+		ConcurrentMap<Integer,PendingBarrier> barriers =
+				this.pending.remove(switchId);
+		if (null == barriers)
+		{ return; }
+		IOException cause = new IOException(String.format(
+				"Switch s%d disconnected before answering barrier", switchId));
+		for (PendingBarrier pendingBarrier : barriers.values())
+		{ pendingBarrier.fail(cause); }
+	}
+
+	@Override
+	public void switchAdded(long switchId)
+	{ /* Nothing we need to do */ }
+
+	@Override
+	public void switchActivated(long switchId)
+	{ /* Nothing we need to do */ }
+
+	@Override
+	public void switchPortChanged(long switchId, ImmutablePort port,
+			PortChangeType type)
+	{ /* Nothing we need to do */ }
+
+	@Override
+	public void switchChanged(long switchId)
+	{ /* Nothing we need to do */ }
+
+	/**
+	 * Gets a name for this listener.
+	 */
+	@Override
+	public String getName()
+	{ return MODULE_NAME; }
+
+	@Override
+	public boolean isCallbackOrderingPrereq(OFType type, String name)
+	{ return false; }
+
+	@Override
+	public boolean isCallbackOrderingPostreq(OFType type, String name)
+	{ return false; }
+
+	/**
+	 * A barrier waiting for its reply.
+	 */
+	private static class PendingBarrier
+	{
+		// Completed when the reply arrives
+		private SettableFuture<Long> completion;
+
+		// When the barrier was created
+		private long sent;
+
+		// Fails the barrier if it is not answered in time
+		private volatile ScheduledFuture<?> timeout;
+
+		private PendingBarrier(SettableFuture<Long> completion)
+		{
+			this.completion = completion;
+			this.sent = System.nanoTime();
+		}
+
+		/**
+		 * Stop waiting for the barrier to time out.
+		 */
+		private void cancelTimeout()
+		{
+			ScheduledFuture<?> timeout = this.timeout;
+			if (timeout != null)
+			{ timeout.cancel(false); }
+		}
+
+		/**
+		 * Fail the barrier, and stop waiting for it to time out.
+		 */
+		private void fail(Throwable cause)
+		{
+			this.cancelTimeout();
+			this.completion.setException(cause);
+		}
+	}
+
+	/**
+	 * Fails a barrier that is still outstanding when its timeout expires.
+	 */
+	private class Timeout implements Runnable
+	{
+		private final long switchId;
+		private final int xid;
+		private final ConcurrentMap<Integer,PendingBarrier> barriers;
+		private final PendingBarrier pendingBarrier;
+
+		private Timeout(long switchId, int xid,
+				ConcurrentMap<Integer,PendingBarrier> barriers,
+				PendingBarrier pendingBarrier)
+		{
+			this.switchId = switchId;
+			this.xid = xid;
+			this.barriers = barriers;
+			this.pendingBarrier = pendingBarrier;
+		}
+
+		@Override
+		public void run()
+		{
+			if (!this.barriers.remove(this.xid, this.pendingBarrier))
+			{ return; }
+			timeoutCount.incrementAndGet();
+			this.pendingBarrier.completion.setException(new TimeoutException(
+					String.format("Switch s%d did not answer barrier %d",
+							this.switchId, this.xid)));
+		}
+	}
+}
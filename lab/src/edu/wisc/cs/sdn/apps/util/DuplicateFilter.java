@@ -0,0 +1,62 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recognizes keys seen again within a time window. Keys are kept in a fixed
+ * table indexed by their hash, one key per slot, so memory is bounded and
+ * nothing is allocated; a key whose slot is taken over by another key is
+ * forgotten early, which only lets a duplicate through.
+ */
+public class DuplicateFilter
+{
+	// Key last seen in each slot
+	private long[] keys;
+
+	// When the key in each slot was last let through
+	private long[] times;
+
+	// How long a key is a duplicate after it is let through, in nanoseconds
+	private long windowNanos;
+
+	/**
+	 * Create a filter.
+	 * @param size the number of slots; rounded up to a power of 2
+	 * @param windowMs how long a key is a duplicate after it is let through,
+	 *        in milliseconds
+	 */
+	public DuplicateFilter(int size, long windowMs)
+	{
+		int capacity = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+		this.keys = new long[capacity];
+		this.times = new long[capacity];
+		this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMs);
+
+		// No slot holds a key that is still in its window
+		Arrays.fill(this.times, System.nanoTime() - this.windowNanos - 1);
+	}
+
+	/**
+	 * Check whether a key was let through within the window, and let it
+	 * through if not.
+	 * @param key the key
+	 * @return true if the key is a duplicate and should be dropped
+	 */
+	public synchronized boolean isDuplicate(long key)
+	{
+		long now = System.nanoTime();
+		int slot = hash(key) & (this.keys.length - 1);
+		if (this.keys[slot] == key && now - this.times[slot] <= this.windowNanos)
+		{ return true; }
+		this.keys[slot] = key;
+		this.times[slot] = now;
+		return false;
+	}
+
+	private static int hash(long key)
+	{
+		key *= 0x9e3779b97f4a7c15L;
+		return (int)(key ^ (key >>> 32));
+	}
+}
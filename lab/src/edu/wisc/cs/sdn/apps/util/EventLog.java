@@ -0,0 +1,194 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.floodlightcontroller.packet.IPv4;
+
+/**
+ * Records what the applications do on packet paths (packets sent, rules and
+ * groups written, ARP replies, load balancer decisions) in a fixed-size ring
+ * buffer of primitive fields, instead of building a log line for each one.
+ * Recording never allocates, and costs a single volatile read while the log
+ * is disabled. At high rates, only one in every N events can be kept. The
+ * most recent events can be dumped on demand.
+ *
+ * A single log is shared by all applications; it is disabled until
+ * {@link #configure(int, int)} is called.
+ */
+public class EventLog
+{
+	// Event types, with the meaning of their two values
+	public static final int PACKET_OUT = 0;    // output port, EtherType
+	public static final int FLOW_MOD = 1;      // command, table << 16 | priority
+	public static final int GROUP_MOD = 2;     // command, group ID
+	public static final int METER_MOD = 3;     // command, meter ID
+	public static final int ARP_REPLY = 4;     // target IP, sender IP
+	public static final int CONNECTION = 5;    // virtual IP, host IP
+	public static final int BATCH_FLUSH = 6;   // messages, microseconds
+
+	// Names of the event types, and whether their values are IP addresses
+	private static final String[] NAMES = { "PACKET_OUT", "FLOW_MOD",
+			"GROUP_MOD", "METER_MOD", "ARP_REPLY", "CONNECTION",
+			"BATCH_FLUSH" };
+	private static final boolean[] IP_VALUES = { false, false, false, false,
+			true, true, false };
+
+	// The log shared by all applications
+	private static final EventLog instance = new EventLog();
+
+	// Buffer events are recorded in, or null while the log is disabled
+	private volatile Ring ring;
+
+	private EventLog()
+	{ }
+
+	/**
+	 * Enable or disable the shared log. Events already recorded are dropped.
+	 * @param capacity number of events kept; rounded up to a power of 2, or
+	 *        0 to disable the log
+	 * @param sampleRate keep one in every sampleRate events; rounded up to a
+	 *        power of 2
+	 */
+	public static void configure(int capacity, int sampleRate)
+	{
+		if (capacity <= 0)
+		{
+			instance.ring = null;
+			return;
+		}
+		instance.ring = new Ring(powerOfTwo(capacity),
+				powerOfTwo(Math.max(sampleRate, 1)));
+	}
+
+	/**
+	 * Check whether the shared log is enabled.
+	 */
+	public static boolean isEnabled()
+	{ return (instance.ring != null); }
+
+	/**
+	 * Record an event in the shared log, if it is enabled and the event is
+	 * sampled.
+	 * @param type the event type, e.g. EventLog.FLOW_MOD
+	 * @param switchId DPID for the switch the event concerns, or 0
+	 * @param value1 the first value, whose meaning depends on the type
+	 * @param value2 the second value, whose meaning depends on the type
+	 */
+	public static void record(int type, long switchId, int value1, int value2)
+	{
+		Ring ring = instance.ring;
+		if (null == ring)
+		{ return; }
+		if ((ring.offered.getAndIncrement() & ring.sampleMask) != 0)
+		{ return; }
+
+		long sequence = ring.next.getAndIncrement();
+		int slot = (int)(sequence & ring.mask);
+
+		// Mark the slot as being written, so a dump running at the same time
+		// skips it rather than reporting a mix of two events
+		ring.sequences[slot] = -1;
+		ring.times[slot] = System.nanoTime();
+		ring.switchIds[slot] = switchId;
+		ring.types[slot] = type;
+		ring.values1[slot] = value1;
+		ring.values2[slot] = value2;
+		ring.sequences[slot] = sequence;
+	}
+
+	/**
+	 * Get the number of events offered to the shared log since it was last
+	 * configured, including those not kept by sampling.
+	 */
+	public static long getOfferedCount()
+	{
+		Ring ring = instance.ring;
+		return (null == ring ? 0 : ring.offered.get());
+	}
+
+	/**
+	 * Describe the events in the shared log, oldest first.
+	 * @return one line per event, or an empty list if the log is disabled
+	 */
+	public static List<String> dump()
+	{
+		List<String> lines = new ArrayList<String>();
+		Ring ring = instance.ring;
+		if (null == ring)
+		{ return lines; }
+
+		long end = ring.next.get();
+		long start = Math.max(0, end - ring.sequences.length);
+		for (long sequence = start; sequence < end; sequence++)
+		{
+			int slot = (int)(sequence & ring.mask);
+			long time = ring.times[slot];
+			long switchId = ring.switchIds[slot];
+			int type = ring.types[slot];
+			int value1 = ring.values1[slot];
+			int value2 = ring.values2[slot];
+			if (ring.sequences[slot] != sequence)
+			{ continue; }
+			lines.add(format(time, switchId, type, value1, value2));
+		}
+		return lines;
+	}
+
+	private static String format(long time, long switchId, int type,
+			int value1, int value2)
+	{
+		boolean ips = (type >= 0 && type < NAMES.length && IP_VALUES[type]);
+		return String.format("%d us s%d %s %s %s", time / 1000, switchId,
+				(type >= 0 && type < NAMES.length ? NAMES[type] : type),
+				(ips ? IPv4.fromIPv4Address(value1) : value1),
+				(ips ? IPv4.fromIPv4Address(value2) : value2));
+	}
+
+	private static int powerOfTwo(int value)
+	{
+		int power = 1;
+		while (power < value)
+		{ power <<= 1; }
+		return power;
+	}
+
+	/**
+	 * The buffer for one configuration of the log. Each event is kept as
+	 * primitive fields in parallel arrays.
+	 */
+	private static class Ring
+	{
+		private final long[] sequences;
+		private final long[] times;
+		private final long[] switchIds;
+		private final int[] types;
+		private final int[] values1;
+		private final int[] values2;
+		private final int mask;
+		private final long sampleMask;
+
+		// Sequence number of the next event kept
+		private final AtomicLong next;
+
+		// Number of events offered, including those not kept by sampling
+		private final AtomicLong offered;
+
+		private Ring(int capacity, int sampleRate)
+		{
+			this.sequences = new long[capacity];
+			Arrays.fill(this.sequences, -1);
+			this.times = new long[capacity];
+			this.switchIds = new long[capacity];
+			this.types = new int[capacity];
+			this.values1 = new int[capacity];
+			this.values2 = new int[capacity];
+			this.mask = capacity - 1;
+			this.sampleMask = sampleRate - 1;
+			this.next = new AtomicLong();
+			this.offered = new AtomicLong();
+		}
+	}
+}
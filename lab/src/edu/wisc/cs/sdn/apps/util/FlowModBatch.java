@@ -0,0 +1,422 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openflow.protocol.OFBarrierRequest;
+import org.openflow.protocol.OFBucket;
+import org.openflow.protocol.OFGroupMod;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFMeterMod;
+import org.openflow.protocol.OFPacketOut;
+import org.openflow.protocol.instruction.OFInstruction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import net.floodlightcontroller.core.IOFSwitch;
+
+/**
+ * Accumulates FlowMods per switch and writes each switch's messages with a
+ * single write and flush, instead of one write and flush per message. A
+ * switch's messages are flushed early once the batch for that switch reaches
+ * a maximum size or its oldest message reaches a maximum age.
+ *
+ * A batch is not thread safe; each thread should use its own batch.
+ */
+public class FlowModBatch
+{
+	// Default maximum number of messages buffered for a switch
+	public static final int DEFAULT_MAX_SIZE = 256;
+
+	// Default maximum time a message is buffered before it is flushed
+	public static final long DEFAULT_MAX_DELAY_MS = 50;
+
+	// Interface to the logging system
+    private static Logger log =
+            LoggerFactory.getLogger(FlowModBatch.class.getSimpleName());
+
+    // Metrics shared by all batches
+    private static final AtomicLong flushCount = new AtomicLong();
+    private static final AtomicLong messageCount = new AtomicLong();
+    private static final AtomicLong maxBatchSize = new AtomicLong();
+    private static final AtomicLong flushNanos = new AtomicLong();
+    private static final AtomicLong maxFlushNanos = new AtomicLong();
+    private static final AtomicLong failedFlushCount = new AtomicLong();
+
+    // Messages waiting to be written, keyed by switch DPID
+    private Map<Long,PendingWrites> pending;
+
+    // Maximum number of messages buffered for a switch
+    private int maxSize;
+
+    // Maximum time a message is buffered before it is flushed
+    private long maxDelayNanos;
+
+    /**
+     * Create a batch with the default size and age limits.
+     */
+    public FlowModBatch()
+    { this(DEFAULT_MAX_SIZE, DEFAULT_MAX_DELAY_MS); }
+
+    /**
+     * Create a batch.
+     * @param maxSize maximum number of messages buffered for a switch
+     * @param maxDelayMs maximum time, in milliseconds, a message is buffered
+     *        before the switch's messages are flushed; checked whenever a
+     *        message is added to the batch
+     */
+    public FlowModBatch(int maxSize, long maxDelayMs)
+    {
+    	this.pending = new HashMap<Long,PendingWrites>();
+    	this.maxSize = Math.max(1, maxSize);
+    	this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMs);
+    }
+
+    /**
+     * Queue a rule installation.
+     * @see SwitchCommands#installRule(IOFSwitch, byte, short, OFMatch, List, short, short, int)
+     */
+    public void installRule(IOFSwitch sw, byte table, short priority,
+            OFMatch matchCriteria, List<OFInstruction> instructions,
+            short hardTimeout, short idleTimeout, int bufferId)
+    {
+    	this.add(sw, SwitchCommands.createInstallRule(table, priority,
+    			matchCriteria, instructions, hardTimeout, idleTimeout,
+    			bufferId));
+    }
+
+    /**
+     * Queue a rule installation with flags, e.g. OFFlowMod.OFPFF_SEND_FLOW_REM
+     * to be told when the rule is removed.
+     * @see SwitchCommands#installRule(IOFSwitch, byte, short, OFMatch, List, short, short, int)
+     */
+    public void installRule(IOFSwitch sw, byte table, short priority,
+            OFMatch matchCriteria, List<OFInstruction> instructions,
+            short hardTimeout, short idleTimeout, int bufferId, short flags)
+    {
+    	this.add(sw, SwitchCommands.createInstallRule(table, priority,
+    			matchCriteria, instructions, hardTimeout, idleTimeout,
+    			bufferId, flags));
+    }
+
+    /**
+     * Queue a rule installation.
+     * @see SwitchCommands#installRule(IOFSwitch, byte, short, OFMatch, List, short, short)
+     */
+    public void installRule(IOFSwitch sw, byte table, short priority,
+            OFMatch matchCriteria, List<OFInstruction> instructions,
+            short hardTimeout, short idleTimeout)
+    {
+    	this.installRule(sw, table, priority, matchCriteria, instructions,
+    			hardTimeout, idleTimeout, OFPacketOut.BUFFER_ID_NONE);
+    }
+
+    /**
+     * Queue the installation of a rule with no timeout.
+     * @see SwitchCommands#installRule(IOFSwitch, byte, short, OFMatch, List)
+     */
+    public void installRule(IOFSwitch sw, byte table, short priority,
+            OFMatch matchCriteria, List<OFInstruction> instructions)
+    {
+    	this.installRule(sw, table, priority, matchCriteria, instructions,
+    			SwitchCommands.NO_TIMEOUT, SwitchCommands.NO_TIMEOUT);
+    }
+
+    /**
+     * Queue the modification of a single rule.
+     * @see SwitchCommands#modifyRule(IOFSwitch, byte, short, OFMatch, List)
+     */
+    public void modifyRule(IOFSwitch sw, byte table, short priority,
+            OFMatch matchCriteria, List<OFInstruction> instructions)
+    {
+    	this.add(sw, SwitchCommands.createModifyRule(table, priority,
+    			matchCriteria, instructions));
+    }
+
+    /**
+     * Queue the removal of a single rule.
+     * @see SwitchCommands#removeRule(IOFSwitch, byte, short, OFMatch)
+     */
+    public void removeRule(IOFSwitch sw, byte table, short priority,
+    		OFMatch matchCriteria)
+    {
+    	this.add(sw, SwitchCommands.createRemoveRule(table, priority,
+    			matchCriteria));
+    }
+
+    /**
+     * Queue the removal of all matching rules.
+     * @see SwitchCommands#removeRules(IOFSwitch, byte, OFMatch)
+     */
+    public void removeRules(IOFSwitch sw, byte table, OFMatch matchCriteria)
+    { this.add(sw, SwitchCommands.createRemoveRules(table, matchCriteria)); }
+
+    /**
+     * Queue the addition of a group.
+     * @see SwitchCommands#installGroup(IOFSwitch, byte, int, List)
+     */
+    public void installGroup(IOFSwitch sw, byte type, int groupId,
+    		List<OFBucket> buckets)
+    {
+    	this.add(sw, SwitchCommands.createGroupMod(OFGroupMod.OFPGC_ADD, type,
+    			groupId, buckets));
+    }
+
+    /**
+     * Queue the modification of a group.
+     * @see SwitchCommands#modifyGroup(IOFSwitch, byte, int, List)
+     */
+    public void modifyGroup(IOFSwitch sw, byte type, int groupId,
+    		List<OFBucket> buckets)
+    {
+    	this.add(sw, SwitchCommands.createGroupMod(OFGroupMod.OFPGC_MODIFY, 
+    			type, groupId, buckets));
+    }
+
+    /**
+     * Queue the removal of a group, and every rule that uses it.
+     * @see SwitchCommands#removeGroup(IOFSwitch, int)
+     */
+    public void removeGroup(IOFSwitch sw, int groupId)
+    {
+    	this.add(sw, SwitchCommands.createGroupMod(OFGroupMod.OFPGC_DELETE,
+    			OFGroupMod.OFPGT_ALL, groupId,
+    			Collections.<OFBucket>emptyList()));
+    }
+
+    /**
+     * Queue the addition of a meter.
+     * @see SwitchCommands#installMeter(IOFSwitch, int, int, int)
+     */
+    public void installMeter(IOFSwitch sw, int meterId, int rate, int burst)
+    {
+    	this.add(sw, SwitchCommands.createMeterMod(OFMeterMod.OFPMC_ADD,
+    			meterId, rate, burst));
+    }
+
+    /**
+     * Queue a message for a switch, flushing the switch's messages if the
+     * size or age limit is reached.
+     * @param sw the switch to which the message should be sent
+     * @param msg the message
+     */
+    public void add(IOFSwitch sw, OFMessage msg)
+    {
+    	PendingWrites writes = this.pending.get(sw.getId());
+    	if (null == writes)
+    	{
+    		writes = new PendingWrites(sw);
+    		this.pending.put(sw.getId(), writes);
+    	}
+    	if (writes.messages.isEmpty())
+    	{ writes.firstQueued = System.nanoTime(); }
+    	writes.messages.add(msg);
+    	writes.uncommitted = true;
+
+    	if (writes.messages.size() >= this.maxSize
+    			|| System.nanoTime() - writes.firstQueued >= this.maxDelayNanos)
+    	{ this.flush(writes); }
+    }
+
+    /**
+     * Get the number of messages waiting to be written.
+     */
+    public int size()
+    {
+    	int size = 0;
+    	for (PendingWrites writes : this.pending.values())
+    	{ size += writes.messages.size(); }
+    	return size;
+    }
+
+    /**
+     * Write all queued messages for a switch.
+     * @param sw the switch
+     * @return true if the messages were sent to the switch, otherwise false
+     */
+    public boolean flush(IOFSwitch sw)
+    {
+    	PendingWrites writes = this.pending.get(sw.getId());
+    	return (null == writes || this.flush(writes));
+    }
+
+    /**
+     * Write all queued messages for every switch.
+     * @return true if all messages were sent, otherwise false
+     */
+    public boolean flush()
+    {
+    	boolean success = true;
+    	for (PendingWrites writes : this.pending.values())
+    	{ success &= this.flush(writes); }
+    	return success;
+    }
+
+    /**
+     * Append a barrier request for every switch that received messages since
+     * the last commit, then write all queued messages.
+     * @return a future completed with the DPIDs of the switches once every
+     *         switch has answered its barrier, i.e. once all rules in the
+     *         batch are live; fails if any switch disconnects first
+     */
+    public ListenableFuture<List<Long>> commit()
+    {
+    	BarrierTracker tracker = BarrierTracker.getInstance();
+    	List<ListenableFuture<Long>> barriers =
+    			new ArrayList<ListenableFuture<Long>>();
+    	for (PendingWrites writes : this.pending.values())
+    	{
+    		if (!writes.uncommitted)
+    		{ continue; }
+    		SettableFuture<Long> completion = SettableFuture.create();
+    		OFBarrierRequest barrier = tracker.createBarrier(writes.sw,
+    				completion);
+    		writes.messages.add(barrier);
+    		if (!this.flush(writes))
+    		{
+    			tracker.abortBarrier(writes.sw, barrier, new IOException(
+    					"Failed to write barrier to s" + writes.sw.getId()));
+    		}
+    		writes.uncommitted = false;
+    		barriers.add(completion);
+    	}
+    	this.flush();
+    	return Futures.allAsList(barriers);
+    }
+
+    /**
+     * Write the queued messages for a switch with a single write and flush.
+     */
+    private boolean flush(PendingWrites writes)
+    {
+    	int size = writes.messages.size();
+    	if (0 == size)
+    	{ return true; }
+
+    	long start = System.nanoTime();
+    	boolean success = true;
+    	try
+    	{
+    		writes.sw.write(writes.messages, null);
+    		writes.sw.flush();
+    	}
+    	catch (IOException e)
+    	{
+    		log.error(String.format("Failed to write %d messages to s%d",
+    				size, writes.sw.getId()));
+    		failedFlushCount.incrementAndGet();
+    		success = false;
+    	}
+    	long elapsed = System.nanoTime() - start;
+
+    	flushCount.incrementAndGet();
+    	messageCount.addAndGet(size);
+    	flushNanos.addAndGet(elapsed);
+    	updateMax(maxBatchSize, size);
+    	updateMax(maxFlushNanos, elapsed);
+    	EventLog.record(EventLog.BATCH_FLUSH, writes.sw.getId(), size,
+    			(int)(elapsed / 1000));
+    	if (log.isDebugEnabled())
+    	{
+    		log.debug(String.format("Flushed %d messages to s%d in %d us",
+    				size, writes.sw.getId(), elapsed / 1000));
+    	}
+
+    	// The switch may hold on to the list, so start a new one
+    	writes.messages = new ArrayList<OFMessage>();
+    	return success;
+    }
+
+    /**
+     * Raise a maximum to at least a value.
+     */
+    private static void updateMax(AtomicLong max, long value)
+    {
+    	long current = max.get();
+    	while (value > current && !max.compareAndSet(current, value))
+    	{ current = max.get(); }
+    }
+
+    /**
+     * Get the number of flushes performed by all batches.
+     */
+    public static long getFlushCount()
+    { return flushCount.get(); }
+
+    /**
+     * Get the number of flushes by all batches that failed to write.
+     */
+    public static long getFailedFlushCount()
+    { return failedFlushCount.get(); }
+
+    /**
+     * Get the number of messages written by all batches.
+     */
+    public static long getMessageCount()
+    { return messageCount.get(); }
+
+    /**
+     * Get the average number of messages written per flush.
+     */
+    public static double getAverageBatchSize()
+    {
+    	long flushes = flushCount.get();
+    	return (0 == flushes ? 0 : (double)messageCount.get() / flushes);
+    }
+
+    /**
+     * Get the largest number of messages written in a single flush.
+     */
+    public static long getMaxBatchSize()
+    { return maxBatchSize.get(); }
+
+    /**
+     * Get the average time, in microseconds, taken by a flush.
+     */
+    public static double getAverageFlushMicros()
+    {
+    	long flushes = flushCount.get();
+    	return (0 == flushes ? 0 : flushNanos.get() / 1000.0 / flushes);
+    }
+
+    /**
+     * Get the longest time, in microseconds, taken by a flush.
+     */
+    public static double getMaxFlushMicros()
+    { return maxFlushNanos.get() / 1000.0; }
+
+    /**
+     * Messages waiting to be written to one switch.
+     */
+    private static class PendingWrites
+    {
+    	// The switch to which the messages should be written
+    	private IOFSwitch sw;
+
+    	// The messages, in the order they should be written
+    	private List<OFMessage> messages;
+
+    	// When the first message in the list was queued
+    	private long firstQueued;
+
+    	// Whether messages were added since the last commit
+    	private boolean uncommitted;
+
+    	private PendingWrites(IOFSwitch sw)
+    	{
+    		this.sw = sw;
+    		this.messages = new ArrayList<OFMessage>();
+    	}
+    }
+}
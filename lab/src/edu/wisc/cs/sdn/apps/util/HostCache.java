@@ -0,0 +1,357 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.floodlightcontroller.devicemanager.IDevice;
+import net.floodlightcontroller.devicemanager.IDeviceListener;
+import net.floodlightcontroller.devicemanager.IDeviceService;
+import net.floodlightcontroller.devicemanager.SwitchPort;
+import net.floodlightcontroller.util.MACAddress;
+
+/**
+ * Caches the MAC address and attachment point of hosts by IPv4 address, so
+ * packet-in handlers resolve a host without querying the device manager.
+ * Entries are filled from the device manager on a miss, including entries
+ * for IPs the device manager does not know, and are dropped whenever the
+ * device manager reports a change to a device they could belong to. The
+ * table is keyed by primitive ints with open addressing.
+ *
+ * A single cache is shared by all applications; each application must call
+ * {@link #register(IDeviceService)} during startup.
+ */
+public class HostCache implements IDeviceListener
+{
+	public static final String MODULE_NAME = HostCache.class.getSimpleName();
+
+	// Smallest table size
+	private static final int MIN_CAPACITY = 16;
+
+	// Most entries kept; lookups past this are answered but not cached, so
+	// requests for many unknown IPs cannot grow the table without bound
+	private static final int MAX_SIZE = 65536;
+
+	// The cache shared by all applications
+	private static final HostCache instance = new HostCache();
+
+	// Interface to device manager service, or null until registered
+	private IDeviceService deviceProv;
+
+	// IP for each slot
+	private int[] ips;
+
+	// Entry for each slot; null marks an empty slot
+	private Entry[] entries;
+
+	// Number of entries in the table
+	private int size;
+
+	// Number of lookups answered from the cache, and sent to the device
+	// manager, and number of entries dropped by device events
+	private AtomicLong hitCount;
+	private AtomicLong missCount;
+	private AtomicLong invalidationCount;
+
+	private HostCache()
+	{
+		this.ips = new int[MIN_CAPACITY];
+		this.entries = new Entry[MIN_CAPACITY];
+		this.hitCount = new AtomicLong();
+		this.missCount = new AtomicLong();
+		this.invalidationCount = new AtomicLong();
+	}
+
+	/**
+	 * Get the cache shared by all applications.
+	 */
+	public static HostCache getInstance()
+	{ return instance; }
+
+	/**
+	 * Subscribe the shared cache to device events, if it is not already
+	 * subscribed.
+	 * @param deviceProv device manager service
+	 */
+	public static void register(IDeviceService deviceProv)
+	{
+		synchronized (instance)
+		{
+			if (instance.deviceProv != null)
+			{ return; }
+			instance.deviceProv = deviceProv;
+			deviceProv.addListener(instance);
+		}
+	}
+
+	/**
+	 * Look up a host.
+	 * @param ip the host's IPv4 address
+	 * @return the host, or null if the device manager does not know it
+	 */
+	public synchronized Entry lookup(int ip)
+	{
+		int slot = this.find(ip);
+		if (slot >= 0)
+		{
+			this.hitCount.incrementAndGet();
+			Entry entry = this.entries[slot];
+			return (entry.isKnown() ? entry : null);
+		}
+
+		this.missCount.incrementAndGet();
+		if (null == this.deviceProv)
+		{ return null; }
+		Entry entry = Entry.UNKNOWN;
+		Iterator<? extends IDevice> iterator = this.deviceProv.queryDevices(
+				null, null, ip, null, null);
+		if (iterator.hasNext())
+		{ entry = new Entry(iterator.next()); }
+		if (this.size < MAX_SIZE)
+		{ this.insert(-slot - 1, ip, entry); }
+		return (entry.isKnown() ? entry : null);
+	}
+
+	/**
+	 * Get the MAC address of a host.
+	 * @param ip the host's IPv4 address
+	 * @return the MAC address, or null if the device manager does not know
+	 *         the host; must not be modified
+	 */
+	public byte[] getMACAddress(int ip)
+	{
+		Entry entry = this.lookup(ip);
+		return (null == entry ? null : entry.getMACAddressBytes());
+	}
+
+	/**
+	 * Get the number of lookups answered from the cache.
+	 */
+	public long getHitCount()
+	{ return this.hitCount.get(); }
+
+	/**
+	 * Get the number of lookups sent to the device manager.
+	 */
+	public long getMissCount()
+	{ return this.missCount.get(); }
+
+	/**
+	 * Get the number of entries dropped because of device events.
+	 */
+	public long getInvalidationCount()
+	{ return this.invalidationCount.get(); }
+
+	/**
+	 * Drop the entries for a device's IPs, and any entry with its MAC
+	 * address, since the device may have given up the IP it had.
+	 */
+	private synchronized void invalidate(IDevice device)
+	{
+		Integer[] deviceIPs = device.getIPv4Addresses();
+		if (deviceIPs != null)
+		{
+			for (Integer ip : deviceIPs)
+			{
+				int slot = (null == ip ? -1 : this.find(ip));
+				if (slot >= 0)
+				{ this.removeSlot(slot); }
+			}
+		}
+
+		long mac = device.getMACAddress();
+		int slot = 0;
+		while (slot < this.entries.length)
+		{
+			// A removal may shift another entry into this slot
+			if (this.entries[slot] != null && this.entries[slot].isKnown()
+					&& this.entries[slot].getMACAddress() == mac)
+			{ this.removeSlot(slot); }
+			else
+			{ slot++; }
+		}
+	}
+
+	/**
+	 * Find the slot holding an IP.
+	 * @return the slot, or -(free slot + 1) if the IP is not in the table
+	 */
+	private int find(int ip)
+	{
+		int mask = this.entries.length - 1;
+		int slot = hash(ip) & mask;
+		while (this.entries[slot] != null)
+		{
+			if (this.ips[slot] == ip)
+			{ return slot; }
+			slot = (slot + 1) & mask;
+		}
+		return -slot - 1;
+	}
+
+	/**
+	 * Put an entry in a free slot, growing the table once it is half full.
+	 */
+	private void insert(int slot, int ip, Entry entry)
+	{
+		this.ips[slot] = ip;
+		this.entries[slot] = entry;
+		this.size++;
+		if (this.size * 2 <= this.entries.length)
+		{ return; }
+
+		int[] oldIPs = this.ips;
+		Entry[] oldEntries = this.entries;
+		this.ips = new int[oldEntries.length * 2];
+		this.entries = new Entry[oldEntries.length * 2];
+		for (int i = 0; i < oldEntries.length; i++)
+		{
+			if (oldEntries[i] != null)
+			{
+				int free = -this.find(oldIPs[i]) - 1;
+				this.ips[free] = oldIPs[i];
+				this.entries[free] = oldEntries[i];
+			}
+		}
+	}
+
+	/**
+	 * Empty a slot, shifting later entries of the same probe sequence back
+	 * so lookups do not stop early.
+	 */
+	private void removeSlot(int slot)
+	{
+		int mask = this.entries.length - 1;
+		int next = (slot + 1) & mask;
+		while (this.entries[next] != null)
+		{
+			int home = hash(this.ips[next]) & mask;
+			if (((next - home) & mask) >= ((next - slot) & mask))
+			{
+				this.ips[slot] = this.ips[next];
+				this.entries[slot] = this.entries[next];
+				slot = next;
+			}
+			next = (next + 1) & mask;
+		}
+		this.entries[slot] = null;
+		this.size--;
+		this.invalidationCount.incrementAndGet();
+	}
+
+	private static int hash(int ip)
+	{
+		int hash = ip * 0x9e3779b9;
+		return hash ^ (hash >>> 16);
+	}
+
+	@Override
+	public void deviceAdded(IDevice device)
+	{ this.invalidate(device); }
+
+	@Override
+	public void deviceRemoved(IDevice device)
+	{ this.invalidate(device); }
+
+	@Override
+	public void deviceMoved(IDevice device)
+	{ this.invalidate(device); }
+
+	@Override
+	public void deviceIPV4AddrChanged(IDevice device)
+	{ this.invalidate(device); }
+
+	@Override
+	public void deviceVlanChanged(IDevice device)
+	{ /* Nothing we need to do, since we do not cache VLANs */ }
+
+	/**
+	 * Gets a name for this listener.
+	 */
+	@Override
+	public String getName()
+	{ return MODULE_NAME; }
+
+	/**
+	 * Check if events must be passed to another listener before this one is
+	 * notified of the event.
+	 */
+	@Override
+	public boolean isCallbackOrderingPrereq(String type, String name)
+	{ return false; }
+
+	/**
+	 * Check if events must be passed to another listener after this one has
+	 * been notified of the event.
+	 */
+	@Override
+	public boolean isCallbackOrderingPostreq(String type, String name)
+	{ return false; }
+
+	/**
+	 * A cached host. Entries never change; a host that changes gets a new
+	 * entry.
+	 */
+	public static class Entry
+	{
+		// Entry for IPs the device manager does not know
+		private static final Entry UNKNOWN = new Entry();
+
+		private final byte[] macBytes;
+		private final long mac;
+		private final long switchId;
+		private final int port;
+		private final boolean attached;
+
+		private Entry()
+		{
+			this.macBytes = null;
+			this.mac = 0;
+			this.switchId = 0;
+			this.port = 0;
+			this.attached = false;
+		}
+
+		private Entry(IDevice device)
+		{
+			this.mac = device.getMACAddress();
+			this.macBytes = MACAddress.valueOf(this.mac).toBytes();
+			SwitchPort[] attachments = device.getAttachmentPoints();
+			this.attached = (attachments != null && attachments.length > 0);
+			this.switchId = (this.attached ? attachments[0].getSwitchDPID() : 0);
+			this.port = (this.attached ? attachments[0].getPort() : 0);
+		}
+
+		private boolean isKnown()
+		{ return (this.macBytes != null); }
+
+		/**
+		 * Get the host's MAC address.
+		 */
+		public long getMACAddress()
+		{ return this.mac; }
+
+		/**
+		 * Get the host's MAC address as bytes; must not be modified.
+		 */
+		public byte[] getMACAddressBytes()
+		{ return this.macBytes; }
+
+		/**
+		 * Check whether the host is attached to some switch.
+		 */
+		public boolean isAttachedToSwitch()
+		{ return this.attached; }
+
+		/**
+		 * Get the DPID of the switch to which the host is attached.
+		 */
+		public long getSwitchId()
+		{ return this.switchId; }
+
+		/**
+		 * Get the port on the switch to which the host is attached.
+		 */
+		public int getPort()
+		{ return this.port; }
+	}
+}
@@ -0,0 +1,17 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.util.Set;
+
+/**
+ * Interface for modules that want to know when {@link StatsCollector} has
+ * new statistics from switches.
+ */
+public interface IStatsListener
+{
+	/**
+	 * Called on the collector's thread after replies from some switches
+	 * have been recorded.
+	 * @param switchIds DPIDs for the switches with new statistics
+	 */
+	public void statsUpdated(Set<Long> switchIds);
+}
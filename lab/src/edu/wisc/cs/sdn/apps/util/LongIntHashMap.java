@@ -0,0 +1,217 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from primitive long keys to primitive int values.
+ * Unlike a HashMap<Long,Integer>, lookups and updates never allocate.
+ */
+public class LongIntHashMap
+{
+	// Value returned for keys that are not in the map
+	public static final int NO_VALUE = -1;
+
+	// Marks an empty slot in the key table
+	private static final long FREE_KEY = 0;
+
+	// Smallest table size
+	private static final int MIN_CAPACITY = 8;
+
+	// Keys for each slot; FREE_KEY marks an empty slot
+	private long[] keys;
+
+	// Values for each slot
+	private int[] values;
+
+	// Number of entries stored in the tables (excluding the free key)
+	private int used;
+
+	// Whether the map contains FREE_KEY, which is stored outside the tables
+	private boolean hasFreeKey;
+
+	// Value for FREE_KEY, if present
+	private int freeKeyValue;
+
+	/**
+	 * Create an empty map.
+	 */
+	public LongIntHashMap()
+	{ this(MIN_CAPACITY); }
+
+	/**
+	 * Create an empty map sized to hold a number of entries without resizing.
+	 * @param expectedSize the number of entries expected
+	 */
+	public LongIntHashMap(int expectedSize)
+	{
+		int capacity = MIN_CAPACITY;
+		while (capacity < expectedSize * 2)
+		{ capacity <<= 1; }
+		this.keys = new long[capacity];
+		this.values = new int[capacity];
+	}
+
+	/**
+	 * Get the value associated with a key.
+	 * @param key the key to look up
+	 * @return the value for the key, NO_VALUE if the key is not in the map
+	 */
+	public int get(long key)
+	{
+		if (FREE_KEY == key)
+		{ return (this.hasFreeKey ? this.freeKeyValue : NO_VALUE); }
+		int slot = this.find(key);
+		return (slot < 0 ? NO_VALUE : this.values[slot]);
+	}
+
+	/**
+	 * Check whether a key is in the map.
+	 * @param key the key to look up
+	 * @return true if the key is in the map, otherwise false
+	 */
+	public boolean containsKey(long key)
+	{
+		if (FREE_KEY == key)
+		{ return this.hasFreeKey; }
+		return (this.find(key) >= 0);
+	}
+
+	/**
+	 * Associate a value with a key, replacing any previous value.
+	 * @param key the key
+	 * @param value the value
+	 * @return the previous value for the key, NO_VALUE if there was none
+	 */
+	public int put(long key, int value)
+	{
+		if (FREE_KEY == key)
+		{
+			int previous = (this.hasFreeKey ? this.freeKeyValue : NO_VALUE);
+			this.hasFreeKey = true;
+			this.freeKeyValue = value;
+			return previous;
+		}
+
+		int mask = this.keys.length - 1;
+		int slot = hash(key) & mask;
+		while (this.keys[slot] != FREE_KEY)
+		{
+			if (this.keys[slot] == key)
+			{
+				int previous = this.values[slot];
+				this.values[slot] = value;
+				return previous;
+			}
+			slot = (slot + 1) & mask;
+		}
+		this.keys[slot] = key;
+		this.values[slot] = value;
+		this.used++;
+		if (this.used * 2 > this.keys.length)
+		{ this.rehash(this.keys.length * 2); }
+		return NO_VALUE;
+	}
+
+	/**
+	 * Remove a key from the map.
+	 * @param key the key to remove
+	 * @return the value for the key, NO_VALUE if the key was not in the map
+	 */
+	public int remove(long key)
+	{
+		if (FREE_KEY == key)
+		{
+			int previous = (this.hasFreeKey ? this.freeKeyValue : NO_VALUE);
+			this.hasFreeKey = false;
+			return previous;
+		}
+
+		int slot = this.find(key);
+		if (slot < 0)
+		{ return NO_VALUE; }
+		int previous = this.values[slot];
+
+		// Shift later entries in the probe sequence back into the hole
+		int mask = this.keys.length - 1;
+		int hole = slot;
+		int next = (hole + 1) & mask;
+		while (this.keys[next] != FREE_KEY)
+		{
+			int home = hash(this.keys[next]) & mask;
+			if (((next - home) & mask) >= ((next - hole) & mask))
+			{
+				this.keys[hole] = this.keys[next];
+				this.values[hole] = this.values[next];
+				hole = next;
+			}
+			next = (next + 1) & mask;
+		}
+		this.keys[hole] = FREE_KEY;
+		this.used--;
+		return previous;
+	}
+
+	/**
+	 * Get the number of entries in the map.
+	 */
+	public int size()
+	{ return this.used + (this.hasFreeKey ? 1 : 0); }
+
+	/**
+	 * Remove all entries from the map.
+	 */
+	public void clear()
+	{
+		Arrays.fill(this.keys, FREE_KEY);
+		this.used = 0;
+		this.hasFreeKey = false;
+	}
+
+	/**
+	 * Find the slot holding a (non-free) key.
+	 * @return the slot index, -1 if the key is not in the table
+	 */
+	private int find(long key)
+	{
+		int mask = this.keys.length - 1;
+		int slot = hash(key) & mask;
+		while (this.keys[slot] != FREE_KEY)
+		{
+			if (this.keys[slot] == key)
+			{ return slot; }
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Move all entries into tables of a new size.
+	 */
+	private void rehash(int capacity)
+	{
+		long[] oldKeys = this.keys;
+		int[] oldValues = this.values;
+		this.keys = new long[capacity];
+		this.values = new int[capacity];
+		int mask = capacity - 1;
+		for (int i = 0; i < oldKeys.length; i++)
+		{
+			if (FREE_KEY == oldKeys[i])
+			{ continue; }
+			int slot = hash(oldKeys[i]) & mask;
+			while (this.keys[slot] != FREE_KEY)
+			{ slot = (slot + 1) & mask; }
+			this.keys[slot] = oldKeys[i];
+			this.values[slot] = oldValues[i];
+		}
+	}
+
+	/**
+	 * Spread the bits of a key so sequential DPIDs do not cluster.
+	 */
+	private static int hash(long key)
+	{
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32));
+	}
+}
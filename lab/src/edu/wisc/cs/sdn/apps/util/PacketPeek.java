@@ -0,0 +1,218 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+
+/**
+ * Reads individual header fields straight from the raw bytes of a packet,
+ * without deserializing it into packet objects. Packet-in handlers use it to
+ * decide whether they care about a packet before paying for a full
+ * {@link Ethernet#deserialize(byte[], int, int)}.
+ *
+ * Methods that read a type, protocol, flags or port return {@link #NONE} if
+ * the packet is too short or does not carry the requested header; addresses
+ * may only be read once the header is known to be present. 802.1Q tags are
+ * skipped.
+ */
+public class PacketPeek
+{
+	// Returned when a field is not present in a packet
+	public static final int NONE = -1;
+
+	// Ethertype of an 802.1Q VLAN tag
+	private static final int TYPE_VLAN = 0x8100;
+
+	// Length of an Ethernet header without VLAN tags
+	private static final int ETH_HEADER_LENGTH = 14;
+
+	// Length of an 802.1Q VLAN tag
+	private static final int VLAN_TAG_LENGTH = 4;
+
+	// Minimum lengths of the network and transport headers we read
+	private static final int IPV4_MIN_LENGTH = 20;
+	private static final int TCP_MIN_LENGTH = 20;
+	private static final int ARP_IPV4_LENGTH = 28;
+
+	private PacketPeek()
+	{ }
+
+	/**
+	 * Get the ethertype of a packet, after any VLAN tags.
+	 * @param data the packet
+	 */
+	public static int getEtherType(byte[] data)
+	{
+		int offset = getNetworkOffset(data);
+		if (NONE == offset)
+		{ return NONE; }
+		return readShort(data, offset - 2);
+	}
+
+	/**
+	 * Get the IP protocol number of an IPv4 packet.
+	 * @param data the packet
+	 */
+	public static int getIpProtocol(byte[] data)
+	{
+		int offset = getIpv4Offset(data);
+		if (NONE == offset)
+		{ return NONE; }
+		return data[offset + 9] & 0xff;
+	}
+
+	/**
+	 * Check whether a packet carries a complete IPv4 header.
+	 * @param data the packet
+	 */
+	public static boolean isIpv4(byte[] data)
+	{ return getIpv4Offset(data) != NONE; }
+
+	/**
+	 * Get the source address of an IPv4 packet. The caller must check
+	 * {@link #isIpv4(byte[])} first, since every int is a valid address.
+	 * @param data the packet
+	 */
+	public static int getIpSource(byte[] data)
+	{ return readInt(data, getIpv4Offset(data) + 12); }
+
+	/**
+	 * Get the destination address of an IPv4 packet. The caller must check
+	 * {@link #isIpv4(byte[])} first, since every int is a valid address.
+	 * @param data the packet
+	 */
+	public static int getIpDestination(byte[] data)
+	{ return readInt(data, getIpv4Offset(data) + 16); }
+
+	/**
+	 * Get the TCP flags of a TCP segment, including the NS bit.
+	 * @param data the packet
+	 */
+	public static int getTcpFlags(byte[] data)
+	{
+		int offset = getTcpOffset(data);
+		if (NONE == offset)
+		{ return NONE; }
+		return readShort(data, offset + 12) & 0x1ff;
+	}
+
+	/**
+	 * Get the source port of a TCP segment.
+	 * @param data the packet
+	 */
+	public static int getTcpSourcePort(byte[] data)
+	{
+		int offset = getTcpOffset(data);
+		if (NONE == offset)
+		{ return NONE; }
+		return readShort(data, offset);
+	}
+
+	/**
+	 * Get the destination port of a TCP segment.
+	 * @param data the packet
+	 */
+	public static int getTcpDestinationPort(byte[] data)
+	{
+		int offset = getTcpOffset(data);
+		if (NONE == offset)
+		{ return NONE; }
+		return readShort(data, offset + 2);
+	}
+
+	/**
+	 * Get the opcode of an ARP packet for IPv4 over Ethernet.
+	 * @param data the packet
+	 */
+	public static int getArpOpCode(byte[] data)
+	{
+		int offset = getArpOffset(data);
+		if (NONE == offset)
+		{ return NONE; }
+		return readShort(data, offset + 6);
+	}
+
+	/**
+	 * Get the target IP address of an ARP packet for IPv4 over Ethernet. The
+	 * caller must check {@link #getArpOpCode(byte[])} first, since every int
+	 * is a valid address.
+	 * @param data the packet
+	 */
+	public static int getArpTargetAddress(byte[] data)
+	{ return readInt(data, getArpOffset(data) + 24); }
+
+	/**
+	 * Get the sender IP address of an ARP packet for IPv4 over Ethernet. The
+	 * caller must check {@link #getArpOpCode(byte[])} first.
+	 * @param data the packet
+	 */
+	public static int getArpSenderAddress(byte[] data)
+	{ return readInt(data, getArpOffset(data) + 14); }
+
+	/**
+	 * Get the offset of the network header, after any VLAN tags.
+	 */
+	private static int getNetworkOffset(byte[] data)
+	{
+		int offset = ETH_HEADER_LENGTH;
+		if (data.length < offset)
+		{ return NONE; }
+		while (TYPE_VLAN == readShort(data, offset - 2))
+		{
+			offset += VLAN_TAG_LENGTH;
+			if (data.length < offset)
+			{ return NONE; }
+		}
+		return offset;
+	}
+
+	/**
+	 * Get the offset of the IPv4 header, if the packet is IPv4.
+	 */
+	private static int getIpv4Offset(byte[] data)
+	{
+		int offset = getNetworkOffset(data);
+		if (NONE == offset || readShort(data, offset - 2) != Ethernet.TYPE_IPv4
+				|| data.length < offset + IPV4_MIN_LENGTH)
+		{ return NONE; }
+		return offset;
+	}
+
+	/**
+	 * Get the offset of the TCP header, if the packet is the first or only
+	 * fragment of a TCP segment.
+	 */
+	private static int getTcpOffset(byte[] data)
+	{
+		int offset = getIpv4Offset(data);
+		if (NONE == offset || data[offset + 9] != IPv4.PROTOCOL_TCP
+				|| (readShort(data, offset + 6) & 0x1fff) != 0)
+		{ return NONE; }
+		offset += (data[offset] & 0x0f) * 4;
+		if (data.length < offset + TCP_MIN_LENGTH)
+		{ return NONE; }
+		return offset;
+	}
+
+	/**
+	 * Get the offset of the ARP header, if the packet is ARP for IPv4 over
+	 * Ethernet.
+	 */
+	private static int getArpOffset(byte[] data)
+	{
+		int offset = getNetworkOffset(data);
+		if (NONE == offset || readShort(data, offset - 2) != Ethernet.TYPE_ARP
+				|| data.length < offset + ARP_IPV4_LENGTH
+				|| readShort(data, offset + 2) != Ethernet.TYPE_IPv4)
+		{ return NONE; }
+		return offset;
+	}
+
+	private static int readShort(byte[] data, int offset)
+	{ return ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff); }
+
+	private static int readInt(byte[] data, int offset)
+	{
+		return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+				| ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+	}
+}
@@ -0,0 +1,197 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The last few byte counter samples of every switch port, from which the
+ * ports' recent transmit and receive rates are computed. Each port's samples
+ * are kept in a small ring in flat primitive arrays, so recording a sample
+ * never allocates once the port is known.
+ */
+public class PortRates
+{
+	// Number of samples kept for each port
+	private static final int WINDOW = 4;
+
+	// Slot of each port, keyed by switch DPID and then port
+	private Map<Long,Map<Integer,Integer>> slots;
+
+	// Number of slots in use
+	private int slotCount;
+
+	// Time, and transmitted and received bytes, of each sample, WINDOW
+	// entries per slot
+	private long[] times;
+	private long[] txBytes;
+	private long[] rxBytes;
+
+	// Number of samples recorded for each slot
+	private long[] counts;
+
+	// Current speed of each slot's port, in bits per second, or 0 if unknown
+	private long[] speeds;
+
+	/**
+	 * Create an empty table.
+	 */
+	public PortRates()
+	{
+		this.slots = new HashMap<Long,Map<Integer,Integer>>();
+		this.times = new long[16 * WINDOW];
+		this.txBytes = new long[16 * WINDOW];
+		this.rxBytes = new long[16 * WINDOW];
+		this.counts = new long[16];
+		this.speeds = new long[16];
+	}
+
+	/**
+	 * Record a sample of a port's byte counters.
+	 * @param switchId DPID for the switch
+	 * @param port the port on the switch
+	 * @param time when the counters were read, from System.nanoTime()
+	 * @param transmitted bytes sent out the port
+	 * @param received bytes received on the port
+	 * @param speed current speed of the port, in bits per second, or 0 if
+	 *        unknown
+	 */
+	public synchronized void record(long switchId, int port, long time,
+			long transmitted, long received, long speed)
+	{
+		Map<Integer,Integer> ports = this.slots.get(switchId);
+		if (null == ports)
+		{
+			ports = new HashMap<Integer,Integer>();
+			this.slots.put(switchId, ports);
+		}
+		Integer slot = ports.get(port);
+		if (null == slot)
+		{
+			slot = this.slotCount++;
+			if (slot >= this.counts.length)
+			{ this.grow(this.counts.length * 2); }
+			ports.put(port, slot);
+		}
+		int entry = slot * WINDOW + (int)(this.counts[slot] % WINDOW);
+		this.times[entry] = time;
+		this.txBytes[entry] = transmitted;
+		this.rxBytes[entry] = received;
+		this.counts[slot]++;
+		this.speeds[slot] = speed;
+	}
+
+	/**
+	 * Forget the ports of switches that are no longer connected, and pack
+	 * the remaining ports into the lowest slots.
+	 * @param switchIds DPIDs for the connected switches
+	 */
+	public synchronized void retainSwitches(Collection<Long> switchIds)
+	{
+		if (!this.slots.keySet().retainAll(switchIds))
+		{ return; }
+
+		int slotCount = 0;
+		long[] times = new long[this.times.length];
+		long[] txBytes = new long[this.txBytes.length];
+		long[] rxBytes = new long[this.rxBytes.length];
+		long[] counts = new long[this.counts.length];
+		long[] speeds = new long[this.speeds.length];
+		for (Map<Integer,Integer> ports : this.slots.values())
+		{
+			for (Map.Entry<Integer,Integer> entry : ports.entrySet())
+			{
+				int from = entry.getValue();
+				int to = slotCount++;
+				System.arraycopy(this.times, from * WINDOW, times,
+						to * WINDOW, WINDOW);
+				System.arraycopy(this.txBytes, from * WINDOW, txBytes,
+						to * WINDOW, WINDOW);
+				System.arraycopy(this.rxBytes, from * WINDOW, rxBytes,
+						to * WINDOW, WINDOW);
+				counts[to] = this.counts[from];
+				speeds[to] = this.speeds[from];
+				entry.setValue(to);
+			}
+		}
+		this.slotCount = slotCount;
+		this.times = times;
+		this.txBytes = txBytes;
+		this.rxBytes = rxBytes;
+		this.counts = counts;
+		this.speeds = speeds;
+	}
+
+	/**
+	 * Get the rate at which a port recently sent bytes.
+	 * @return bytes per second, or 0 if there are too few samples
+	 */
+	public synchronized long getTransmitRate(long switchId, int port)
+	{ return this.getRate(this.txBytes, switchId, port); }
+
+	/**
+	 * Get the rate at which a port recently received bytes.
+	 * @return bytes per second, or 0 if there are too few samples
+	 */
+	public synchronized long getReceiveRate(long switchId, int port)
+	{ return this.getRate(this.rxBytes, switchId, port); }
+
+	/**
+	 * Get the fraction of a port's speed recently used in the busier
+	 * direction.
+	 * @return the utilization, from 0 to 1, or 0 if the port's speed is not
+	 *         known or there are too few samples
+	 */
+	public synchronized double getUtilization(long switchId, int port)
+	{
+		Integer slot = this.getSlot(switchId, port);
+		if (null == slot || this.speeds[slot] <= 0)
+		{ return 0.0; }
+		long rate = Math.max(this.getRate(this.txBytes, switchId, port),
+				this.getRate(this.rxBytes, switchId, port));
+		return Math.min(1.0, rate * 8.0 / this.speeds[slot]);
+	}
+
+	/**
+	 * Get the rate of one counter between the oldest and newest samples.
+	 */
+	private long getRate(long[] bytes, long switchId, int port)
+	{
+		Integer slot = this.getSlot(switchId, port);
+		if (null == slot || this.counts[slot] < 2)
+		{ return 0; }
+		long count = this.counts[slot];
+		int newest = slot * WINDOW + (int)((count - 1) % WINDOW);
+		int oldest = slot * WINDOW
+				+ (int)((count - Math.min(count, WINDOW)) % WINDOW);
+		long elapsed = this.times[newest] - this.times[oldest];
+		long delta = bytes[newest] - bytes[oldest];
+
+		// Counters go back to 0 when a port or switch resets
+		if (elapsed <= 0 || delta < 0)
+		{ return 0; }
+		return (long)(delta * 1000000000.0 / elapsed);
+	}
+
+	/**
+	 * Resize the per-slot arrays.
+	 */
+	private void grow(int capacity)
+	{
+		this.times = Arrays.copyOf(this.times, capacity * WINDOW);
+		this.txBytes = Arrays.copyOf(this.txBytes, capacity * WINDOW);
+		this.rxBytes = Arrays.copyOf(this.rxBytes, capacity * WINDOW);
+		this.counts = Arrays.copyOf(this.counts, capacity);
+		this.speeds = Arrays.copyOf(this.speeds, capacity);
+	}
+
+	/**
+	 * Get the slot of a port, or null if the port has no samples.
+	 */
+	private Integer getSlot(long switchId, int port)
+	{
+		Map<Integer,Integer> ports = this.slots.get(switchId);
+		return (null == ports ? null : ports.get(port));
+	}
+}
@@ -0,0 +1,455 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFPhysicalPort.PortSpeed;
+import org.openflow.protocol.OFPort;
+import org.openflow.protocol.OFStatisticsRequest;
+import org.openflow.protocol.statistics.OFFlowStatisticsReply;
+import org.openflow.protocol.statistics.OFFlowStatisticsRequest;
+import org.openflow.protocol.statistics.OFPortStatisticsReply;
+import org.openflow.protocol.statistics.OFPortStatisticsRequest;
+import org.openflow.protocol.statistics.OFStatistics;
+import org.openflow.protocol.statistics.OFStatisticsType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.ImmutablePort;
+
+/**
+ * Polls every connected switch for port and flow statistics, and keeps the
+ * recent transmit and receive rate of each port. Rates need frequent port
+ * samples, but rule counts change slowly and flow replies are large, so flow
+ * statistics are only requested every {@link #FLOW_INTERVALS} intervals.
+ * Switches are spread over a number of slots by DPID, and each tick of the
+ * collector polls one slot, so requests go out at an even rate rather than all
+ * at once. Requests are sent without waiting for replies; replies are picked up
+ * on later ticks, and a switch is not polled again while its previous requests
+ * are outstanding.
+ *
+ * A single collector is shared by all applications; each application must
+ * call {@link #register(IFloodlightProviderService)} during startup, and the
+ * first call to {@link #start(long)} sets the polling interval.
+ */
+public class StatsCollector implements Runnable
+{
+	public static final String MODULE_NAME =
+			StatsCollector.class.getSimpleName();
+
+	// Default time between polls of a switch, in milliseconds
+	public static final long DEFAULT_INTERVAL = 1000;
+
+	// Number of ticks over which each interval's polls are spread
+	private static final int SLOTS = 10;
+
+	// Number of intervals a switch has to answer a request
+	private static final int TIMEOUT_INTERVALS = 3;
+
+	// Number of intervals between flow statistics requests to a switch
+	public static final int FLOW_INTERVALS = 30;
+
+	// Interface to the logging system
+	private static Logger log = LoggerFactory.getLogger(MODULE_NAME);
+
+	// The collector shared by all applications
+	private static final StatsCollector instance = new StatsCollector();
+
+	// Interface to Floodlight core for interacting with connected switches
+	private IFloodlightProviderService floodlightProv;
+
+	// Time between polls of a switch, in nanoseconds
+	private long intervalNanos;
+
+	// Thread that polls the switches
+	private ScheduledExecutorService executor;
+
+	// Number of ticks run so far
+	private long ticks;
+
+	// Requests sent and not yet answered; only used by the collector thread
+	private List<PendingRequest> pending;
+
+	// Recent rates of every port
+	private PortRates portRates;
+
+	// Number of rules and bytes matched by them in each switch, as of the
+	// switch's last flow statistics reply
+	private ConcurrentHashMap<Long,Long> flowCounts;
+	private ConcurrentHashMap<Long,Long> flowBytes;
+
+	// Told when switches have new statistics
+	private CopyOnWriteArrayList<IStatsListener> listeners;
+
+	// Number of requests sent, answered, and given up on
+	private AtomicLong requestCount;
+	private AtomicLong replyCount;
+	private AtomicLong timeoutCount;
+
+	private StatsCollector()
+	{
+		this.pending = new ArrayList<PendingRequest>();
+		this.portRates = new PortRates();
+		this.flowCounts = new ConcurrentHashMap<Long,Long>();
+		this.flowBytes = new ConcurrentHashMap<Long,Long>();
+		this.listeners = new CopyOnWriteArrayList<IStatsListener>();
+		this.requestCount = new AtomicLong();
+		this.replyCount = new AtomicLong();
+		this.timeoutCount = new AtomicLong();
+	}
+
+	/**
+	 * Get the collector shared by all applications.
+	 */
+	public static StatsCollector getInstance()
+	{ return instance; }
+
+	/**
+	 * Give the shared collector access to the connected switches, if it does
+	 * not have it already.
+	 * @param floodlightProv Floodlight core service
+	 */
+	public static void register(IFloodlightProviderService floodlightProv)
+	{
+		synchronized (instance)
+		{
+			if (null == instance.floodlightProv)
+			{ instance.floodlightProv = floodlightProv; }
+		}
+	}
+
+	/**
+	 * Start polling switches in the background, if the collector is not
+	 * already running.
+	 * @param interval time between polls of a switch, in milliseconds
+	 */
+	public synchronized void start(long interval)
+	{
+		if (this.executor != null || null == this.floodlightProv)
+		{ return; }
+		this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(interval);
+		this.executor = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactory()
+				{
+					@Override
+					public Thread newThread(Runnable runnable)
+					{
+						Thread thread = new Thread(runnable, MODULE_NAME);
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		long tick = Math.max(1, this.intervalNanos / SLOTS);
+		this.executor.scheduleAtFixedRate(this, tick, tick,
+				TimeUnit.NANOSECONDS);
+		log.info(String.format("Polling switch statistics every %d ms",
+				interval));
+	}
+
+	/**
+	 * Stop polling switches.
+	 */
+	public synchronized void stop()
+	{
+		if (null == this.executor)
+		{ return; }
+		this.executor.shutdownNow();
+		this.executor = null;
+	}
+
+	/**
+	 * Tell a listener when switches have new statistics.
+	 */
+	public void addListener(IStatsListener listener)
+	{ this.listeners.addIfAbsent(listener); }
+
+	/**
+	 * Get the recent rates of every port.
+	 */
+	public PortRates getPortRates()
+	{ return this.portRates; }
+
+	/**
+	 * Get the number of rules in a switch.
+	 * @return the count as of the switch's last reply, or 0 if it has not
+	 *         answered yet
+	 */
+	public long getFlowCount(long switchId)
+	{
+		Long count = this.flowCounts.get(switchId);
+		return (null == count ? 0 : count);
+	}
+
+	/**
+	 * Get the number of bytes matched by all rules in a switch.
+	 * @return the total as of the switch's last reply, or 0 if it has not
+	 *         answered yet
+	 */
+	public long getFlowBytes(long switchId)
+	{
+		Long bytes = this.flowBytes.get(switchId);
+		return (null == bytes ? 0 : bytes);
+	}
+
+	public long getRequestCount()
+	{ return this.requestCount.get(); }
+
+	public long getReplyCount()
+	{ return this.replyCount.get(); }
+
+	public long getTimeoutCount()
+	{ return this.timeoutCount.get(); }
+
+	/**
+	 * Run one tick: record the replies that have arrived, tell the listeners,
+	 * and poll the switches in this tick's slot. Exceptions are logged rather
+	 * than thrown, since they would cancel later ticks.
+	 */
+	@Override
+	public void run()
+	{
+		try
+		{
+			Map<Long,IOFSwitch> switches =
+					this.floodlightProv.getAllSwitchMap();
+			Set<Long> updated = this.collectReplies(switches);
+			if (!updated.isEmpty())
+			{
+				for (IStatsListener listener : this.listeners)
+				{ listener.statsUpdated(updated); }
+			}
+
+			long round = this.ticks / SLOTS;
+			int slot = (int)(this.ticks++ % SLOTS);
+			if (0 == slot)
+			{
+				this.portRates.retainSwitches(switches.keySet());
+				this.flowCounts.keySet().retainAll(switches.keySet());
+				this.flowBytes.keySet().retainAll(switches.keySet());
+			}
+			this.poll(switches, slot, 0 == round % FLOW_INTERVALS);
+		}
+		catch (RuntimeException e)
+		{ log.error("Statistics collection failed", e); }
+	}
+
+	/**
+	 * Record the replies that have arrived, and give up on requests that
+	 * have waited too long.
+	 * @return DPIDs for the switches with new statistics
+	 */
+	private Set<Long> collectReplies(Map<Long,IOFSwitch> switches)
+	{
+		Set<Long> updated = new HashSet<Long>();
+		long now = System.nanoTime();
+		Iterator<PendingRequest> iterator = this.pending.iterator();
+		while (iterator.hasNext())
+		{
+			PendingRequest request = iterator.next();
+			if (!request.reply.isDone())
+			{
+				if (now - request.sent > TIMEOUT_INTERVALS * this.intervalNanos)
+				{
+					request.reply.cancel(true);
+					this.timeoutCount.incrementAndGet();
+					iterator.remove();
+				}
+				continue;
+			}
+			iterator.remove();
+
+			List<OFStatistics> stats;
+			try
+			{ stats = request.reply.get(); }
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return updated;
+			}
+			catch (ExecutionException e)
+			{
+				log.debug(String.format("Statistics request to s%d failed: %s",
+						request.switchId, e.getCause()));
+				continue;
+			}
+			this.replyCount.incrementAndGet();
+
+			IOFSwitch sw = switches.get(request.switchId);
+			if (null == sw || null == stats)
+			{ continue; }
+			if (OFStatisticsType.PORT == request.type)
+			{ this.recordPortStats(sw, request.sent, stats); }
+			else
+			{ this.recordFlowStats(sw, stats); }
+			updated.add(request.switchId);
+		}
+		return updated;
+	}
+
+	/**
+	 * Record a port statistics reply. The counters are taken to have been
+	 * read when the request was sent; since every switch is polled at the
+	 * same point of each interval, the error cancels out of the rates.
+	 */
+	private void recordPortStats(IOFSwitch sw, long time,
+			List<OFStatistics> stats)
+	{
+		long maxPort = OFPort.OFPP_MAX.getValue() & 0xffffffffL;
+		for (OFStatistics stat : stats)
+		{
+			if (!(stat instanceof OFPortStatisticsReply))
+			{ continue; }
+			OFPortStatisticsReply reply = (OFPortStatisticsReply)stat;
+			int port = reply.getPortNumber();
+
+			// Skip reserved ports, e.g. the switch's local port
+			if ((port & 0xffffffffL) > maxPort)
+			{ continue; }
+
+			ImmutablePort portInfo = sw.getPort(port);
+			PortSpeed speed = (null == portInfo ? null
+					: portInfo.getCurrentPortSpeed());
+			this.portRates.record(sw.getId(), port, time,
+					reply.getTransmitBytes(), reply.getReceiveBytes(),
+					(null == speed ? 0 : speed.getSpeedBps()));
+		}
+	}
+
+	/**
+	 * Record a flow statistics reply.
+	 */
+	private void recordFlowStats(IOFSwitch sw, List<OFStatistics> stats)
+	{
+		long count = 0;
+		long bytes = 0;
+		for (OFStatistics stat : stats)
+		{
+			if (!(stat instanceof OFFlowStatisticsReply))
+			{ continue; }
+			count++;
+			bytes += ((OFFlowStatisticsReply)stat).getByteCount();
+		}
+		this.flowCounts.put(sw.getId(), count);
+		this.flowBytes.put(sw.getId(), bytes);
+	}
+
+	/**
+	 * Send port, and optionally flow, statistics requests to the switches in
+	 * a slot that have no requests outstanding.
+	 */
+	private void poll(Map<Long,IOFSwitch> switches, int slot, boolean flows)
+	{
+		Set<Long> busy = new HashSet<Long>();
+		for (PendingRequest request : this.pending)
+		{ busy.add(request.switchId); }
+
+		for (IOFSwitch sw : switches.values())
+		{
+			if (slotOf(sw.getId()) != slot || busy.contains(sw.getId()))
+			{ continue; }
+			this.send(sw, OFStatisticsType.PORT, createPortStatsRequest());
+			if (flows)
+			{ this.send(sw, OFStatisticsType.FLOW, createFlowStatsRequest()); }
+		}
+	}
+
+	/**
+	 * Send a statistics request to a switch and remember it until the switch
+	 * answers.
+	 */
+	private void send(IOFSwitch sw, OFStatisticsType type,
+			OFStatisticsRequest request)
+	{
+		try
+		{
+			Future<List<OFStatistics>> reply = sw.queryStatistics(request);
+			this.pending.add(new PendingRequest(sw.getId(), type,
+					System.nanoTime(), reply));
+			this.requestCount.incrementAndGet();
+		}
+		catch (IOException e)
+		{
+			log.debug(String.format("Failed to send statistics request to %s",
+					sw.getStringId()));
+		}
+	}
+
+	/**
+	 * Create a request for the counters of every port.
+	 */
+	private static OFStatisticsRequest createPortStatsRequest()
+	{
+		OFPortStatisticsRequest body = new OFPortStatisticsRequest();
+		body.setPortNumber(OFPort.OFPP_ANY.getValue());
+
+		OFStatisticsRequest request = new OFStatisticsRequest();
+		request.setStatisticType(OFStatisticsType.PORT);
+		request.setStatistics(Collections.singletonList(body));
+		request.setLengthU(OFStatisticsRequest.MINIMUM_LENGTH
+				+ body.getLength());
+		return request;
+	}
+
+	/**
+	 * Create a request for the counters of every rule in every table.
+	 */
+	private static OFStatisticsRequest createFlowStatsRequest()
+	{
+		OFFlowStatisticsRequest body = new OFFlowStatisticsRequest();
+		body.setMatch(new OFMatch());
+		body.setTableId((byte)0xff);
+		body.setOutPort(OFPort.OFPP_ANY.getValue());
+
+		OFStatisticsRequest request = new OFStatisticsRequest();
+		request.setStatisticType(OFStatisticsType.FLOW);
+		request.setStatistics(Collections.singletonList(body));
+		request.setLengthU(OFStatisticsRequest.MINIMUM_LENGTH
+				+ body.getLength());
+		return request;
+	}
+
+	/**
+	 * Get the slot in which a switch is polled; DPIDs are mixed so that
+	 * switches with sequential DPIDs still spread evenly.
+	 */
+	private static int slotOf(long switchId)
+	{ return (int)(((switchId * 0x9e3779b97f4a7c15L) >>> 33) % SLOTS); }
+
+	/**
+	 * A statistics request waiting for its reply.
+	 */
+	private static class PendingRequest
+	{
+		private final long switchId;
+		private final OFStatisticsType type;
+		private final long sent;
+		private final Future<List<OFStatistics>> reply;
+
+		private PendingRequest(long switchId, OFStatisticsType type,
+				long sent, Future<List<OFStatistics>> reply)
+		{
+			this.switchId = switchId;
+			this.type = type;
+			this.sent = sent;
+			this.reply = reply;
+		}
+	}
+}
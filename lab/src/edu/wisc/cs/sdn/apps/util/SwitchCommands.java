@@ -2,14 +2,22 @@ package edu.wisc.cs.sdn.apps.util;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
+import org.openflow.protocol.OFBucket;
 import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFGroupMod;
 import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFMeterMod;
+import org.openflow.protocol.OFMessage;
 import org.openflow.protocol.OFPacketOut;
+import org.openflow.protocol.OFPort;
 import org.openflow.protocol.action.OFAction;
 import org.openflow.protocol.action.OFActionOutput;
 import org.openflow.protocol.instruction.OFInstruction;
+import org.openflow.protocol.meter.OFMeterBand;
+import org.openflow.protocol.meter.OFMeterBandDrop;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -49,33 +57,15 @@ public class SwitchCommands
             OFMatch matchCriteria, List<OFInstruction> instructions, 
             short hardTimeout, short idleTimeout, int bufferId)
     {
-        OFFlowMod rule = new OFFlowMod();
-        rule.setHardTimeout(hardTimeout);
-        rule.setIdleTimeout(idleTimeout);
-        rule.setPriority(priority);
-        rule.setTableId(table);
-        rule.setBufferId(bufferId);
-
-        rule.setMatch(matchCriteria.clone());
-        rule.setInstructions(instructions);
-        
-        int length = OFFlowMod.MINIMUM_LENGTH;
-        for (OFInstruction instruction : instructions)
-        { length += instruction.getLengthU(); }
-        rule.setLength((short)length);
-
-        try
-        {
-            sw.write(rule, null);
-            sw.flush();
-            log.debug("Installing rule: "+rule);
-        }
-        catch (IOException e)
+        OFFlowMod rule = createInstallRule(table, priority, matchCriteria, 
+        		instructions, hardTimeout, idleTimeout, bufferId);
+        if (!write(sw, rule))
         {
             log.error("Failed to install rule: "+rule);
             return false;
         }
-
+        EventLog.record(EventLog.FLOW_MOD, sw.getId(), OFFlowMod.OFPFC_ADD,
+        		ruleKey(table, priority));
         return true;
     }
     
@@ -120,6 +110,56 @@ public class SwitchCommands
     			NO_TIMEOUT, NO_TIMEOUT);
     }
     
+    /**
+     * Replace the instructions of an existing rule in a switch's flow table.
+     * Only a rule whose priority and match criteria exactly equal the given 
+     * ones is changed; if there is no such rule, the switch adds one.
+     * @param sw the switch in which the rule should be modified
+     * @param table the table in which the rule should be modified
+     * @param priority the priority of the rule
+     * @param matchCriteria the match criteria for the rule
+     * @param instructions the new actions to apply to packets matching the 
+     *         rule
+     * @return true if the modification was sent to the switch, otherwise false
+     */
+    public static boolean modifyRule(IOFSwitch sw, byte table, short priority,
+            OFMatch matchCriteria, List<OFInstruction> instructions)
+    {
+        OFFlowMod rule = createModifyRule(table, priority, matchCriteria, 
+        		instructions);
+        if (!write(sw, rule))
+        {
+            log.error("Failed to modify rule: "+rule);
+            return false;
+        }
+        EventLog.record(EventLog.FLOW_MOD, sw.getId(), 
+        		OFFlowMod.OFPFC_MODIFY_STRICT, ruleKey(table, priority));
+        return true;
+    }
+    
+    /**
+     * Remove a single rule from a switch's flow table. Only a rule whose 
+     * priority and match criteria exactly equal the given ones is removed.
+     * @param sw the switch from which the rule should be removed
+     * @param table the table from which the rule should be removed
+     * @param priority the priority of the rule
+     * @param matchCriteria the match criteria for the rule
+     * @return true if the delete was sent to the switch, otherwise false
+     */
+    public static boolean removeRule(IOFSwitch sw, byte table, short priority,
+    		OFMatch matchCriteria)
+    {
+        OFFlowMod rule = createRemoveRule(table, priority, matchCriteria);
+        if (!write(sw, rule))
+        {
+            log.error("Failed to remove rule: "+rule);
+            return false;
+        }
+        EventLog.record(EventLog.FLOW_MOD, sw.getId(), 
+        		OFFlowMod.OFPFC_DELETE_STRICT, ruleKey(table, priority));
+        return true;
+    }
+    
     /**
      * Remove a rule from a switch's flow table.
      * @param sw the switch from which the rule should be removed
@@ -129,26 +169,284 @@ public class SwitchCommands
      */
     public static boolean removeRules(IOFSwitch sw, byte table, 
     		OFMatch matchCriteria)
+    {
+        OFFlowMod rule = createRemoveRules(table, matchCriteria);
+        if (!write(sw, rule))
+        {
+            log.error("Failed to remove rule: "+rule);
+            return false;
+        }
+        EventLog.record(EventLog.FLOW_MOD, sw.getId(), OFFlowMod.OFPFC_DELETE,
+        		ruleKey(table, (short)0));
+        return true;
+    }
+    
+    /**
+     * Adds a group to a switch's group table.
+     * @param sw the switch in which the group should be added
+     * @param type the group type, e.g. OFGroupMod.OFPGT_SELECT
+     * @param groupId the ID of the group
+     * @param buckets the buckets of the group
+     * @return true if the group was sent to the switch, otherwise false
+     */
+    public static boolean installGroup(IOFSwitch sw, byte type, int groupId,
+    		List<OFBucket> buckets)
+    {
+    	OFGroupMod group = createGroupMod(OFGroupMod.OFPGC_ADD, type, groupId,
+    			buckets);
+    	if (!write(sw, group))
+    	{
+    		log.error("Failed to install group: "+group);
+    		return false;
+    	}
+    	EventLog.record(EventLog.GROUP_MOD, sw.getId(), OFGroupMod.OFPGC_ADD,
+    			groupId);
+    	return true;
+    }
+    
+    /**
+     * Replaces the buckets of a group in a switch's group table.
+     * @param sw the switch in which the group should be modified
+     * @param type the group type, e.g. OFGroupMod.OFPGT_SELECT
+     * @param groupId the ID of the group
+     * @param buckets the new buckets of the group
+     * @return true if the modification was sent to the switch, otherwise false
+     */
+    public static boolean modifyGroup(IOFSwitch sw, byte type, int groupId,
+    		List<OFBucket> buckets)
+    {
+    	OFGroupMod group = createGroupMod(OFGroupMod.OFPGC_MODIFY, type, 
+    			groupId, buckets);
+    	if (!write(sw, group))
+    	{
+    		log.error("Failed to modify group: "+group);
+    		return false;
+    	}
+    	EventLog.record(EventLog.GROUP_MOD, sw.getId(), 
+    			OFGroupMod.OFPGC_MODIFY, groupId);
+    	return true;
+    }
+    
+    /**
+     * Removes a group, and every rule that uses it, from a switch.
+     * @param sw the switch from which the group should be removed
+     * @param groupId the ID of the group
+     * @return true if the delete was sent to the switch, otherwise false
+     */
+    public static boolean removeGroup(IOFSwitch sw, int groupId)
+    {
+    	OFGroupMod group = createGroupMod(OFGroupMod.OFPGC_DELETE, 
+    			OFGroupMod.OFPGT_ALL, groupId, 
+    			Collections.<OFBucket>emptyList());
+    	if (!write(sw, group))
+    	{
+    		log.error("Failed to remove group: "+group);
+    		return false;
+    	}
+    	EventLog.record(EventLog.GROUP_MOD, sw.getId(), 
+    			OFGroupMod.OFPGC_DELETE, groupId);
+    	return true;
+    }
+    
+    /**
+     * Adds a meter that drops packets above a rate to a switch's meter table.
+     * @param sw the switch in which the meter should be added
+     * @param meterId the ID of the meter
+     * @param rate the packets per second the meter lets through
+     * @param burst the packets the meter lets through at once, above the rate
+     * @return true if the meter was sent to the switch, otherwise false
+     */
+    public static boolean installMeter(IOFSwitch sw, int meterId, int rate,
+    		int burst)
+    {
+    	OFMeterMod meter = createMeterMod(OFMeterMod.OFPMC_ADD, meterId, rate,
+    			burst);
+    	if (!write(sw, meter))
+    	{
+    		log.error("Failed to install meter: "+meter);
+    		return false;
+    	}
+    	EventLog.record(EventLog.METER_MOD, sw.getId(), OFMeterMod.OFPMC_ADD,
+    			meterId);
+    	return true;
+    }
+    
+    /**
+     * Pack a rule's table and priority into one value for the event log.
+     */
+    private static int ruleKey(byte table, short priority)
+    { return ((table & 0xff) << 16) | (priority & 0xffff); }
+    
+    /**
+     * Build a bucket for a group.
+     * @param weight the share of traffic for the bucket in a select group;
+     *         0 for other group types
+     * @param watchPort the port whose liveness decides whether the bucket is 
+     *         used in a fast failover group; OFPort.OFPP_ANY.getValue() for 
+     *         other group types
+     * @param actions the actions to apply to packets sent to the bucket
+     */
+    public static OFBucket createBucket(short weight, int watchPort,
+    		List<OFAction> actions)
+    {
+    	OFBucket bucket = new OFBucket();
+    	bucket.setWeight(weight);
+    	bucket.setWatchPort(watchPort);
+    	bucket.setWatchGroup(OFGroupMod.OFPG_ANY);
+    	bucket.setActions(actions);
+    	return bucket;
+    }
+    
+    /**
+     * Build a GroupMod.
+     * @see #installGroup(IOFSwitch, byte, int, List)
+     */
+    static OFGroupMod createGroupMod(short command, byte type, int groupId,
+    		List<OFBucket> buckets)
+    {
+    	OFGroupMod group = new OFGroupMod();
+    	group.setCommand(command);
+    	group.setGroupType(type);
+    	group.setGroupId(groupId);
+    	group.setBuckets(buckets);
+    	
+    	int length = OFGroupMod.MINIMUM_LENGTH;
+    	for (OFBucket bucket : buckets)
+    	{ length += bucket.getLengthU(); }
+    	group.setLength((short)length);
+    	return group;
+    }
+    
+    /**
+     * Build a MeterMod for a meter with a single band that drops packets.
+     * @see #installMeter(IOFSwitch, int, int, int)
+     */
+    static OFMeterMod createMeterMod(short command, int meterId, int rate,
+    		int burst)
+    {
+    	OFMeterBand band = new OFMeterBandDrop();
+    	band.setRate(rate);
+    	band.setBurstSize(burst);
+    	
+    	OFMeterMod meter = new OFMeterMod();
+    	meter.setCommand(command);
+    	meter.setFlags((short)(OFMeterMod.OFPMF_PKTPS | OFMeterMod.OFPMF_BURST));
+    	meter.setMeterId(meterId);
+    	meter.setBands(Arrays.asList(band));
+    	meter.setLength((short)(OFMeterMod.MINIMUM_LENGTH + band.getLengthU()));
+    	return meter;
+    }
+    
+    /**
+     * Build a FlowMod that installs a rule. 
+     * @see #installRule(IOFSwitch, byte, short, OFMatch, List, short, short, int)
+     */
+    static OFFlowMod createInstallRule(byte table, short priority,
+            OFMatch matchCriteria, List<OFInstruction> instructions, 
+            short hardTimeout, short idleTimeout, int bufferId)
+    {
+    	return createInstallRule(table, priority, matchCriteria, instructions,
+    			hardTimeout, idleTimeout, bufferId, (short)0);
+    }
+    
+    /**
+     * Build a FlowMod that installs a rule with flags, e.g. 
+     * OFFlowMod.OFPFF_SEND_FLOW_REM to be told when the rule is removed.
+     * @see #installRule(IOFSwitch, byte, short, OFMatch, List, short, short, int)
+     */
+    static OFFlowMod createInstallRule(byte table, short priority,
+            OFMatch matchCriteria, List<OFInstruction> instructions, 
+            short hardTimeout, short idleTimeout, int bufferId, short flags)
     {
         OFFlowMod rule = new OFFlowMod();
-        rule.setCommand(OFFlowMod.OFPFC_DELETE);
+        rule.setFlags(flags);
+        rule.setHardTimeout(hardTimeout);
+        rule.setIdleTimeout(idleTimeout);
+        rule.setPriority(priority);
+        rule.setTableId(table);
+        rule.setBufferId(bufferId);
+
+        rule.setMatch(matchCriteria.clone());
+        rule.setInstructions(instructions);
+        rule.setLength(getLength(instructions));
+        return rule;
+    }
+    
+    /**
+     * Build a FlowMod that modifies a single rule. 
+     * @see #modifyRule(IOFSwitch, byte, short, OFMatch, List)
+     */
+    static OFFlowMod createModifyRule(byte table, short priority,
+            OFMatch matchCriteria, List<OFInstruction> instructions)
+    {
+        OFFlowMod rule = new OFFlowMod();
+        rule.setCommand(OFFlowMod.OFPFC_MODIFY_STRICT);
+        rule.setPriority(priority);
+        rule.setTableId(table);
+        rule.setBufferId(OFPacketOut.BUFFER_ID_NONE);
+
+        rule.setMatch(matchCriteria.clone());
+        rule.setInstructions(instructions);
+        rule.setLength(getLength(instructions));
+        return rule;
+    }
+    
+    /**
+     * Build a FlowMod that removes a single rule. 
+     * @see #removeRule(IOFSwitch, byte, short, OFMatch)
+     */
+    static OFFlowMod createRemoveRule(byte table, short priority, 
+    		OFMatch matchCriteria)
+    {
+        OFFlowMod rule = new OFFlowMod();
+        rule.setCommand(OFFlowMod.OFPFC_DELETE_STRICT);
+        rule.setPriority(priority);
         rule.setTableId(table);
 
         rule.setMatch(matchCriteria.clone());
         rule.setLength((short)OFFlowMod.MINIMUM_LENGTH);
+        return rule;
+    }
+    
+    /**
+     * Build a FlowMod that removes all matching rules. 
+     * @see #removeRules(IOFSwitch, byte, OFMatch)
+     */
+    static OFFlowMod createRemoveRules(byte table, OFMatch matchCriteria)
+    {
+        OFFlowMod rule = new OFFlowMod();
+        rule.setCommand(OFFlowMod.OFPFC_DELETE);
+        rule.setTableId(table);
 
+        rule.setMatch(matchCriteria.clone());
+        rule.setLength((short)OFFlowMod.MINIMUM_LENGTH);
+        return rule;
+    }
+    
+    /**
+     * Compute the length of a FlowMod with a set of instructions.
+     */
+    private static short getLength(List<OFInstruction> instructions)
+    {
+        int length = OFFlowMod.MINIMUM_LENGTH;
+        for (OFInstruction instruction : instructions)
+        { length += instruction.getLengthU(); }
+        return (short)length;
+    }
+    
+    /**
+     * Write a single message to a switch and flush it immediately.
+     * @return true if the message was sent to the switch, otherwise false
+     */
+    private static boolean write(IOFSwitch sw, OFMessage msg)
+    {
         try
         {
-            sw.write(rule, null);
+            sw.write(msg, null);
             sw.flush();
-            log.debug("Removing rule: "+rule);
         }
         catch (IOException e)
-        {
-            log.error("Failed to remove rule: "+rule);
-            return false;
-        }
-
+        { return false; }
         return true;
     }
     
@@ -184,7 +482,8 @@ public class SwitchCommands
         {
             outSw.write(pktOut, null);
             outSw.flush();
-            log.info("Forwarding packet: "+eth.toString());
+            EventLog.record(EventLog.PACKET_OUT, outSw.getId(), outPort, 
+            		eth.getEtherType());
         }
         catch (IOException e) 
         {
@@ -194,4 +493,37 @@ public class SwitchCommands
         
         return true;
 	}
+
+    /**
+     * Sends a packet that arrived at a switch back through the switch's
+     * flow tables, so it is handled by the rules installed for it.
+     * @param sw the switch that received the packet
+     * @param inPort the port on which the packet arrived
+     * @param bufferId the ID of the buffer holding the packet on the switch,
+     *        or OFPacketOut.BUFFER_ID_NONE if the packet is not buffered
+     * @param packetData the packet; only sent if the packet is not buffered
+     * @return true if the packet was sent to the switch, otherwise false
+     */
+	public static boolean releasePacket(IOFSwitch sw, int inPort, int bufferId,
+			byte[] packetData)
+	{
+		OFPacketOut pktOut = new OFPacketOut();
+		pktOut.setBufferId(bufferId);
+		pktOut.setInPort(inPort);
+
+		// Output to the flow tables
+		OFAction output = new OFActionOutput(OFPort.OFPP_TABLE);
+		pktOut.setActions(Arrays.asList(output));
+		pktOut.setActionsLength((short)OFActionOutput.MINIMUM_LENGTH);
+
+		int length = OFPacketOut.MINIMUM_LENGTH + pktOut.getActionsLength();
+		if (OFPacketOut.BUFFER_ID_NONE == bufferId)
+		{
+			pktOut.setPacketData(packetData);
+			length += packetData.length;
+		}
+		pktOut.setLength((short)length);
+
+		return write(sw, pktOut);
+	}
 }
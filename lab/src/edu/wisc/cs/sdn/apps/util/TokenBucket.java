@@ -0,0 +1,51 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate of events: each event takes a token, and tokens are added
+ * at a fixed rate up to a maximum burst.
+ */
+public class TokenBucket
+{
+	// Tokens added per nanosecond
+	private double tokensPerNano;
+
+	// Most tokens the bucket holds
+	private double burst;
+
+	// Tokens in the bucket
+	private double tokens;
+
+	// When tokens were last added
+	private long lastRefill;
+
+	/**
+	 * Create a full bucket.
+	 * @param rate tokens added per second
+	 * @param burst most tokens the bucket holds
+	 */
+	public TokenBucket(double rate, int burst)
+	{
+		this.tokensPerNano = rate / TimeUnit.SECONDS.toNanos(1);
+		this.burst = Math.max(1, burst);
+		this.tokens = this.burst;
+		this.lastRefill = System.nanoTime();
+	}
+
+	/**
+	 * Take a token, if there is one.
+	 * @return true if a token was taken, false if the event should be dropped
+	 */
+	public synchronized boolean tryAcquire()
+	{
+		long now = System.nanoTime();
+		this.tokens = Math.min(this.burst,
+				this.tokens + (now - this.lastRefill) * this.tokensPerNano);
+		this.lastRefill = now;
+		if (this.tokens < 1)
+		{ return false; }
+		this.tokens -= 1;
+		return true;
+	}
+}